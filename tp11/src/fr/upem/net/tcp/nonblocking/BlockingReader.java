@@ -0,0 +1,57 @@
+package fr.upem.net.tcp.nonblocking;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Blocking adapter over a Reader: read blocks on the channel until the
+ * reader has a whole value.
+ *
+ * @param <T> type of the values
+ */
+public class BlockingReader<T> {
+
+   private final Reader<T> reader;
+   private final ReadableByteChannel channel;
+   private final ByteBuffer bb; // write-mode, shared with the reader
+
+   /**
+    * @param reader
+    * @param channel a channel in blocking mode
+    * @param bb      buffer in write-mode receiving the bytes of channel
+    */
+   public BlockingReader(Reader<T> reader, ReadableByteChannel channel, ByteBuffer bb) {
+      this.reader = reader;
+      this.channel = channel;
+      this.bb = bb;
+   }
+
+   /**
+    * Reads the next value
+    *
+    * @return the value or null if the channel is closed between two values
+    * @throws IOException if the channel is closed in the middle of a value or the value is not valid
+    */
+   public T read() throws IOException {
+      var started = bb.position() > 0;
+      for (; ; ) {
+         switch (reader.process(bb)) {
+            case DONE:
+               var value = reader.get();
+               reader.reset();
+               return value;
+            case ERROR:
+               throw new IOException("Invalid data received");
+            case REFILL:
+               if (channel.read(bb) == -1) {
+                  if (started) {
+                     throw new IOException("Connection closed in the middle of a frame");
+                  }
+                  return null;
+               }
+               started = true;
+         }
+      }
+   }
+}
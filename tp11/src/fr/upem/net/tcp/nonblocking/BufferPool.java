@@ -0,0 +1,73 @@
+package fr.upem.net.tcp.nonblocking;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of heap buffers of the same size lent to the connections only while
+ * they have data in flight.
+ * <p>
+ * Buffers may be acquired and released from any thread.
+ */
+public class BufferPool {
+
+   private final int bufferSize;
+   private final int maxPooled;
+   private final Queue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+   private final AtomicInteger pooled = new AtomicInteger();
+   private final AtomicInteger inUse = new AtomicInteger();
+
+   /**
+    * @param bufferSize capacity of the buffers
+    * @param maxPooled  number of free buffers kept, buffers released above that are left to the GC
+    */
+   public BufferPool(int bufferSize, int maxPooled) {
+      if (bufferSize <= 0 || maxPooled < 0) {
+         throw new IllegalArgumentException();
+      }
+      this.bufferSize = bufferSize;
+      this.maxPooled = maxPooled;
+   }
+
+   /**
+    * Returns a cleared buffer in write-mode which must be given back with release
+    */
+   public ByteBuffer acquire() {
+      inUse.incrementAndGet();
+      var bb = buffers.poll();
+      if (bb == null) {
+         return ByteBuffer.allocate(bufferSize);
+      }
+      pooled.decrementAndGet();
+      return bb;
+   }
+
+   public void release(ByteBuffer bb) {
+      inUse.decrementAndGet();
+      if (pooled.incrementAndGet() > maxPooled) {
+         pooled.decrementAndGet();
+         return;
+      }
+      buffers.add(bb.clear());
+   }
+
+   public int bufferSize() {
+      return bufferSize;
+   }
+
+   /**
+    * Number of buffers currently lent
+    */
+   public int inUse() {
+      return inUse.get();
+   }
+
+   /**
+    * Number of free buffers kept by the pool
+    */
+   public int pooled() {
+      return pooled.get();
+   }
+}
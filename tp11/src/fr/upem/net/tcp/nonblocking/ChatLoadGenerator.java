@@ -0,0 +1,225 @@
+package fr.upem.net.tcp.nonblocking;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Load generator measuring the broadcast fan-out latency of a chat server.
+ * <p>
+ * Many sessions are driven from one selector through ClientChat.Context. The
+ * first senders sessions broadcast messages at a fixed total rate, whatever the
+ * server does (open loop). Each message carries the time at which it was
+ * scheduled rather than the time it was actually sent, so a stall of the server
+ * or of the generator shows up in the latencies instead of silently lowering the
+ * offered load (coordinated omission). Every session records, for each message
+ * it receives, the time elapsed since the message was scheduled.
+ * <p>
+ * The sessions share one LoginCache, since they all receive the same few logins.
+ */
+public class ChatLoadGenerator {
+
+   static private int MAX_PENDING_CONNECTS = 64;
+   static private int MAX_FAILED_CONNECTS = 100; // replaced by new connections until then
+   static private long REPORT_PERIOD = TimeUnit.SECONDS.toNanos(1);
+   static private long DRAIN_MILLIS = 1_000; // time left to the messages in flight at the end
+   static private String PREFIX = "ts:";
+   // logins of the messages received decoded once for all the sessions, 0 to decode every login
+   static private int LOGIN_CACHE_SIZE = Integer.getInteger("chaton.loginCacheSize", 1_024);
+   static private Logger logger = Logger.getLogger(ChatLoadGenerator.class.getName());
+
+   private final InetSocketAddress serverAddress;
+   private final Selector selector;
+   private final int sessions;
+   private final int senders;
+   private final long period; // nanoseconds between two scheduled messages
+   private final long duration;
+   private final ArrayList<ClientChat.Context> connected = new ArrayList<>(); // open sessions only
+   private final Histogram interval = new Histogram(); // latencies since the last report
+   private final Histogram total = new Histogram();
+   private final LoginCache logins = LOGIN_CACHE_SIZE > 0 ? new LoginCache(LOGIN_CACHE_SIZE) : null;
+   private int opened = 0;
+   private int failedConnects = 0;
+   private int lost = 0; // sessions closed after their connection
+   private int nextSender = 0;
+   private long sent = 0;
+   private long expected = 0; // sum of the sessions open when each message was sent
+   private long received = 0;
+
+   /**
+    * @param serverAddress
+    * @param sessions      number of sessions receiving the broadcasts
+    * @param senders       number of these sessions sending the broadcasts
+    * @param rate          messages per second sent by all the senders
+    * @param seconds       duration of the measure
+    * @throws IOException
+    */
+   public ChatLoadGenerator(InetSocketAddress serverAddress, int sessions, int senders, double rate, int seconds)
+         throws IOException {
+      if (senders <= 0 || senders > sessions || rate <= 0) {
+         throw new IllegalArgumentException("Needs 0 < senders <= sessions and a positive rate");
+      }
+      this.serverAddress = serverAddress;
+      this.selector = Selector.open();
+      this.sessions = sessions;
+      this.senders = senders;
+      this.period = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+      this.duration = TimeUnit.SECONDS.toNanos(seconds);
+   }
+
+   public void launch() throws IOException {
+      while (connected.size() + lost < sessions) {
+         if (failedConnects > MAX_FAILED_CONNECTS) {
+            logger.severe("Giving up after " + failedConnects + " failed connections");
+            return;
+         }
+         openSessions();
+         select(100);
+      }
+      logger.info(connected.size() + " sessions connected");
+      var start = System.nanoTime();
+      var scheduled = start;
+      var nextReport = start + REPORT_PERIOD;
+      var now = start;
+      while (now - start < duration && !connected.isEmpty()) {
+         select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(scheduled - now)));
+         now = System.nanoTime();
+         while (scheduled - now <= 0 && send(scheduled)) {
+            scheduled += period;
+         }
+         if (now - nextReport >= 0) {
+            logger.info("sent " + sent + ", received " + received + ", latency (ns) " + interval);
+            interval.reset();
+            nextReport += REPORT_PERIOD;
+         }
+      }
+      var drainEnd = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(DRAIN_MILLIS);
+      while (System.nanoTime() - drainEnd < 0) {
+         select(10);
+      }
+      if (connected.isEmpty()) {
+         logger.warning("Every session has been lost");
+      }
+      logger.info("Offered " + sent + " messages at " + TimeUnit.SECONDS.toNanos(1) / period + " msg/s to "
+            + sessions + " sessions, received " + received + " of " + expected + " ("
+            + String.format("%.2f", 100.0 * received / Math.max(expected, 1)) + "%), " + lost + " sessions lost, "
+            + failedConnects + " failed connections");
+      logger.info("Fan-out latency (ns) " + total);
+   }
+
+   /**
+    * Starts connections while less than MAX_PENDING_CONNECTS are in progress,
+    * so that the listen backlog of the server does not overflow. A failed
+    * connection is replaced by a new one.
+    */
+   private void openSessions() throws IOException {
+      while (opened - failedConnects < sessions
+            && opened - failedConnects - connected.size() - lost < MAX_PENDING_CONNECTS) {
+         var sc = SocketChannel.open();
+         sc.configureBlocking(false);
+         var key = sc.register(selector, SelectionKey.OP_CONNECT);
+         key.attach(new ClientChat.Context(key, this::received, logins));
+         sc.connect(serverAddress);
+         opened++;
+      }
+   }
+
+   private void select(long timeoutMillis) throws IOException {
+      try {
+         selector.select(this::treatKey, timeoutMillis);
+      } catch (UncheckedIOException tunneled) {
+         throw tunneled.getCause();
+      }
+   }
+
+   private void treatKey(SelectionKey key) {
+      var context = (ClientChat.Context) key.attachment();
+      try {
+         if (key.isValid() && key.isConnectable() && context.doConnect()) {
+            connected.add(context);
+         }
+         if (key.isValid() && key.isWritable()) {
+            context.doWrite();
+         }
+         if (key.isValid() && key.isReadable()) {
+            context.doRead();
+         }
+      } catch (IOException ioe) {
+         logger.log(Level.WARNING, "Session lost", ioe);
+         try {
+            key.channel().close();
+         } catch (IOException e) {
+            // ignore exception
+         }
+      }
+      if (!key.isValid()) {
+         closed(context); // by the server, by the context itself or after an IOException
+      }
+   }
+
+   /**
+    * Forgets a closed session, which is counted as lost if it was connected
+    */
+   private void closed(ClientChat.Context context) {
+      if (connected.remove(context)) {
+         lost++;
+      } else {
+         failedConnects++;
+      }
+   }
+
+   /**
+    * Queues a broadcast carrying the time at which it was scheduled on the next sender
+    * still open, the first senders sessions take turns
+    *
+    * @param scheduled
+    * @return false if every session is lost
+    */
+   private boolean send(long scheduled) {
+      while (!connected.isEmpty()) {
+         var sender = nextSender % Math.min(senders, connected.size());
+         nextSender = sender + 1;
+         var context = connected.get(sender);
+         if (!context.isOpen()) {
+            closed(context);
+            continue;
+         }
+         context.queueMessage(new Message("load" + sender, PREFIX + scheduled));
+         sent++;
+         expected += connected.size();
+         return true;
+      }
+      return false;
+   }
+
+   private void received(Message msg) {
+      var text = msg.getMessage();
+      if (msg.getType() != Message.Type.BROADCAST || !text.startsWith(PREFIX)) {
+         return;
+      }
+      var latency = System.nanoTime() - Long.parseLong(text, PREFIX.length(), text.length(), 10);
+      interval.record(latency);
+      total.record(latency);
+      received++;
+   }
+
+   public static void main(String[] args) throws NumberFormatException, IOException {
+      if (args.length != 6) {
+         usage();
+         return;
+      }
+      new ChatLoadGenerator(new InetSocketAddress(args[0], Integer.parseInt(args[1])), Integer.parseInt(args[2]),
+            Integer.parseInt(args[3]), Double.parseDouble(args[4]), Integer.parseInt(args[5])).launch();
+   }
+
+   private static void usage() {
+      System.out.println("Usage : ChatLoadGenerator hostname port sessions senders rate seconds");
+   }
+}
@@ -1,35 +1,89 @@
 package fr.upem.net.tcp.nonblocking;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.UncheckedIOException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.Channel;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 import java.nio.charset.Charset;
-import java.util.LinkedList;
-import java.util.Queue;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.HashMap;
 import java.util.Scanner;
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.function.Consumer;
+import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.CRC32;
 
 public class ClientChat {
 
-   static private class Context {
+   /**
+    * Stream received from the server, whose bytes are only checksummed
+    */
+   static private class IncomingStream {
+
+      final private int id;
+      final private String login;
+      final private CRC32 crc = new CRC32();
+      private long remaining;
+
+      private IncomingStream(int id, String login, long size) {
+         this.id = id;
+         this.login = login;
+         this.remaining = size;
+      }
+   }
+
+   /**
+    * Connection to the server, also used by ChatLoadGenerator to drive many sessions
+    * from one selector
+    */
+   static class Context implements MessageReader.ChunkSink {
 
       final private SelectionKey key;
       final private SocketChannel sc;
       final private ByteBuffer bbin = ByteBuffer.allocate(BUFFER_SIZE);
-      final private ByteBuffer bbout = ByteBuffer.allocate(BUFFER_SIZE);
-      final private Queue<ByteBuffer> queue = new LinkedList<>(); // buffers read-mode
-      final private MessageReader messageReader = new MessageReader();
+      final private ByteBuffer bbout = ByteBuffer.allocate(OUT_BUFFER_SIZE);
+      final private ArrayDeque<Message> pending = new ArrayDeque<>(INITIAL_QUEUE_CAPACITY); // copied into bbout
+      final private GatheringQueue<ByteBuffer> queue = new GatheringQueue<>(INITIAL_QUEUE_CAPACITY); // gathering mode, read-mode
+      final private MessageReader messageReader = new MessageReader(this);
+      final private MessageWriter messageWriter = new MessageWriter();
+      private boolean writing = false; // messageWriter holds a message not entirely in bbout
+      final private HashMap<Integer, IncomingStream> incomingStreams = new HashMap<>();
+      private IncomingStream currentStream; // stream of the chunk being read, null if unknown
+      private FileChannel outFile; // file being sent as a stream, null if none
+      private int outStreamId = 0;
+      private long outRemaining;
+      private final CRC32 outCrc = new CRC32();
+      private ByteBuffer chunkbb; // chunk being sent in gathering write mode, null until needed
+      private boolean awaitingHello = false; // nothing is sent after HELLO until the answer
+      private boolean varInts = false; // the server accepted the version 2
+      final private Consumer<Message> onMessage;
       private boolean closed = false;
+      private long lastSequence = -1; // highest sequence received from the history of the server
+      private Decompressor decompressor; // null until the server compresses
+      private ByteBuffer zin; // compressed bytes in write-mode, null until the server compresses
 
-      private Context(SelectionKey key) {
+      /**
+       * @param key
+       * @param onMessage called with each chat message received
+       * @param logins    cache of the logins received, which the contexts of a selector
+       *                  may share, null to decode every login
+       */
+      Context(SelectionKey key, Consumer<Message> onMessage, LoginCache logins) {
          this.key = key;
          this.sc = (SocketChannel) key.channel();
+         this.onMessage = onMessage;
+         if (logins != null) {
+            messageReader.useLoginCache(logins);
+         }
       }
 
       /**
@@ -37,8 +91,10 @@ public class ClientChat {
        * <p>
        * The convention is that bbin is in write-mode before the call
        * to process and after the call
+       *
+       * @throws IOException if the compressed stream is corrupted
        */
-      private void processIn() {
+      private void processIn() throws IOException {
 //         bbin.flip();
 //         var loginSize = bbin.getInt();
 //         var login = ByteBuffer.allocate(loginSize);
@@ -57,11 +113,35 @@ public class ClientChat {
             switch (status) {
                case DONE:
                   var msg = messageReader.get();
-                  System.out.println(msg.getLogin() + ": " + msg.getMessage());
                   messageReader.reset();
+                  if (msg.getType() == Message.Type.COMPRESS) {
+                     startDecompression();
+                     break;
+                  }
+                  if (msg.getType() == Message.Type.HELLO) {
+                     helloAnswered(msg.getVersion());
+                     break;
+                  }
+                  if (msg.getType() == Message.Type.CHUNK) {
+                     chunkReceived();
+                     break;
+                  }
+                  if (msg.getType() == Message.Type.STREAM && msg.getSize() > 0) {
+                     var id = msg.getStreamId();
+                     incomingStreams.put(id, new IncomingStream(id, msg.getLogin(), msg.getSize()));
+                  }
+                  lastSequence = Math.max(lastSequence, msg.getSequence());
+                  onMessage.accept(msg);
                   break;
                case REFILL:
-                  return;
+                  if (decompressor == null || !sc.isOpen()) {
+                     return; // the decompressor is closed with the channel
+                  }
+                  decompressor.decompress(zin, bbin);
+                  if (bbin.position() == 0) {
+                     return;
+                  }
+                  break;
                case ERROR:
                   closed = true;
                   return;
@@ -69,29 +149,205 @@ public class ClientChat {
          }
       }
 
+      /**
+       * Asks for the version 2 of the protocol, must be the first message sent.
+       * The following messages wait for the answer of the server.
+       */
+      void hello() {
+         queueMessage(Message.hello(2));
+         awaitingHello = true;
+      }
+
+      /**
+       * The bytes following the answer use the version accepted by the server
+       */
+      private void helloAnswered(int version) {
+         logger.info("Using the version " + version + " of the protocol");
+         if (version >= 2) {
+            messageReader.useVarInts();
+            messageWriter.useVarInts();
+            varInts = true;
+         }
+         awaitingHello = false;
+         processOut();
+      }
+
+      @Override
+      public boolean chunkStarted(int streamId, int size) {
+         currentStream = incomingStreams.get(streamId); // the chunks of the streams started before we connected are skipped
+         if (currentStream != null) {
+            currentStream.remaining -= size;
+         }
+         return true;
+      }
+
+      @Override
+      public void chunkData(ByteBuffer data) {
+         if (currentStream != null) {
+            currentStream.crc.update(data);
+         }
+      }
+
+      private void chunkReceived() {
+         var stream = currentStream;
+         currentStream = null;
+         if (stream == null || stream.remaining > 0) {
+            return;
+         }
+         incomingStreams.remove(stream.id);
+         logger.info("Stream from " + stream.login + " received, crc32 " + Long.toHexString(stream.crc.getValue()));
+      }
+
+      /**
+       * Sends the content of path as a stream, the chunks are read from the file
+       * only when there is room for them in bbout
+       *
+       * @param login
+       * @param path
+       * @throws IOException
+       */
+      void sendStream(String login, Path path) throws IOException {
+         if (outFile != null) {
+            logger.info("A stream is already being sent");
+            return;
+         }
+         outFile = FileChannel.open(path, StandardOpenOption.READ);
+         outRemaining = outFile.size();
+         outCrc.reset();
+         queueMessage(Message.stream(outStreamId, outRemaining, login));
+         if (outRemaining == 0) {
+            endStream();
+         }
+      }
+
+      /**
+       * Reads the next chunk of the stream being sent from the file into dst
+       *
+       * @param dst in write-mode with room for more than CHUNK_HEADER_SIZE bytes
+       * @throws IOException
+       */
+      private void putChunk(ByteBuffer dst) throws IOException {
+         var size = (int) Math.min(Math.min(outRemaining, MessageReader.MAX_CHUNK_SIZE),
+               dst.remaining() - CHUNK_HEADER_SIZE);
+         dst.putInt(Message.Type.CHUNK.getOpcode()).putInt(outStreamId);
+         if (!varInts) {
+            dst.putInt(size);
+         } else {
+            VarIntReader.put(dst, size);
+         }
+         var start = dst.position();
+         var oldLimit = dst.limit();
+         dst.limit(start + size);
+         while (dst.hasRemaining()) {
+            if (outFile.read(dst) == -1) {
+               throw new EOFException("File truncated while it is sent");
+            }
+         }
+         dst.limit(oldLimit);
+         outCrc.update(dst.duplicate().position(start).limit(start + size));
+         outRemaining -= size;
+         if (outRemaining == 0) {
+            endStream();
+         }
+      }
+
+      private void endStream() throws IOException {
+         logger.info("Stream sent, crc32 " + Long.toHexString(outCrc.getValue()));
+         outFile.close();
+         outFile = null;
+         outStreamId++;
+      }
+
+      /**
+       * The bytes following the answer of the server to COMPRESS, including
+       * those already in bbin, are compressed
+       *
+       * @throws IOException
+       */
+      private void startDecompression() throws IOException {
+         decompressor = new Decompressor();
+         zin = ByteBuffer.allocate(BUFFER_SIZE);
+         bbin.flip();
+         zin.put(bbin);
+         bbin.clear();
+         decompressor.decompress(zin, bbin);
+      }
+
       /**
        * Add a message to the message queue, tries to fill bbOut and updateInterestOps
+       * <p>
+       * In gathering write mode, the message is encoded into its own buffer right away.
        *
-       * @param bb
+       * @param msg
        */
-      private void queueMessage(ByteBuffer bb) {
-         queue.add(bb);
+      void queueMessage(Message msg) {
+         if (GATHERING_WRITE) {
+            try {
+               messageWriter.set(msg);
+            } catch (IllegalArgumentException e) {
+               logger.info("Cannot send " + msg + ": " + e.getMessage());
+               return;
+            }
+            var bb = ByteBuffer.allocate(messageWriter.size());
+            messageWriter.process(bb);
+            messageWriter.reset();
+            queue.add(bb.flip(), bb);
+         } else {
+            pending.add(msg);
+         }
          processOut();
          updateInterestOps();
       }
 
       /**
-       * Try to fill bbout from the message queue
+       * Try to fill bbout from the message queue, then with the chunks of the
+       * stream being sent once the queue is empty. A message larger than the room
+       * left in bbout is written in several times.
+       * <p>
+       * In gathering write mode, where the buffers are written from the queue,
+       * only queues the next chunk when the queue is empty.
        */
       private void processOut() {
-         while (!queue.isEmpty()) {
-            var bb = queue.peek();
-            if (bb.remaining() <= bbout.remaining()) {
-               queue.remove();
-               bbout.put(bb);
-            } else {
-               break;
+         try {
+            if (GATHERING_WRITE) {
+               if (queue.isEmpty() && outFile != null) {
+                  if (chunkbb == null) {
+                     chunkbb = ByteBuffer.allocate(CHUNK_HEADER_SIZE + MessageReader.MAX_CHUNK_SIZE);
+                  }
+                  chunkbb.clear();
+                  putChunk(chunkbb);
+                  queue.add(chunkbb.flip(), chunkbb);
+               }
+               return;
             }
+            while (!awaitingHello) {
+               if (!writing) {
+                  var msg = pending.poll();
+                  if (msg == null) {
+                     break;
+                  }
+                  try {
+                     messageWriter.set(msg);
+                  } catch (IllegalArgumentException e) {
+                     logger.info("Cannot send " + msg + ": " + e.getMessage());
+                     continue;
+                  }
+                  writing = true;
+               }
+               if (messageWriter.process(bbout) == Writer.ProcessStatus.PARTIAL) {
+                  break;
+               }
+               messageWriter.reset();
+               writing = false;
+            }
+            while (!writing && pending.isEmpty() && !awaitingHello && outFile != null
+                  && bbout.remaining() > CHUNK_HEADER_SIZE) {
+               putChunk(bbout);
+            }
+         } catch (IOException e) {
+            // the server waits for the rest of the stream, the connection cannot be used anymore
+            logger.log(Level.SEVERE, "Cannot read the stream being sent", e);
+            silentlyClose();
          }
       }
 
@@ -107,11 +363,14 @@ public class ClientChat {
        */
 
       private void updateInterestOps() {
+         if (!key.isValid()) {
+            return; // closed, the messages queued are never sent
+         }
          var interesOps = 0;
-         if (!closed && bbin.hasRemaining()) {
+         if (!closed && (decompressor == null ? bbin : zin).hasRemaining()) {
             interesOps = interesOps | SelectionKey.OP_READ;
          }
-         if (bbout.position() != 0) {
+         if (bbout.position() != 0 || (GATHERING_WRITE && !queue.isEmpty())) {
 //            logger.info("WRITE");
             interesOps |= SelectionKey.OP_WRITE;
          }
@@ -125,9 +384,16 @@ public class ClientChat {
       private void silentlyClose() {
          try {
             sc.close();
+            if (outFile != null) {
+               outFile.close();
+               outFile = null;
+            }
          } catch (IOException e) {
             // ignore exception
          }
+         if (decompressor != null) {
+            decompressor.close(); // frees the native memory of the Inflater now rather than at the next GC
+         }
       }
 
       /**
@@ -138,9 +404,16 @@ public class ClientChat {
        *
        * @throws IOException
        */
-      private void doRead() throws IOException {
-         if (sc.read(bbin) == -1) {
-            closed = true;
+      void doRead() throws IOException {
+         if (decompressor == null) {
+            if (sc.read(bbin) == -1) {
+               closed = true;
+            }
+         } else {
+            if (sc.read(zin) == -1) {
+               closed = true;
+            }
+            decompressor.decompress(zin, bbin);
          }
          processIn();
          updateInterestOps();
@@ -155,24 +428,51 @@ public class ClientChat {
        * @throws IOException
        */
 
-      private void doWrite() throws IOException {
-         bbout.flip();
-         sc.write(bbout);
-         bbout.compact();
-         processOut();
+      void doWrite() throws IOException {
+         if (GATHERING_WRITE) {
+            queue.write(sc, bb -> {});
+            processOut();
+         } else {
+            bbout.flip();
+            sc.write(bbout);
+            bbout.compact();
+            processOut();
+         }
          updateInterestOps();
       }
 
-      public void doConnect() throws IOException {
+      /**
+       * @return false once the connection has been closed, by either side
+       */
+      boolean isOpen() {
+         return sc.isOpen();
+      }
+
+      /**
+       * @return true once the connection is established
+       */
+      public boolean doConnect() throws IOException {
          if (!sc.finishConnect()) {
-            return; // the selector gave a bad hint
+            return false; // the selector gave a bad hint
          }
 //         logger.info("CONNECTED");
          key.interestOps(SelectionKey.OP_READ);
+         return true;
       }
    }
 
    static private int BUFFER_SIZE = 10_000;
+   static private int OUT_BUFFER_SIZE = 1_024;
+   static private int INITIAL_QUEUE_CAPACITY = 16;
+   static private int CHUNK_HEADER_SIZE = 3 * Integer.BYTES;
+   // buffers are written straight from the queue with gathering writes instead of being copied into bbout
+   static private boolean GATHERING_WRITE = Boolean.getBoolean("chaton.gatheringWrite");
+   // asks the server to compress what it sends
+   static private boolean COMPRESS = Boolean.getBoolean("chaton.compress");
+   // asks the server for the version 2 of the protocol, the messages queued in gathering mode are already encoded
+   static private boolean VAR_INTS = Boolean.getBoolean("chaton.varInts") && !GATHERING_WRITE;
+   // logins of the messages received decoded once, 0 to decode every login
+   static private int LOGIN_CACHE_SIZE = Integer.getInteger("chaton.loginCacheSize", 1_024);
    static private Logger logger = Logger.getLogger(ClientChat.class.getName());
    private static final Charset UTF = Charset.forName("UTF-8");
 
@@ -180,12 +480,21 @@ public class ClientChat {
    private final Selector selector;
    private final InetSocketAddress serverAddress;
    private final String login;
+   private final long lastSequence; // -1 to receive the whole history
    private final Thread console;
    private final ArrayBlockingQueue<String> commandQueue = new ArrayBlockingQueue<>(10);
    private Context uniqueContext;
 
    public ClientChat(String login, InetSocketAddress serverAddress) throws IOException {
+      this(login, serverAddress, -1);
+   }
+
+   /**
+    * @param lastSequence last sequence received by a previous connection, -1 to receive the whole history
+    */
+   public ClientChat(String login, InetSocketAddress serverAddress, long lastSequence) throws IOException {
       this.serverAddress = serverAddress;
+      this.lastSequence = lastSequence;
       this.login = login;
       this.sc = SocketChannel.open();
       this.selector = Selector.open();
@@ -220,24 +529,79 @@ public class ClientChat {
    }
 
    /**
-    * Processes the command from commandQueue
+    * Processes the command from commandQueue:
+    * /join room, /leave room, /room room text, /msg login text, /send file and /seq,
+    * any other line is sent to everybody
     */
 
    private void processCommands() {
       while (!commandQueue.isEmpty()) {
          var msg = commandQueue.remove();
-         var bbMsg = UTF.encode(msg);
-         var bbLogin = UTF.encode(login);
-         var bb = ByteBuffer.allocate((Integer.BYTES * 2) + bbMsg.remaining() + bbLogin.remaining());
-         bb.putInt(bbLogin.remaining()).put(bbLogin).putInt(bbMsg.remaining()).put(bbMsg);
-         uniqueContext.queueMessage(bb.flip());
+         var words = msg.split(" ", 3);
+         switch (words[0]) {
+            case "/join":
+               if (words.length == 2) {
+                  uniqueContext.queueMessage(Message.join(words[1]));
+                  continue;
+               }
+               break;
+            case "/leave":
+               if (words.length == 2) {
+                  uniqueContext.queueMessage(Message.leave(words[1]));
+                  continue;
+               }
+               break;
+            case "/room":
+               if (words.length == 3) {
+                  uniqueContext.queueMessage(Message.toRoom(words[1], login, words[2]));
+                  continue;
+               }
+               break;
+            case "/send":
+               if (words.length >= 2) {
+                  try {
+                     uniqueContext.sendStream(login, Path.of(msg.substring("/send ".length())));
+                  } catch (IOException e) {
+                     logger.info("Cannot send " + words[1] + ": " + e.getMessage());
+                  }
+                  continue;
+               }
+               break;
+            case "/seq":
+               logger.info("Last sequence received: " + uniqueContext.lastSequence);
+               continue;
+            case "/msg":
+               if (words.length == 3) {
+                  uniqueContext.queueMessage(Message.toPrivate(words[1], login, words[2]));
+                  continue;
+               }
+               break;
+            default:
+               uniqueContext.queueMessage(new Message(login, msg));
+               continue;
+         }
+         logger.info("Usage: /join room, /leave room, /room room text, /msg login text, /send file or /seq");
+      }
+   }
+
+   static private void print(Message msg) {
+      if (msg.getType() == Message.Type.STREAM) {
+         System.out.println(msg.getLogin() + " sends a stream of " + msg.getSize() + " bytes");
+         return;
       }
+      if (msg.getType() == Message.Type.ROOM) {
+         System.out.print("[" + msg.getRoom() + "] ");
+      } else if (msg.getType() == Message.Type.PRIVATE) {
+         System.out.print("[private] ");
+      }
+      System.out.println(msg.getLogin() + ": " + msg.getMessage());
    }
 
    public void launch() throws IOException {
       sc.configureBlocking(false);
       var key = sc.register(selector, SelectionKey.OP_CONNECT);
-      uniqueContext = new Context(key);
+      var logins = LOGIN_CACHE_SIZE > 0 ? new LoginCache(LOGIN_CACHE_SIZE) : null;
+      uniqueContext = new Context(key, ClientChat::print, logins);
       key.attach(uniqueContext);
       sc.connect(serverAddress);
 
@@ -256,8 +620,18 @@ public class ClientChat {
 
    private void treatKey(SelectionKey key) {
       try {
-         if (key.isValid() && key.isConnectable()) {
-            uniqueContext.doConnect();
+         if (key.isValid() && key.isConnectable() && uniqueContext.doConnect()) {
+            if (VAR_INTS) {
+               uniqueContext.hello();
+            }
+            // registers the login so that private messages can reach us before we speak
+            uniqueContext.queueMessage(Message.login(login));
+            if (COMPRESS) {
+               // before RESUME so that the replay is compressed
+               uniqueContext.queueMessage(Message.compress());
+            }
+            // replays what we missed from the history
+            uniqueContext.queueMessage(Message.resume(lastSequence));
          }
          if (key.isValid() && key.isWritable()) {
             uniqueContext.doWrite();
@@ -283,14 +657,15 @@ public class ClientChat {
 
 
    public static void main(String[] args) throws NumberFormatException, IOException {
-      if (args.length != 3) {
+      if (args.length != 3 && args.length != 4) {
          usage();
          return;
       }
-      new ClientChat(args[0], new InetSocketAddress(args[1], Integer.parseInt(args[2]))).launch();
+      var lastSequence = args.length == 4 ? Long.parseLong(args[3]) : -1;
+      new ClientChat(args[0], new InetSocketAddress(args[1], Integer.parseInt(args[2])), lastSequence).launch();
    }
 
    private static void usage() {
-      System.out.println("Usage : ClientChat login hostname port");
+      System.out.println("Usage : ClientChat login hostname port [lastSequence]");
    }
 }
@@ -0,0 +1,136 @@
+package fr.upem.net.tcp.nonblocking;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.zip.Deflater;
+
+/**
+ * Streaming compression of the bytes sent on one connection.
+ * <p>
+ * The Deflater is kept for the whole connection so that its dictionary carries
+ * across frames, and each call to write ends with a sync flush so that the peer
+ * can decode every frame given so far. The compressed bytes wait in an output
+ * buffer until writeTo sends them.
+ * <p>
+ * Writing to the compressor as a channel consumes as many bytes as the output
+ * buffer allows, so it can be used wherever a channel is written to.
+ */
+public class Compressor implements WritableByteChannel {
+
+   /**
+    * Bandwidth and CPU spent by the compressors of a thread
+    */
+   static public class Stats {
+
+      private long rawBytes;
+      private long compressedBytes;
+      private long nanos;
+
+      @Override
+      public String toString() {
+         if (rawBytes == 0) {
+            return "compression: none";
+         }
+         return "compression: " + rawBytes + " bytes -> " + compressedBytes + " bytes ("
+               + String.format("%.1f", 100.0 * compressedBytes / rawBytes) + "%), "
+               + nanos * 1_024 / rawBytes + " ns per KB";
+      }
+   }
+
+   static private final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+   // a sync flush which fills the output buffer is resumed with another one, which adds an
+   // empty stored block of at most 6 bytes: it is only resumed with room for the pending end
+   // of such a block and a whole new one, otherwise it could end the buffer again and again
+   static private final int FLUSH_ROOM = 16;
+
+   private final Deflater deflater;
+   private final ByteBuffer out; // write-mode
+   private final Stats stats;
+   private boolean flushing = false; // the last sync flush did not fit in out
+
+   /**
+    * @param level      Deflater level
+    * @param outputSize size of the output buffer, at least FLUSH_ROOM bytes
+    * @param stats      statistics of the calling thread
+    */
+   public Compressor(int level, int outputSize, Stats stats) {
+      if (outputSize < FLUSH_ROOM) {
+         throw new IllegalArgumentException("outputSize must be at least " + FLUSH_ROOM);
+      }
+      this.deflater = new Deflater(level);
+      this.out = ByteBuffer.allocate(outputSize);
+      this.stats = stats;
+   }
+
+   /**
+    * Adds bytes which are sent as is, before any compressed byte
+    *
+    * @param src in read-mode
+    * @throws java.nio.BufferOverflowException if they do not fit in the output buffer
+    */
+   public void putRaw(ByteBuffer src) {
+      if (deflater.getBytesRead() > 0) {
+         throw new IllegalStateException("The compressed stream has started");
+      }
+      out.put(src);
+   }
+
+   /**
+    * Compresses as many bytes of src as the output buffer allows
+    *
+    * @return the number of bytes consumed from src
+    */
+   @Override
+   public int write(ByteBuffer src) {
+      var start = System.nanoTime();
+      var consumed = src.remaining();
+      var before = out.position();
+      deflater.setInput(src);
+      deflater.deflate(out, Deflater.SYNC_FLUSH);
+      deflater.setInput(EMPTY); // src is about to be compacted by the caller
+      flushing = !out.hasRemaining();
+      consumed -= src.remaining();
+      stats.rawBytes += consumed;
+      stats.compressedBytes += out.position() - before;
+      stats.nanos += System.nanoTime() - start;
+      return consumed;
+   }
+
+   /**
+    * @return true if some bytes wait to be sent
+    */
+   public boolean hasPending() {
+      return out.position() > 0 || flushing;
+   }
+
+   /**
+    * Sends the pending bytes to channel, ending the last flush first if needed and if
+    * there is room for it
+    *
+    * @return the number of bytes written
+    * @throws IOException
+    */
+   public long writeTo(WritableByteChannel channel) throws IOException {
+      if (flushing && out.remaining() >= FLUSH_ROOM) {
+         write(EMPTY);
+      }
+      out.flip();
+      var written = channel.write(out);
+      out.compact();
+      return written;
+   }
+
+   @Override
+   public boolean isOpen() {
+      return true;
+   }
+
+   /**
+    * Frees the native memory of the Deflater
+    */
+   @Override
+   public void close() {
+      deflater.end();
+   }
+}
@@ -0,0 +1,296 @@
+package fr.upem.net.tcp.nonblocking;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.Deflater;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CompressorTest {
+
+    private static final List<Message> MESSAGES = List.of(
+            new Message("alice", "hello"),
+            new Message("alice", "x".repeat(1024)),
+            Message.sequenced(1L << 40, "bob", "sequenced"),
+            Message.join("room"),
+            Message.toRoom("room", "carol", "€a€"),
+            Message.toPrivate("bob", "alice", "x".repeat(300)),
+            new Message("alice", "hello"),
+            Message.leave("room"));
+
+    private static final byte[] RAW = { 0, 1, 2, 3, 4, 5, 6 };
+
+    /**
+     * Channel keeping the bytes written, at most step bytes per call to write
+     */
+    private static class Channel implements WritableByteChannel {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final int step;
+
+        private Channel(int step) {
+            this.step = step;
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            var length = Math.min(step, src.remaining());
+            var chunk = new byte[length];
+            src.get(chunk);
+            bytes.write(chunk, 0, length);
+            return length;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static ByteBuffer write(Message msg) {
+        var writer = new MessageWriter();
+        writer.set(msg);
+        var bb = ByteBuffer.allocate(writer.size());
+        assertEquals(Writer.ProcessStatus.DONE, writer.process(bb));
+        return bb.flip();
+    }
+
+    /**
+     * Every frame of MESSAGES, twice so that the second ones are compressed against the first ones
+     */
+    private static byte[] frames() {
+        var out = new ByteArrayOutputStream();
+        for (var i = 0; i < 2; i++) {
+            for (var msg : MESSAGES) {
+                var bb = write(msg);
+                out.write(bb.array(), 0, bb.remaining());
+            }
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Compresses src handing the compressor at most srcStep bytes at a time, each call to write
+     * ending with a sync flush, with an output buffer of outputSize bytes drained to a channel
+     * taking at most channelStep bytes at a time. The raw bytes, if any, are put first.
+     */
+    private static byte[] compress(byte[] src, byte[] raw, int srcStep, int outputSize, int channelStep) {
+        var compressor = new Compressor(Deflater.BEST_SPEED, outputSize, new Compressor.Stats());
+        var channel = new Channel(channelStep);
+        try {
+            if (raw != null) {
+                compressor.putRaw(ByteBuffer.wrap(raw));
+            }
+            var bb = ByteBuffer.wrap(src);
+            while (bb.hasRemaining() || compressor.hasPending()) {
+                var progress = compressor.writeTo(channel);
+                if (bb.hasRemaining()) {
+                    var slice = bb.slice(bb.position(), Math.min(srcStep, bb.remaining()));
+                    var consumed = compressor.write(slice);
+                    bb.position(bb.position() + consumed);
+                    progress += consumed;
+                }
+                assertTrue(progress > 0);
+            }
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        } finally {
+            compressor.close();
+        }
+        return channel.bytes.toByteArray();
+    }
+
+    /**
+     * Inflates src handing the decompressor at most srcStep bytes and dstStep bytes of room at a time
+     */
+    private static byte[] inflate(byte[] src, int srcStep, int dstStep) throws IOException {
+        var decompressor = new Decompressor();
+        var out = new ByteArrayOutputStream();
+        var zin = ByteBuffer.allocate(srcStep);
+        var dst = ByteBuffer.allocate(dstStep);
+        var position = 0;
+        try {
+            while (true) {
+                var length = Math.min(zin.remaining(), src.length - position);
+                zin.put(src, position, length);
+                position += length;
+                decompressor.decompress(zin, dst);
+                if (length == 0 && dst.position() == 0) {
+                    return out.toByteArray();
+                }
+                out.write(dst.array(), 0, dst.position());
+                dst.clear();
+            }
+        } finally {
+            decompressor.close();
+        }
+    }
+
+    /**
+     * Reads the messages of the compressed bytes src as ClientChat does, refilling a buffer of
+     * bufferSize bytes through the decompressor each time the reader asks for more
+     */
+    private static List<Message> read(byte[] src, int srcStep, int bufferSize) throws IOException {
+        var decompressor = new Decompressor();
+        var reader = new MessageReader();
+        var messages = new ArrayList<Message>();
+        var zin = ByteBuffer.allocate(srcStep);
+        var bbin = ByteBuffer.allocate(bufferSize);
+        var position = 0;
+        try {
+            while (true) {
+                switch (reader.process(bbin)) {
+                    case DONE:
+                        messages.add(reader.get());
+                        reader.reset();
+                        break;
+                    case REFILL:
+                        var length = Math.min(zin.remaining(), src.length - position);
+                        zin.put(src, position, length);
+                        position += length;
+                        decompressor.decompress(zin, bbin);
+                        if (length == 0 && bbin.position() == 0) {
+                            assertEquals(0, zin.position());
+                            return messages;
+                        }
+                        break;
+                    case ERROR:
+                        throw new AssertionError("invalid frame after " + messages.size() + " messages");
+                }
+            }
+        } finally {
+            decompressor.close();
+        }
+    }
+
+    private static void assertMessages(List<Message> actual) {
+        assertEquals(2 * MESSAGES.size(), actual.size());
+        for (var i = 0; i < actual.size(); i++) {
+            var expected = MESSAGES.get(i % MESSAGES.size());
+            assertEquals(expected.toString(), actual.get(i).toString(), "message " + i);
+        }
+    }
+
+    @Test
+    public void roundTrip() throws IOException {
+        var src = frames();
+        var compressed = compress(src, null, src.length, 64 * 1024, Integer.MAX_VALUE);
+        assertTrue(compressed.length < src.length);
+        assertArrayEquals(src, inflate(compressed, 1024, 1024));
+        assertMessages(read(compressed, 1024, 1024));
+    }
+
+    @Test
+    public void framesSplitAcrossSyncFlushes() throws IOException {
+        var src = frames();
+        for (var srcStep = 1; srcStep < 20; srcStep++) {
+            var compressed = compress(src, null, srcStep, 64 * 1024, Integer.MAX_VALUE);
+            assertArrayEquals(src, inflate(compressed, 1024, 1024), "srcStep " + srcStep);
+            assertMessages(read(compressed, 1024, 1024));
+        }
+    }
+
+    @Test
+    public void flushesLargerThanTheOutputBuffer() throws IOException {
+        var src = frames();
+        for (var outputSize = 16; outputSize < 40; outputSize++) {
+            for (var channelStep : new int[] { 1, 5, 6, Integer.MAX_VALUE }) {
+                var compressed = compress(src, null, 97, outputSize, channelStep);
+                assertArrayEquals(src, inflate(compressed, 1024, 1024), "outputSize " + outputSize);
+            }
+        }
+    }
+
+    @Test
+    public void outputBufferTooSmallForAFlush() {
+        assertThrows(IllegalArgumentException.class, () -> new Compressor(Deflater.BEST_SPEED, 15, new Compressor.Stats()));
+    }
+
+    @Test
+    public void inflatedInSmallSteps() throws IOException {
+        var src = frames();
+        var compressed = compress(src, null, 13, 64, 5);
+        for (var srcStep = 1; srcStep < 12; srcStep++) {
+            for (var dstStep = 1; dstStep < 12; dstStep++) {
+                assertArrayEquals(src, inflate(compressed, srcStep, dstStep));
+            }
+        }
+    }
+
+    @Test
+    public void readerRefilledThroughTheDecompressor() throws IOException {
+        var src = frames();
+        var compressed = compress(src, null, 13, 64, 5);
+        for (var srcStep = 1; srcStep < 12; srcStep++) {
+            // the smallest buffer holding the size and a byte of a string, as ClientChat's refills
+            assertMessages(read(compressed, srcStep, Integer.BYTES + 1));
+            assertMessages(read(compressed, srcStep, 1024));
+        }
+    }
+
+    @Test
+    public void eachWriteCanBeInflatedAlone() throws IOException {
+        var src = ByteBuffer.wrap(frames());
+        var compressor = new Compressor(Deflater.BEST_SPEED, 64 * 1024, new Compressor.Stats());
+        var decompressor = new Decompressor();
+        var zin = ByteBuffer.allocate(64 * 1024);
+        var inflated = ByteBuffer.allocate(src.remaining());
+        try {
+            while (src.hasRemaining()) {
+                // part of a frame, which the peer must get without waiting for the next write
+                var slice = src.slice(src.position(), Math.min(7, src.remaining()));
+                assertEquals(slice.remaining(), compressor.write(slice));
+                src.position(src.position() + slice.position());
+                var channel = new Channel(Integer.MAX_VALUE);
+                compressor.writeTo(channel);
+                assertFalse(compressor.hasPending());
+                zin.put(channel.bytes.toByteArray());
+                decompressor.decompress(zin, inflated);
+                assertEquals(src.position(), inflated.position());
+                assertEquals(0, zin.position());
+            }
+        } finally {
+            compressor.close();
+            decompressor.close();
+        }
+        assertArrayEquals(src.array(), inflated.array());
+    }
+
+    @Test
+    public void rawBytesBeforeTheCompressedStream() throws IOException {
+        var src = frames();
+        var compressed = compress(src, RAW, 11, 16, 3);
+        assertArrayEquals(RAW, Arrays.copyOf(compressed, RAW.length));
+        var rest = Arrays.copyOfRange(compressed, RAW.length, compressed.length);
+        assertArrayEquals(src, inflate(rest, 1024, 1024));
+        assertMessages(read(rest, 7, 1024));
+    }
+
+    @Test
+    public void rawBytesAfterTheCompressedStreamStarted() {
+        var compressor = new Compressor(Deflater.BEST_SPEED, 1024, new Compressor.Stats());
+        try {
+            compressor.write(write(MESSAGES.get(0)));
+            assertThrows(IllegalStateException.class, () -> compressor.putRaw(ByteBuffer.wrap(RAW)));
+        } finally {
+            compressor.close();
+        }
+    }
+
+    @Test
+    public void corruptedStream() {
+        var garbage = new byte[16];
+        Arrays.fill(garbage, (byte) 0xFF); // not a zlib header
+        assertThrows(IOException.class, () -> inflate(garbage, 1024, 1024));
+    }
+}
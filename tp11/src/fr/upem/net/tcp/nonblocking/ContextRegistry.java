@@ -0,0 +1,83 @@
+package fr.upem.net.tcp.nonblocking;
+
+import java.util.Arrays;
+
+/**
+ * Compact array of the live connections of a selector thread.
+ * <p>
+ * Each entry remembers its index so that it leaves the registry in O(1)
+ * by moving the last entry into its slot. A fan-out should loop from the
+ * last index down to 0, so that an entry removing itself during the loop
+ * neither skips nor repeats another entry.
+ * <p>
+ * Only the selector thread modifies the registry, size may be read from any thread.
+ *
+ * @param <T> type of the connection contexts
+ */
+public class ContextRegistry<T extends ContextRegistry.Entry> {
+
+   /**
+    * Connection context which can be stored in a registry
+    */
+   public interface Entry {
+
+      /**
+       * @return the index given by the registry, -1 if not registered
+       */
+      int getRegistryIndex();
+
+      void setRegistryIndex(int index);
+   }
+
+   private Entry[] entries;
+   private volatile int size = 0;
+
+   public ContextRegistry(int initialCapacity) {
+      if (initialCapacity <= 0) {
+         throw new IllegalArgumentException("initialCapacity must be positive");
+      }
+      entries = new Entry[initialCapacity];
+   }
+
+   public void add(T entry) {
+      if (entry.getRegistryIndex() != -1) {
+         throw new IllegalStateException("Already registered");
+      }
+      if (size == entries.length) {
+         entries = Arrays.copyOf(entries, entries.length * 2);
+      }
+      entry.setRegistryIndex(size);
+      entries[size] = entry;
+      size++;
+   }
+
+   /**
+    * Removes entry, does nothing if it is not registered
+    *
+    * @param entry
+    */
+   public void remove(T entry) {
+      var index = entry.getRegistryIndex();
+      if (index < 0 || index >= size || entries[index] != entry) {
+         return;
+      }
+      var last = size - 1;
+      entries[index] = entries[last];
+      entries[index].setRegistryIndex(index);
+      entries[last] = null;
+      entry.setRegistryIndex(-1);
+      size = last;
+   }
+
+   public int size() {
+      return size;
+   }
+
+   @SuppressWarnings("unchecked")
+   public T get(int index) {
+      if (index >= size) {
+         throw new IndexOutOfBoundsException(index);
+      }
+      return (T) entries[index];
+   }
+}
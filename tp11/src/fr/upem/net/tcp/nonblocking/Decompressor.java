@@ -0,0 +1,46 @@
+package fr.upem.net.tcp.nonblocking;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Streaming decompression of the bytes received on one connection, the
+ * counterpart of Compressor.
+ */
+public class Decompressor {
+
+   static private final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+   private final Inflater inflater = new Inflater();
+
+   /**
+    * Decompresses the bytes of src into dst as long as dst has room
+    *
+    * @param src compressed bytes in write-mode, compacted by the call
+    * @param dst decompressed bytes in write-mode
+    * @throws IOException if the stream is corrupted
+    */
+   public void decompress(ByteBuffer src, ByteBuffer dst) throws IOException {
+      src.flip();
+      try {
+         inflater.setInput(src);
+         while (dst.hasRemaining() && inflater.inflate(dst) > 0) {
+            // until src is consumed or dst is full
+         }
+      } catch (DataFormatException e) {
+         throw new IOException("Invalid compressed stream", e);
+      } finally {
+         inflater.setInput(EMPTY); // src is compacted below
+         src.compact();
+      }
+   }
+
+   /**
+    * Frees the native memory of the Inflater
+    */
+   public void close() {
+      inflater.end();
+   }
+}
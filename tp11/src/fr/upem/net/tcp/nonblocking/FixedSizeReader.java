@@ -0,0 +1,75 @@
+package fr.upem.net.tcp.nonblocking;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Base of the readers of values encoded on a fixed number of bytes. The bytes
+ * are accumulated in an internal buffer and decoded once they are all there.
+ *
+ * @param <T> type of the values
+ */
+public abstract class FixedSizeReader<T> implements Reader<T> {
+
+   private enum State {DONE, WAITING, ERROR}
+
+   ;
+
+   private State state = State.WAITING;
+   private final ByteBuffer internalbb; // write-mode
+
+   /**
+    * @param size number of bytes of a value
+    */
+   protected FixedSizeReader(int size) {
+      internalbb = ByteBuffer.allocate(size);
+   }
+
+   @Override
+   public ProcessStatus process(ByteBuffer bb) {
+      if (state == State.DONE || state == State.ERROR) {
+         throw new IllegalStateException();
+      }
+      bb.flip();
+      try {
+         if (bb.remaining() <= internalbb.remaining()) {
+            internalbb.put(bb);
+         } else {
+            var oldLimit = bb.limit();
+            bb.limit(internalbb.remaining());
+            internalbb.put(bb);
+            bb.limit(oldLimit);
+         }
+      } finally {
+         bb.compact();
+      }
+      if (internalbb.hasRemaining()) {
+         return ProcessStatus.REFILL;
+      }
+      state = State.DONE;
+      internalbb.flip();
+      decode(internalbb);
+      return ProcessStatus.DONE;
+   }
+
+   /**
+    * Decodes the value from the bytes read
+    *
+    * @param bb the bytes of the value in read-mode
+    */
+   protected abstract void decode(ByteBuffer bb);
+
+   /**
+    * @throws IllegalStateException if no value has been read
+    */
+   protected void checkDone() {
+      if (state != State.DONE) {
+         throw new IllegalStateException();
+      }
+   }
+
+   @Override
+   public void reset() {
+      state = State.WAITING;
+      internalbb.clear();
+   }
+}
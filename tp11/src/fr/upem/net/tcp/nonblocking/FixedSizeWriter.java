@@ -0,0 +1,86 @@
+package fr.upem.net.tcp.nonblocking;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Base of the writers of values encoded on a fixed number of bytes. The value is
+ * written straight into the buffer when it has room for all its bytes, and goes
+ * through an internal buffer otherwise.
+ *
+ * @param <T> type of the values
+ */
+public abstract class FixedSizeWriter<T> implements Writer<T> {
+
+   private enum State {DONE, WAITING, WRITING}
+
+   ;
+
+   private State state = State.WAITING;
+   private final ByteBuffer internalbb; // read-mode once the value is encoded in it
+   private boolean buffered; // the value has been encoded into internalbb
+
+   /**
+    * @param size number of bytes of a value
+    */
+   protected FixedSizeWriter(int size) {
+      internalbb = ByteBuffer.allocate(size);
+   }
+
+   /**
+    * Encodes the value into bb
+    *
+    * @param bb in write-mode with room for the bytes of the value
+    */
+   protected abstract void encode(ByteBuffer bb);
+
+   /**
+    * Called by the subclasses once they hold the value to write
+    */
+   protected void start() {
+      if (state != State.WAITING) {
+         throw new IllegalStateException();
+      }
+      state = State.WRITING;
+   }
+
+   @Override
+   public ProcessStatus process(ByteBuffer bb) {
+      if (state != State.WRITING) {
+         throw new IllegalStateException();
+      }
+      if (!buffered) {
+         if (bb.remaining() >= internalbb.capacity()) {
+            encode(bb);
+            state = State.DONE;
+            return ProcessStatus.DONE;
+         }
+         encode(internalbb);
+         internalbb.flip();
+         buffered = true;
+      }
+      if (bb.remaining() >= internalbb.remaining()) {
+         bb.put(internalbb);
+         state = State.DONE;
+         return ProcessStatus.DONE;
+      }
+      var oldLimit = internalbb.limit();
+      internalbb.limit(internalbb.position() + bb.remaining());
+      bb.put(internalbb);
+      internalbb.limit(oldLimit);
+      return ProcessStatus.PARTIAL;
+   }
+
+   /**
+    * Number of bytes of a value
+    */
+   public int size() {
+      return internalbb.capacity();
+   }
+
+   @Override
+   public void reset() {
+      state = State.WAITING;
+      internalbb.clear();
+      buffered = false;
+   }
+}
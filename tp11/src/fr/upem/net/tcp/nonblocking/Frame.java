@@ -0,0 +1,157 @@
+package fr.upem.net.tcp.nonblocking;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An encoded frame shared by all the recipients of a broadcast.
+ * <p>
+ * The buffer is in read-mode and is never modified once shared: each recipient
+ * reads it through its own read-only view, so a recipient cannot corrupt the
+ * bytes sent to the others. The frame goes back to its pool when the last holder
+ * has released it.
+ * <p>
+ * A broadcast frame starts with room for the header of a SEQUENCED frame, which
+ * is filled when the frame enters the history. The clients which asked for the
+ * sequences read the whole buffer, the other clients only the legacy frame after it.
+ */
+public class Frame {
+
+   private final FramePool pool;
+   private final ByteBuffer buffer;
+   private final AtomicInteger references = new AtomicInteger();
+   private String room; // null for a frame sent to every client
+   private String login;
+   private int loginOffset; // position of the size of the login in view
+   private int start; // size of the room left for the header of a SEQUENCED frame
+   private long sequence;
+   private Runnable onDelivered; // null unless the frame is a chunk of a stream
+
+   Frame(FramePool pool, int capacity) {
+      this.pool = pool;
+      this.buffer = ByteBuffer.allocate(capacity);
+   }
+
+   /**
+    * Buffer in write-mode used by the pool to encode the frame, then in read-mode
+    */
+   ByteBuffer buffer() {
+      return buffer;
+   }
+
+   /**
+    * Called by the pool when the frame is handed out, the caller holds the only reference
+    */
+   void acquired(String room, String login, int loginOffset, int start) {
+      this.room = room;
+      this.login = login;
+      this.loginOffset = loginOffset;
+      this.start = start;
+      this.sequence = -1;
+      this.onDelivered = null;
+      references.set(1);
+   }
+
+   /**
+    * Called by the pool when the frame of a chunk is handed out
+    *
+    * @param onDelivered called once every recipient has released the frame, from any thread
+    */
+   void acquiredChunk(Runnable onDelivered) {
+      acquired(null, null, 0, 0);
+      this.onDelivered = onDelivered;
+   }
+
+   /**
+    * @return true if the frame is a chunk of a stream, which must not be dropped
+    */
+   public boolean isChunk() {
+      return onDelivered != null;
+   }
+
+   /**
+    * @return true if the frame is a STREAM or a CHUNK frame
+    */
+   public boolean isStream() {
+      return isChunk() || (start == 0 && buffer.getInt(0) == Message.Type.STREAM.getOpcode());
+   }
+
+   /**
+    * Fills the header of the SEQUENCED frame, before the frame is shared
+    */
+   void sequence(long sequence) {
+      if (start == 0) {
+         throw new IllegalStateException("No room for a sequence");
+      }
+      this.sequence = sequence;
+      buffer.putLong(Integer.BYTES, sequence);
+   }
+
+   /**
+    * @return the sequence of the frame in the history, -1 if it is not in the history
+    */
+   public long sequence() {
+      return sequence;
+   }
+
+   /**
+    * @return the room whose members receive the frame, null if every client receives it
+    */
+   public String room() {
+      return room;
+   }
+
+   /**
+    * Returns a read-only view of the frame in read-mode with its own position
+    */
+   public ByteBuffer view() {
+      return buffer.slice(start, buffer.limit() - start).asReadOnlyBuffer();
+   }
+
+   /**
+    * Returns a read-only view in read-mode of the SEQUENCED frame if the frame
+    * has a sequence, of the frame otherwise
+    */
+   public ByteBuffer sequencedView() {
+      return sequence == -1 ? view() : buffer.asReadOnlyBuffer();
+   }
+
+   public String login() {
+      return login;
+   }
+
+   /**
+    * Position in view of the size of the login, followed by the login
+    */
+   public int loginOffset() {
+      return loginOffset;
+   }
+
+   /**
+    * Size of view, a sequenced view is SEQUENCE_HEADER_SIZE bytes longer
+    */
+   public int size() {
+      return buffer.limit() - start;
+   }
+
+   /**
+    * Adds a reference to the frame, must be balanced by a call to release
+    */
+   public Frame retain() {
+      references.incrementAndGet();
+      return this;
+   }
+
+   public void release() {
+      var remaining = references.decrementAndGet();
+      if (remaining == 0) {
+         var callback = onDelivered;
+         pool.recycle(this);
+         if (callback != null) {
+            callback.run();
+         }
+      } else if (remaining < 0) {
+         throw new IllegalStateException("Frame released too many times");
+      }
+   }
+}
@@ -0,0 +1,147 @@
+package fr.upem.net.tcp.nonblocking;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of frames encoding a Message with the wire format read by MessageReader:
+ * the opcode, if any, followed by the strings of the message each prefixed by
+ * their size as an int. The frames of the chunks of a stream are filled by
+ * the caller as the bytes arrive.
+ * <p>
+ * Frames may be acquired and released from any thread.
+ */
+public class FramePool {
+
+   static private int MAX_STRING_SIZE = 1_024; // bound enforced by StringReader
+   static public int FRAME_SIZE = Integer.BYTES + 3 * (Integer.BYTES + MAX_STRING_SIZE);
+   // opcode and sequence of a SEQUENCED frame, reserved in front of the broadcast frames
+   static public int SEQUENCE_HEADER_SIZE = Integer.BYTES + Long.BYTES;
+   static public int SEQUENCED_FRAME_SIZE = SEQUENCE_HEADER_SIZE + FRAME_SIZE;
+
+   private final Queue<Frame> frames = new ConcurrentLinkedQueue<>();
+   private final AtomicInteger pooled = new AtomicInteger();
+   private final int maxPooled;
+
+   /**
+    * @param maxPooled number of free frames kept, frames released above that are left to the GC
+    */
+   public FramePool(int maxPooled) {
+      this.maxPooled = maxPooled;
+   }
+
+   /**
+    * Encodes msg into a frame. The caller holds the only reference to the returned frame.
+    *
+    * @param msg
+    * @param encoder UTF-8 encoder owned by the calling thread
+    * @return a frame in read-mode, or null if a string of msg is encoded in more than
+    * MAX_STRING_SIZE bytes, which no StringReader would accept. A string decoded with
+    * replacement chars may grow by re-encoding, so the caller must drop such a message.
+    */
+   public Frame encode(Message msg, CharsetEncoder encoder) {
+      var frame = poll();
+      var bb = frame.buffer();
+      var start = 0;
+      switch (msg.getType()) {
+         case BROADCAST:
+            bb.putInt(Message.Type.SEQUENCED.getOpcode()).putLong(-1);
+            start = SEQUENCE_HEADER_SIZE;
+            break;
+         case ROOM:
+            bb.putInt(msg.getType().getOpcode());
+            if (!putString(msg.getRoom(), bb, encoder)) {
+               recycle(frame);
+               return null;
+            }
+            break;
+         case PRIVATE:
+            bb.putInt(msg.getType().getOpcode());
+            if (!putString(msg.getRecipient(), bb, encoder)) {
+               recycle(frame);
+               return null;
+            }
+            break;
+         case STREAM:
+            bb.putInt(msg.getType().getOpcode()).putInt(msg.getStreamId()).putLong(msg.getSize());
+            break;
+         case HELLO:
+            bb.putInt(msg.getType().getOpcode()).putInt(msg.getVersion()).flip();
+            frame.acquired(null, null, 0, 0);
+            return frame;
+         default:
+            throw new IllegalArgumentException("Only chat messages are sent to clients: " + msg.getType());
+      }
+      var loginOffset = bb.position() - start;
+      if (!putString(msg.getLogin(), bb, encoder)
+            || (msg.getType() != Message.Type.STREAM && !putString(msg.getMessage(), bb, encoder))) {
+         recycle(frame);
+         return null;
+      }
+      bb.flip();
+      frame.acquired(msg.getRoom(), msg.getLogin(), loginOffset, start);
+      return frame;
+   }
+
+   /**
+    * Returns a frame holding the header of a CHUNK of size bytes. The caller fills
+    * the buffer of the frame with the bytes of the chunk and flips it before sharing
+    * the frame, it holds the only reference to the frame.
+    *
+    * @param onDelivered called once every recipient has released the frame, from any thread
+    * @return a frame whose buffer is in write-mode
+    */
+   public Frame chunk(int streamId, int size, Runnable onDelivered) {
+      if (size > MessageReader.MAX_CHUNK_SIZE) {
+         throw new IllegalArgumentException("Chunk too large for a frame: " + size);
+      }
+      var frame = poll();
+      frame.buffer().putInt(Message.Type.CHUNK.getOpcode()).putInt(streamId).putInt(size);
+      frame.acquiredChunk(onDelivered);
+      return frame;
+   }
+
+   private Frame poll() {
+      var frame = frames.poll();
+      if (frame == null) {
+         return new Frame(this, SEQUENCED_FRAME_SIZE);
+      }
+      pooled.decrementAndGet();
+      frame.buffer().clear();
+      return frame;
+   }
+
+   /**
+    * Writes the size of the encoded string followed by its bytes without intermediate buffer
+    *
+    * @return false if the string is encoded in more than MAX_STRING_SIZE bytes
+    */
+   static private boolean putString(String s, ByteBuffer bb, CharsetEncoder encoder) {
+      var sizePosition = bb.position();
+      var limit = bb.limit();
+      bb.position(sizePosition + Integer.BYTES);
+      bb.limit(bb.position() + MAX_STRING_SIZE);
+      encoder.reset();
+      try {
+         if (!encoder.encode(CharBuffer.wrap(s), bb, true).isUnderflow() || !encoder.flush(bb).isUnderflow()) {
+            return false;
+         }
+      } finally {
+         bb.limit(limit);
+      }
+      bb.putInt(sizePosition, bb.position() - sizePosition - Integer.BYTES);
+      return true;
+   }
+
+   void recycle(Frame frame) {
+      if (pooled.incrementAndGet() > maxPooled) {
+         pooled.decrementAndGet();
+         return;
+      }
+      frames.add(frame);
+   }
+}
@@ -0,0 +1,58 @@
+package fr.upem.net.tcp.nonblocking;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FramePoolTest {
+
+    /**
+     * String decoded by StringReader from the 1024 bytes 0xFF, each byte becomes a U+FFFD
+     * encoded in 3 bytes
+     */
+    private static String decodedGarbage() {
+        var bb = ByteBuffer.allocate(Integer.BYTES + 1024);
+        bb.putInt(1024);
+        while (bb.hasRemaining()) {
+            bb.put((byte) 0xFF);
+        }
+        var sr = new StringReader();
+        assertEquals(Reader.ProcessStatus.DONE, sr.process(bb));
+        return sr.get();
+    }
+
+    @Test
+    public void encodesLongestStrings() {
+        var pool = new FramePool(1);
+        var frame = pool.encode(Message.toRoom("r".repeat(1024), "l".repeat(1024), "€".repeat(341)),
+                StandardCharsets.UTF_8.newEncoder());
+        assertNotNull(frame);
+        assertEquals(4 + 3 * 4 + 2 * 1024 + 3 * 341, frame.buffer().remaining());
+        frame.release();
+    }
+
+    @Test
+    public void rejectsStringTooLongOnceEncoded() {
+        var pool = new FramePool(1);
+        var garbage = decodedGarbage();
+        var encoder = StandardCharsets.UTF_8.newEncoder();
+        assertNull(pool.encode(new Message(garbage, garbage), encoder));
+        assertNull(pool.encode(new Message("alice", garbage), encoder));
+        assertNull(pool.encode(Message.toRoom(garbage, "alice", "hello"), encoder));
+        assertNull(pool.encode(Message.toPrivate(garbage, "alice", "hello"), encoder));
+        assertNull(pool.encode(Message.stream(1, 10, garbage), encoder));
+    }
+
+    @Test
+    public void rejectedFrameIsReused() {
+        var pool = new FramePool(1);
+        var encoder = StandardCharsets.UTF_8.newEncoder();
+        assertNull(pool.encode(new Message("alice", decodedGarbage()), encoder));
+        var frame = pool.encode(new Message("alice", "hello"), encoder);
+        assertEquals(FramePool.SEQUENCE_HEADER_SIZE + 2 * 4 + 5 + 5, frame.buffer().remaining());
+        frame.release();
+    }
+}
@@ -0,0 +1,171 @@
+package fr.upem.net.tcp.nonblocking;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.Arrays;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Array-backed queue of buffers in read-mode, each one associated with the item it encodes.
+ * <p>
+ * The queued buffers are contiguous in an array so that they can be flushed by a
+ * single gathering write. A buffer which is only partially written stays at the
+ * head of the queue with its current position.
+ *
+ * @param <T> type of the items, for instance the frame owning the buffer
+ */
+public class GatheringQueue<T> {
+
+   static private int MAX_BUFFERS_PER_WRITE = 64; // well below IOV_MAX
+
+   private ByteBuffer[] buffers;
+   private Object[] items;
+   private int head = 0;
+   private int tail = 0;
+
+   public GatheringQueue(int initialCapacity) {
+      if (initialCapacity <= 0) {
+         throw new IllegalArgumentException("initialCapacity must be positive");
+      }
+      buffers = new ByteBuffer[initialCapacity];
+      items = new Object[initialCapacity];
+   }
+
+   public void add(T item, ByteBuffer buffer) {
+      if (tail == buffers.length) {
+         makeRoom();
+      }
+      buffers[tail] = buffer;
+      items[tail] = item;
+      tail++;
+   }
+
+   /**
+    * Moves the queued elements to the start of the arrays, or grows them
+    * when they are already full
+    */
+   private void makeRoom() {
+      var size = size();
+      if (head == 0) {
+         buffers = Arrays.copyOf(buffers, buffers.length * 2);
+         items = Arrays.copyOf(items, items.length * 2);
+         return;
+      }
+      System.arraycopy(buffers, head, buffers, 0, size);
+      System.arraycopy(items, head, items, 0, size);
+      Arrays.fill(buffers, size, tail, null);
+      Arrays.fill(items, size, tail, null);
+      head = 0;
+      tail = size;
+   }
+
+   public int size() {
+      return tail - head;
+   }
+
+   public boolean isEmpty() {
+      return head == tail;
+   }
+
+   /**
+    * Returns the buffer at the head of the queue or null if the queue is empty
+    */
+   public ByteBuffer peekBuffer() {
+      return isEmpty() ? null : buffers[head];
+   }
+
+   /**
+    * Returns the buffer of the element at index from the head, or null if the queue
+    * holds no more than index elements
+    */
+   public ByteBuffer peekBuffer(int index) {
+      return index < size() ? buffers[head + index] : null;
+   }
+
+   /**
+    * Removes the head of the queue
+    *
+    * @return the item of the head or null if the queue is empty
+    */
+   public T poll() {
+      if (isEmpty()) {
+         return null;
+      }
+      var item = item(head);
+      buffers[head] = null;
+      items[head] = null;
+      head++;
+      if (head == tail) {
+         head = tail = 0;
+      }
+      return item;
+   }
+
+   /**
+    * Removes the oldest element accepted by filter whose buffer has not been read yet.
+    * Only the head can have been read. The elements in front of the removed one keep
+    * their order.
+    *
+    * @return the removed item or null if there is no such element
+    */
+   public T pollUnstarted(Predicate<? super T> filter) {
+      var first = head;
+      if (first < tail && buffers[first].position() > 0) {
+         first++;
+      }
+      for (var i = first; i < tail; i++) {
+         var item = item(i);
+         if (!filter.test(item)) {
+            continue;
+         }
+         if (i == head) {
+            return poll();
+         }
+         System.arraycopy(buffers, head, buffers, head + 1, i - head);
+         System.arraycopy(items, head, items, head + 1, i - head);
+         buffers[head] = null;
+         items[head] = null;
+         head++;
+         return item;
+      }
+      return null;
+   }
+
+   /**
+    * Performs a single gathering write of the queued buffers on channel.
+    * Each fully written element is removed from the queue and given to onWritten.
+    *
+    * @param channel
+    * @param onWritten
+    * @return the number of bytes written
+    * @throws IOException
+    */
+   public long write(GatheringByteChannel channel, Consumer<? super T> onWritten) throws IOException {
+      if (isEmpty()) {
+         return 0;
+      }
+      var written = channel.write(buffers, head, Math.min(size(), MAX_BUFFERS_PER_WRITE));
+      while (!isEmpty() && !buffers[head].hasRemaining()) {
+         onWritten.accept(poll());
+      }
+      return written;
+   }
+
+   /**
+    * Empties the queue giving each item to onDiscard
+    *
+    * @param onDiscard
+    */
+   public void clear(Consumer<? super T> onDiscard) {
+      while (!isEmpty()) {
+         onDiscard.accept(poll());
+      }
+   }
+
+   @SuppressWarnings("unchecked")
+   private T item(int index) {
+      return (T) items[index];
+   }
+}
@@ -0,0 +1,112 @@
+package fr.upem.net.tcp.nonblocking;
+
+import java.util.Arrays;
+
+/**
+ * Histogram of non negative long values with a relative precision of about 6%.
+ * <p>
+ * Values below 16 have their own bucket, above that every power of two is split
+ * into 16 linear buckets. Recording never allocates. A histogram is meant to be
+ * written by a single thread.
+ */
+public class Histogram {
+
+   static private int SUB_BUCKET_BITS = 4;
+   static private int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+   static private int BUCKETS = SUB_BUCKETS + (Long.SIZE - 1 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+   private final long[] counts = new long[BUCKETS];
+   private long count;
+   private long sum;
+   private long max;
+
+   public void record(long value) {
+      if (value < 0) {
+         value = 0;
+      }
+      counts[bucket(value)]++;
+      count++;
+      sum += value;
+      if (value > max) {
+         max = value;
+      }
+   }
+
+   static private int bucket(long value) {
+      if (value < SUB_BUCKETS) {
+         return (int) value;
+      }
+      var exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+      var shift = exponent - SUB_BUCKET_BITS;
+      var subBucket = (int) (value >>> shift) - SUB_BUCKETS;
+      return SUB_BUCKETS + shift * SUB_BUCKETS + subBucket;
+   }
+
+   /**
+    * Greatest value which falls in bucket
+    */
+   static private long upperBound(int bucket) {
+      if (bucket < SUB_BUCKETS) {
+         return bucket;
+      }
+      var shift = (bucket - SUB_BUCKETS) / SUB_BUCKETS;
+      var subBucket = (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+      return ((long) (SUB_BUCKETS + subBucket + 1) << shift) - 1;
+   }
+
+   public long count() {
+      return count;
+   }
+
+   public long max() {
+      return max;
+   }
+
+   public double mean() {
+      return count == 0 ? 0 : (double) sum / count;
+   }
+
+   /**
+    * @param quantile between 0 and 1, for instance 0.99
+    * @return an upper bound of the value below which lies the given fraction of the values
+    */
+   public long valueAt(double quantile) {
+      if (count == 0) {
+         return 0;
+      }
+      var rank = (long) Math.ceil(quantile * count);
+      var seen = 0L;
+      for (var bucket = 0; bucket < counts.length; bucket++) {
+         seen += counts[bucket];
+         if (seen >= rank && seen > 0) {
+            return Math.min(upperBound(bucket), max);
+         }
+      }
+      return max;
+   }
+
+   /**
+    * Adds the values recorded by other to this histogram
+    */
+   public void add(Histogram other) {
+      for (var bucket = 0; bucket < counts.length; bucket++) {
+         counts[bucket] += other.counts[bucket];
+      }
+      count += other.count;
+      sum += other.sum;
+      max = Math.max(max, other.max);
+   }
+
+   public void reset() {
+      Arrays.fill(counts, 0);
+      count = 0;
+      sum = 0;
+      max = 0;
+   }
+
+   @Override
+   public String toString() {
+      return "count=" + count + " mean=" + String.format("%.1f", mean()) + " p50=" + valueAt(0.5)
+            + " p99=" + valueAt(0.99) + " p999=" + valueAt(0.999) + " max=" + max;
+   }
+}
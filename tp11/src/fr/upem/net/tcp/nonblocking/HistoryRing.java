@@ -0,0 +1,168 @@
+package fr.upem.net.tcp.nonblocking;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Off-heap ring of the last broadcast frames, each one numbered by a sequence
+ * increasing by one per frame.
+ * <p>
+ * The entries are stored in a direct buffer with their wire format, a SEQUENCED
+ * frame, so that a replay writes them to a channel straight from the ring. The
+ * ring keeps at most maxFrames entries and the oldest entries are overwritten
+ * when the bytes of a new entry are needed.
+ * <p>
+ * The ring is shared by all the threads of a server, every method holds its lock
+ * except during the write of a replay to its channel.
+ */
+public class HistoryRing {
+
+   /**
+    * Position of a client replaying the history, only used by the thread of its connection
+    */
+   static public class Cursor {
+
+      private final ByteBuffer view; // duplicate of the ring
+      private final long end; // first sequence not replayed, sent live instead
+      private long next;
+      private int offset = 0; // bytes of entry next already written
+
+      private Cursor(ByteBuffer view, long next, long end) {
+         this.view = view;
+         this.next = next;
+         this.end = end;
+      }
+
+      public boolean isDone() {
+         return next >= end;
+      }
+
+      /**
+       * @return the first sequence not replayed
+       */
+      public long end() {
+         return end;
+      }
+   }
+
+   private final ByteBuffer ring; // position only used by append
+   private final int[] offsets; // offset of the entry of sequence s at s % maxFrames
+   private final int[] sizes;
+   private long first = 0; // oldest sequence in the ring
+   private long next = 0; // sequence of the next entry
+   private int tail = 0; // offset of the next entry
+
+   /**
+    * @param maxFrames number of entries kept
+    * @param capacity  bytes of the ring, at least the size of the biggest frame
+    */
+   public HistoryRing(int maxFrames, int capacity) {
+      if (maxFrames <= 0 || capacity < FramePool.SEQUENCED_FRAME_SIZE) {
+         throw new IllegalArgumentException("History too small");
+      }
+      ring = ByteBuffer.allocateDirect(capacity);
+      offsets = new int[maxFrames];
+      sizes = new int[maxFrames];
+   }
+
+   /**
+    * Gives the next sequence to frame and copies it in the ring
+    *
+    * @param frame a frame with room for a sequence
+    */
+   public synchronized void append(Frame frame) {
+      frame.sequence(next);
+      var bb = frame.buffer();
+      var size = bb.limit();
+      if (tail + size > ring.capacity()) {
+         while (first < next && offsetOf(first) >= tail) {
+            first++; // the entries at the end of the ring are the oldest ones
+         }
+         tail = 0;
+      }
+      while (first < next && (next - first == offsets.length
+            || (offsetOf(first) >= tail && offsetOf(first) < tail + size))) {
+         first++;
+      }
+      ring.position(tail);
+      ring.put(bb.array(), bb.arrayOffset(), size);
+      offsets[index(next)] = tail;
+      sizes[index(next)] = size;
+      tail += size;
+      next++;
+   }
+
+   /**
+    * Starts a replay of the entries following lastSequence up to the current entry,
+    * the following frames are sent live with their sequence.
+    *
+    * @param lastSequence last sequence received by the client, -1 to replay the whole ring
+    */
+   public synchronized Cursor cursor(long lastSequence) {
+      return new Cursor(ring.duplicate(), Math.max(lastSequence + 1, first), next);
+   }
+
+   /**
+    * Writes to channel the contiguous entries of the ring following the position
+    * of cursor, and moves it forward.
+    * <p>
+    * Entries overwritten before being replayed are skipped. The lock is not held
+    * during the write to channel, so the appends of the other threads do not wait
+    * for it, and the entries written are checked afterwards to be still in the ring.
+    *
+    * @return the number of bytes written, -1 if an entry partially written was overwritten
+    * @throws IOException
+    */
+   public long write(WritableByteChannel channel, Cursor cursor) throws IOException {
+      int start;
+      long runEnd;
+      synchronized (this) {
+         if (cursor.next < first) {
+            if (cursor.offset > 0) {
+               return -1;
+            }
+            cursor.next = first;
+         }
+         if (cursor.isDone()) {
+            return 0;
+         }
+         start = offsetOf(cursor.next) + cursor.offset;
+         var limit = offsetOf(cursor.next) + sizes[index(cursor.next)];
+         runEnd = cursor.next + 1; // the run stops where the ring wraps
+         for (; runEnd < cursor.end && offsetOf(runEnd) == limit; runEnd++) {
+            limit += sizes[index(runEnd)];
+         }
+         cursor.view.limit(limit).position(start);
+      }
+      var written = channel.write(cursor.view);
+      synchronized (this) {
+         if (cursor.next < first) {
+            // the oldest entries are overwritten first, so the bytes written may be corrupted
+            return written > 0 || cursor.offset > 0 ? -1 : 0;
+         }
+         var position = start + written;
+         while (cursor.next < runEnd && offsetOf(cursor.next) + sizes[index(cursor.next)] <= position) {
+            cursor.next++;
+         }
+         cursor.offset = cursor.next == runEnd ? 0 : position - offsetOf(cursor.next);
+      }
+      return written;
+   }
+
+   public synchronized int frames() {
+      return (int) (next - first);
+   }
+
+   public int capacity() {
+      return ring.capacity();
+   }
+
+   private int index(long sequence) {
+      return (int) (sequence % offsets.length);
+   }
+
+   private int offsetOf(long sequence) {
+      return offsets[index(sequence)];
+   }
+}
@@ -0,0 +1,255 @@
+package fr.upem.net.tcp.nonblocking;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static fr.upem.net.tcp.nonblocking.Reader.ProcessStatus.DONE;
+import static fr.upem.net.tcp.nonblocking.Reader.ProcessStatus.REFILL;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class HistoryRingTest {
+
+    private static final int CAPACITY = FramePool.SEQUENCED_FRAME_SIZE;
+    private static final int ENTRY_SIZE = 1_000;
+
+    private final FramePool pool = new FramePool(16);
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+
+    /**
+     * Channel keeping the bytes written, at most step bytes per call to write.
+     * The action, if any, runs during the next call to write, once the bytes are taken.
+     */
+    private static class Channel implements WritableByteChannel {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final int step;
+        private Runnable action;
+
+        private Channel(int step) {
+            this.step = step;
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            var length = Math.min(step, src.remaining());
+            var chunk = new byte[length];
+            src.get(chunk);
+            bytes.write(chunk, 0, length);
+            if (action != null) {
+                var run = action;
+                action = null;
+                run.run();
+            }
+            return length;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * Appends a broadcast whose SEQUENCED frame is size bytes long, its message is its rank
+     * padded with dots
+     */
+    private void append(HistoryRing ring, int rank, int size) {
+        var text = String.valueOf(rank);
+        var frame = pool.encode(new Message("a", text + ".".repeat(size - FramePool.SEQUENCE_HEADER_SIZE
+                - 2 * Integer.BYTES - 1 - text.length())), encoder);
+        assertEquals(size, frame.buffer().remaining());
+        ring.append(frame);
+        frame.release();
+    }
+
+    private void append(HistoryRing ring, int count) {
+        for (var i = 0; i < count; i++) {
+            append(ring, i, ENTRY_SIZE);
+        }
+    }
+
+    /**
+     * Writes the whole replay of cursor to channel
+     */
+    private static void replay(HistoryRing ring, HistoryRing.Cursor cursor, Channel channel) throws Exception {
+        while (!cursor.isDone()) {
+            assertNotEquals(-1, ring.write(channel, cursor));
+        }
+    }
+
+    /**
+     * Decodes the SEQUENCED frames written to channel
+     */
+    private static List<Message> decode(Channel channel) {
+        var bytes = channel.bytes.toByteArray();
+        var bb = ByteBuffer.allocate(bytes.length).put(bytes);
+        var reader = new MessageReader();
+        var messages = new ArrayList<Message>();
+        Reader.ProcessStatus status;
+        while ((status = reader.process(bb)) == DONE) {
+            messages.add(reader.get());
+            reader.reset();
+        }
+        assertEquals(REFILL, status);
+        assertEquals(0, bb.position());
+        return messages;
+    }
+
+    /**
+     * Checks that the messages are the entries from the sequence first to the sequence last,
+     * the entry of sequence s being appended with the rank s
+     */
+    private static void assertSequences(long first, long last, List<Message> messages) {
+        assertEquals(last - first + 1, messages.size());
+        for (var i = 0; i < messages.size(); i++) {
+            var msg = messages.get(i);
+            assertEquals(first + i, msg.getSequence());
+            assertTrue(msg.getMessage().startsWith((first + i) + "."), msg.getMessage());
+        }
+    }
+
+    @Test
+    public void replayWhole() throws Exception {
+        var ring = new HistoryRing(16, CAPACITY);
+        append(ring, 3);
+        assertEquals(3, ring.frames());
+        var channel = new Channel(Integer.MAX_VALUE);
+        replay(ring, ring.cursor(-1), channel);
+        assertSequences(0, 2, decode(channel));
+    }
+
+    @Test
+    public void wrapsWhenTheEntryDoesNotFitAtTheEnd() throws Exception {
+        var ring = new HistoryRing(16, CAPACITY);
+        append(ring, 3); // 3000 of the 3100 bytes
+        append(ring, 3, ENTRY_SIZE); // goes at offset 0, overwriting the sequence 0
+        assertEquals(3, ring.frames());
+        var channel = new Channel(Integer.MAX_VALUE);
+        replay(ring, ring.cursor(-1), channel);
+        assertSequences(1, 3, decode(channel));
+    }
+
+    @Test
+    public void wrapsInTheMiddleOfAReplay() throws Exception {
+        var ring = new HistoryRing(16, CAPACITY);
+        append(ring, 4);
+        var channel = new Channel(7); // stops in the middle of the entries
+        replay(ring, ring.cursor(-1), channel);
+        assertSequences(1, 3, decode(channel));
+    }
+
+    @Test
+    public void wrapEvictsTheEntriesAfterTheTail() throws Exception {
+        var ring = new HistoryRing(16, CAPACITY);
+        append(ring, 0, 1_040);
+        append(ring, 1, 1_040);
+        append(ring, 2, 1_000); // tail at 3080
+        append(ring, 3, 1_000); // wraps to offset 0, overwriting the sequence 0
+        append(ring, 4, 1_040); // overwrites the sequence 1
+        append(ring, 5, 30); // tail at 2070, the sequence 2 is still at 2080
+        append(ring, 6, 1_040); // wraps, the sequence 2 after the tail goes before the sequences 3 and 4
+        assertEquals(2, ring.frames());
+        var channel = new Channel(Integer.MAX_VALUE);
+        replay(ring, ring.cursor(-1), channel);
+        assertSequences(5, 6, decode(channel));
+    }
+
+    @Test
+    public void evictionByMaxFrames() throws Exception {
+        var ring = new HistoryRing(3, 10 * CAPACITY);
+        for (var i = 0; i < 5; i++) {
+            append(ring, i, 100);
+        }
+        assertEquals(3, ring.frames());
+        var channel = new Channel(Integer.MAX_VALUE);
+        replay(ring, ring.cursor(-1), channel);
+        assertSequences(2, 4, decode(channel));
+    }
+
+    @Test
+    public void evictionByBytes() throws Exception {
+        var ring = new HistoryRing(100, CAPACITY);
+        append(ring, 5); // 3 entries of 1000 bytes fit in the ring
+        assertEquals(3, ring.frames());
+        var channel = new Channel(Integer.MAX_VALUE);
+        replay(ring, ring.cursor(-1), channel);
+        assertSequences(2, 4, decode(channel));
+    }
+
+    @Test
+    public void cursorOlderThanTheFirstEntry() throws Exception {
+        var ring = new HistoryRing(100, CAPACITY);
+        append(ring, 5);
+        var channel = new Channel(Integer.MAX_VALUE);
+        var cursor = ring.cursor(0); // sequence 1 is already overwritten
+        assertEquals(5, cursor.end());
+        replay(ring, cursor, channel);
+        assertSequences(2, 4, decode(channel));
+    }
+
+    @Test
+    public void cursorAfterTheLastEntry() throws Exception {
+        var ring = new HistoryRing(100, CAPACITY);
+        append(ring, 3);
+        var cursor = ring.cursor(2);
+        assertTrue(cursor.isDone());
+        assertEquals(0, ring.write(new Channel(Integer.MAX_VALUE), cursor));
+    }
+
+    @Test
+    public void entriesOverwrittenBeforeTheirReplayAreSkipped() throws Exception {
+        var ring = new HistoryRing(100, CAPACITY);
+        append(ring, 3);
+        var cursor = ring.cursor(-1);
+        for (var i = 3; i < 5; i++) {
+            append(ring, i, ENTRY_SIZE);
+        }
+        var channel = new Channel(Integer.MAX_VALUE);
+        replay(ring, cursor, channel);
+        assertSequences(2, 2, decode(channel)); // the frames 3 and 4 are sent live
+    }
+
+    @Test
+    public void entryPartiallyWrittenThenOverwritten() throws Exception {
+        var ring = new HistoryRing(100, CAPACITY);
+        append(ring, 3);
+        var cursor = ring.cursor(-1);
+        var channel = new Channel(10);
+        assertEquals(10, ring.write(channel, cursor));
+        append(ring, 3, ENTRY_SIZE); // overwrites the sequence 0 being replayed
+        assertEquals(-1, ring.write(channel, cursor));
+    }
+
+    @Test
+    public void entryOverwrittenDuringTheWrite() throws Exception {
+        var ring = new HistoryRing(100, CAPACITY);
+        append(ring, 3);
+        var cursor = ring.cursor(-1);
+        var channel = new Channel(10);
+        channel.action = () -> append(ring, 3, ENTRY_SIZE); // while the lock is not held
+        assertEquals(-1, ring.write(channel, cursor));
+    }
+
+    @Test
+    public void replayNotAffectedByLaterOverwrites() throws Exception {
+        var ring = new HistoryRing(100, CAPACITY);
+        append(ring, 3);
+        var cursor = ring.cursor(-1);
+        var channel = new Channel(Integer.MAX_VALUE);
+        assertEquals(3 * ENTRY_SIZE, ring.write(channel, cursor)); // every entry of the cursor
+        assertTrue(cursor.isDone());
+        append(ring, 3, ENTRY_SIZE);
+        assertEquals(0, ring.write(channel, cursor));
+        assertSequences(0, 2, decode(channel));
+    }
+}
@@ -0,0 +1,30 @@
+package fr.upem.net.tcp.nonblocking;
+
+import java.nio.ByteBuffer;
+
+public class IntWriter extends FixedSizeWriter<Integer> {
+
+   private int value;
+
+   public IntWriter() {
+      super(Integer.BYTES);
+   }
+
+   @Override
+   protected void encode(ByteBuffer bb) {
+      bb.putInt(value);
+   }
+
+   /**
+    * Same as set without boxing the value
+    */
+   public void setInt(int value) {
+      start();
+      this.value = value;
+   }
+
+   @Override
+   public void set(Integer value) {
+      setInt(value);
+   }
+}
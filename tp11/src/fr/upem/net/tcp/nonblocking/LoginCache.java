@@ -0,0 +1,180 @@
+package fr.upem.net.tcp.nonblocking;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Bounded cache of decoded logins keyed by their bytes in UTF-8, evicting the
+ * least recently used login when it is full.
+ * <p>
+ * The entries are kept in parallel arrays: a chained hash table gives the entry
+ * of some bytes, and a doubly-linked list orders the entries from the most to the
+ * least recently used. Looking up bytes neither allocates nor decodes anything.
+ * Logins longer than MAX_LOGIN_SIZE bytes are not cached. A cache is meant to be
+ * used by a single thread.
+ */
+public class LoginCache {
+
+   static private int MAX_LOGIN_SIZE = 64;
+   static private int NONE = -1;
+
+   private final int capacity;
+   private final int[] buckets; // first entry of each chain, NONE if empty
+   private final int[] chains; // next entry in the same chain
+   private final int[] hashes;
+   private final byte[][] keys;
+   private final String[] logins;
+   private final int[] newer; // previous entry in the list, NONE for the most recent
+   private final int[] older; // next entry in the list, NONE for the least recent
+   private int mostRecent = NONE;
+   private int leastRecent = NONE;
+   private int size;
+   private long hits;
+   private long misses;
+
+   /**
+    * @param capacity maximal number of logins kept
+    */
+   public LoginCache(int capacity) {
+      if (capacity <= 0) {
+         throw new IllegalArgumentException("Capacity must be positive");
+      }
+      this.capacity = capacity;
+      buckets = new int[Integer.highestOneBit(capacity * 2 - 1) << 1];
+      Arrays.fill(buckets, NONE);
+      chains = new int[capacity];
+      hashes = new int[capacity];
+      keys = new byte[capacity][];
+      logins = new String[capacity];
+      newer = new int[capacity];
+      older = new int[capacity];
+   }
+
+   /**
+    * Returns the login encoded by the remaining bytes of bytes, null if it is not
+    * in the cache. The position of bytes is not changed.
+    *
+    * @param bytes in read-mode
+    */
+   public String get(ByteBuffer bytes) {
+      if (bytes.remaining() > MAX_LOGIN_SIZE) {
+         return null;
+      }
+      var hash = hash(bytes);
+      for (var entry = buckets[hash & (buckets.length - 1)]; entry != NONE; entry = chains[entry]) {
+         if (hashes[entry] == hash && matches(keys[entry], bytes)) {
+            hits++;
+            unlink(entry);
+            linkFirst(entry);
+            return logins[entry];
+         }
+      }
+      misses++;
+      return null;
+   }
+
+   /**
+    * Adds login, whose encoding is the remaining bytes of bytes and which is not
+    * in the cache, evicting the least recently used login if the cache is full.
+    * The position of bytes is not changed.
+    *
+    * @param bytes in read-mode
+    * @param login
+    */
+   public void put(ByteBuffer bytes, String login) {
+      if (bytes.remaining() > MAX_LOGIN_SIZE) {
+         return;
+      }
+      int entry;
+      if (size < capacity) {
+         entry = size++;
+      } else {
+         entry = leastRecent;
+         unlink(entry);
+         removeFromChain(entry);
+      }
+      var hash = hash(bytes);
+      var key = keys[entry];
+      if (key == null || key.length != bytes.remaining()) {
+         key = new byte[bytes.remaining()];
+         keys[entry] = key;
+      }
+      bytes.get(bytes.position(), key);
+      hashes[entry] = hash;
+      logins[entry] = login;
+      var bucket = hash & (buckets.length - 1);
+      chains[entry] = buckets[bucket];
+      buckets[bucket] = entry;
+      linkFirst(entry);
+   }
+
+   public int size() {
+      return size;
+   }
+
+   public long hits() {
+      return hits;
+   }
+
+   public long misses() {
+      return misses;
+   }
+
+   static private int hash(ByteBuffer bytes) {
+      var hash = 1;
+      for (var i = bytes.position(); i < bytes.limit(); i++) {
+         hash = 31 * hash + bytes.get(i);
+      }
+      return hash ^ (hash >>> 16);
+   }
+
+   static private boolean matches(byte[] key, ByteBuffer bytes) {
+      if (key.length != bytes.remaining()) {
+         return false;
+      }
+      var position = bytes.position();
+      for (var i = 0; i < key.length; i++) {
+         if (key[i] != bytes.get(position + i)) {
+            return false;
+         }
+      }
+      return true;
+   }
+
+   private void removeFromChain(int entry) {
+      var bucket = hashes[entry] & (buckets.length - 1);
+      if (buckets[bucket] == entry) {
+         buckets[bucket] = chains[entry];
+         return;
+      }
+      var previous = buckets[bucket];
+      while (chains[previous] != entry) {
+         previous = chains[previous];
+      }
+      chains[previous] = chains[entry];
+   }
+
+   private void unlink(int entry) {
+      if (newer[entry] == NONE) {
+         mostRecent = older[entry];
+      } else {
+         older[newer[entry]] = older[entry];
+      }
+      if (older[entry] == NONE) {
+         leastRecent = newer[entry];
+      } else {
+         newer[older[entry]] = newer[entry];
+      }
+   }
+
+   private void linkFirst(int entry) {
+      newer[entry] = NONE;
+      older[entry] = mostRecent;
+      if (mostRecent == NONE) {
+         leastRecent = entry;
+      } else {
+         newer[mostRecent] = entry;
+      }
+      mostRecent = entry;
+   }
+}
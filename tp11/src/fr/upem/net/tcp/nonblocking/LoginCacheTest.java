@@ -0,0 +1,130 @@
+package fr.upem.net.tcp.nonblocking;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LoginCacheTest {
+
+    private static ByteBuffer bytes(String login) {
+        return StandardCharsets.UTF_8.encode(login);
+    }
+
+    private static void put(LoginCache cache, String login) {
+        cache.put(bytes(login), login);
+    }
+
+    @Test
+    public void missThenHit() {
+        var cache = new LoginCache(4);
+        var bb = bytes("€lice");
+        assertNull(cache.get(bb));
+        cache.put(bb, "€lice");
+        assertEquals(0, bb.position());
+        assertEquals("€lice", cache.get(bb));
+        assertEquals(0, bb.position());
+        assertEquals(1, cache.size());
+        assertEquals(1, cache.hits());
+        assertEquals(1, cache.misses());
+    }
+
+    @Test
+    public void remainingBytesOnly() {
+        var cache = new LoginCache(4);
+        put(cache, "bob");
+        var bb = ByteBuffer.allocate(16).put(bytes("xxbobyy")).flip();
+        bb.position(2).limit(5);
+        assertEquals("bob", cache.get(bb));
+        bb.limit(4);
+        assertNull(cache.get(bb));
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() {
+        var cache = new LoginCache(3);
+        put(cache, "a");
+        put(cache, "b");
+        put(cache, "c");
+        assertEquals("a", cache.get(bytes("a"))); // b is now the least recently used
+        put(cache, "d");
+        assertEquals(3, cache.size());
+        assertNull(cache.get(bytes("b")));
+        assertEquals("a", cache.get(bytes("a")));
+        assertEquals("c", cache.get(bytes("c")));
+        assertEquals("d", cache.get(bytes("d")));
+        put(cache, "e"); // evicts a, c and d were used after it
+        assertNull(cache.get(bytes("a")));
+        assertEquals("c", cache.get(bytes("c")));
+    }
+
+    @Test
+    public void evictedEntryLeavesItsChain() {
+        // a cache of one login has two buckets, so two of the three logins share one
+        var cache = new LoginCache(1);
+        var logins = new String[] { "a", "b", "c", "a", "c", "b", "b", "a" };
+        for (var i = 0; i < logins.length; i++) {
+            put(cache, logins[i]);
+            assertEquals(1, cache.size());
+            for (var login : new String[] { "a", "b", "c" }) {
+                assertEquals(login.equals(logins[i]) ? login : null, cache.get(bytes(login)));
+            }
+        }
+    }
+
+    @Test
+    public void sameAsLinkedHashMap() {
+        var capacity = 8;
+        var cache = new LoginCache(capacity);
+        var lru = new LinkedHashMap<String, String>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                return size() > capacity;
+            }
+        };
+        var random = new Random(0);
+        for (var i = 0; i < 100_000; i++) {
+            var login = "login" + "€".repeat(random.nextInt(3)) + random.nextInt(24);
+            var cached = cache.get(bytes(login));
+            assertEquals(lru.get(login), cached);
+            if (cached == null) {
+                put(cache, login);
+                lru.put(login, login);
+            }
+            assertEquals(lru.size(), cache.size());
+        }
+        assertEquals(100_000, cache.hits() + cache.misses());
+    }
+
+    @Test
+    public void longLoginsAreNotCached() {
+        var cache = new LoginCache(4);
+        var longest = "x".repeat(64);
+        var tooLong = "x".repeat(65);
+        put(cache, tooLong);
+        assertEquals(0, cache.size());
+        assertNull(cache.get(bytes(tooLong)));
+        assertEquals(0, cache.misses()); // not even looked up
+        put(cache, longest);
+        assertEquals(longest, cache.get(bytes(longest)));
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void longLoginsDoNotEvict() {
+        var cache = new LoginCache(1);
+        put(cache, "a");
+        put(cache, "€".repeat(22)); // 66 bytes
+        assertEquals("a", cache.get(bytes("a")));
+    }
+
+    @Test
+    public void errorCapacity() {
+        assertThrows(IllegalArgumentException.class, () -> new LoginCache(0));
+    }
+}
@@ -0,0 +1,30 @@
+package fr.upem.net.tcp.nonblocking;
+
+import java.nio.ByteBuffer;
+
+public class LongReader extends FixedSizeReader<Long> {
+
+   private long value;
+
+   public LongReader() {
+      super(Long.BYTES);
+   }
+
+   @Override
+   protected void decode(ByteBuffer bb) {
+      value = bb.getLong();
+   }
+
+   /**
+    * Same as get without boxing the value
+    */
+   public long getLong() {
+      checkDone();
+      return value;
+   }
+
+   @Override
+   public Long get() {
+      return getLong();
+   }
+}
@@ -0,0 +1,30 @@
+package fr.upem.net.tcp.nonblocking;
+
+import java.nio.ByteBuffer;
+
+public class LongWriter extends FixedSizeWriter<Long> {
+
+   private long value;
+
+   public LongWriter() {
+      super(Long.BYTES);
+   }
+
+   @Override
+   protected void encode(ByteBuffer bb) {
+      bb.putLong(value);
+   }
+
+   /**
+    * Same as set without boxing the value
+    */
+   public void setLong(long value) {
+      start();
+      this.value = value;
+   }
+
+   @Override
+   public void set(Long value) {
+      setLong(value);
+   }
+}
@@ -1,14 +1,195 @@
 package fr.upem.net.tcp.nonblocking;
 
 public class Message {
+
+   /**
+    * Kinds of frames of the chat protocol.
+    * <p>
+    * A frame starts with an int: a legacy BROADCAST frame has no opcode and starts
+    * directly with the size of the login, which is always positive, the other
+    * frames start with their negative opcode. The opcode is followed by the
+    * given number of strings, each one prefixed by its size.
+    * <p>
+    * A BUNDLE frame is the opcode followed by the number of frames it packs and
+    * by the frames themselves. Inside a bundle, a login of size 0 stands for the
+    * login of the previous frame of the bundle, so a legacy frame starting
+    * with 0 is a BROADCAST from the previous login.
+    * <p>
+    * A SEQUENCED frame is the opcode followed by a long, the sequence of the
+    * legacy frame which follows it in the history of the server, and is read
+    * as a BROADCAST with a sequence. A RESUME frame is the opcode followed by
+    * the last sequence received by the client, or -1.
+    * <p>
+    * A client sending COMPRESS asks the server to compress what it sends. The server
+    * answers with COMPRESS, and every byte following its answer is compressed.
+    * <p>
+    * A payload too large for a string is sent as a STREAM frame, the opcode
+    * followed by the id of the stream, the size of the payload as a long and
+    * the login of the sender, then by CHUNK frames, the opcode followed by the
+    * id of the stream, the size of the chunk and its bytes. The chunks of a stream
+    * may be interleaved with other frames, and the server relays them to every
+    * client under an id of its own.
+    * <p>
+    * A client may start with HELLO followed by the version of the protocol it
+    * wants, the server answers with HELLO and the version it accepts. The frames
+    * following these two frames use that version. In version 2, every length
+    * prefix but the first int of a frame is a varint (see VarIntReader).
+    */
+   public enum Type {
+      BROADCAST(0, 2, 0), // login, message
+      JOIN(-1, 1, -1), // room
+      LEAVE(-2, 1, -1), // room
+      ROOM(-3, 3, 1), // room, login, message
+      PRIVATE(-4, 3, 1), // recipient, login, message
+      LOGIN(-5, 1, 0), // login
+      BUNDLE(-6, 0, -1), // count, then the frames, never returned by MessageReader
+      SEQUENCED(-7, 0, -1), // sequence, then a legacy frame, never returned by MessageReader
+      RESUME(-8, 0, -1), // last sequence
+      COMPRESS(-9, 0, -1),
+      STREAM(-10, 1, 0), // stream id and size, then login
+      CHUNK(-11, 0, -1), // stream id and size, then the bytes, which are not kept in the message
+      HELLO(-12, 0, -1); // version
+
+      private final int opcode;
+      private final int strings;
+      private final int loginIndex;
+
+      Type(int opcode, int strings, int loginIndex) {
+         this.opcode = opcode;
+         this.strings = strings;
+         this.loginIndex = loginIndex;
+      }
+
+      public int getOpcode() {
+         return opcode;
+      }
+
+      public int getStrings() {
+         return strings;
+      }
+
+      /**
+       * @return the index of the login among the strings, -1 if there is no login
+       */
+      public int getLoginIndex() {
+         return loginIndex;
+      }
+
+      /**
+       * @return the type with the given negative opcode or null if there is none
+       */
+      static Type fromOpcode(int opcode) {
+         for (var type : values()) {
+            if (type.opcode == opcode && opcode < 0) {
+               return type;
+            }
+         }
+         return null;
+      }
+   }
+
+   private final Type type;
+   private final String room;
+   private final String recipient;
    private final String login;
    private final String message;
+   private final long sequence;
+   private final int streamId;
+   private final long size;
+   private final int version;
 
    public Message(String login, String message) {
+      this(Type.BROADCAST, null, null, login, message, -1);
+   }
+
+   private Message(Type type, String room, String recipient, String login, String message) {
+      this(type, room, recipient, login, message, -1);
+   }
+
+   private Message(Type type, String room, String recipient, String login, String message, long sequence) {
+      this(type, room, recipient, login, message, sequence, -1, -1, -1);
+   }
+
+   private Message(Type type, String room, String recipient, String login, String message, long sequence,
+                   int streamId, long size, int version) {
+      this.version = version;
+      this.sequence = sequence;
+      this.streamId = streamId;
+      this.size = size;
+      this.type = type;
+      this.room = room;
+      this.recipient = recipient;
       this.login = login;
       this.message = message;
    }
 
+   public static Message join(String room) {
+      return new Message(Type.JOIN, room, null, null, null);
+   }
+
+   public static Message leave(String room) {
+      return new Message(Type.LEAVE, room, null, null, null);
+   }
+
+   public static Message toRoom(String room, String login, String message) {
+      return new Message(Type.ROOM, room, null, login, message);
+   }
+
+   public static Message toPrivate(String recipient, String login, String message) {
+      return new Message(Type.PRIVATE, null, recipient, login, message);
+   }
+
+   public static Message login(String login) {
+      return new Message(Type.LOGIN, null, null, login, null);
+   }
+
+   public static Message sequenced(long sequence, String login, String message) {
+      return new Message(Type.BROADCAST, null, null, login, message, sequence);
+   }
+
+   public static Message compress() {
+      return new Message(Type.COMPRESS, null, null, null, null);
+   }
+
+   public static Message resume(long lastSequence) {
+      return new Message(Type.RESUME, null, null, null, null, lastSequence);
+   }
+
+   /**
+    * @param streamId id of the stream, chosen by the sender and replaced by the server
+    * @param size     size of the whole payload
+    * @param login
+    */
+   public static Message stream(int streamId, long size, String login) {
+      return new Message(Type.STREAM, null, null, login, null, -1, streamId, size, -1);
+   }
+
+   public static Message chunk(int streamId, int size) {
+      return new Message(Type.CHUNK, null, null, null, null, -1, streamId, size, -1);
+   }
+
+   public static Message hello(int version) {
+      return new Message(Type.HELLO, null, null, null, null, -1, -1, -1, version);
+   }
+
+   public Type getType() {
+      return type;
+   }
+
+   /**
+    * @return the room of a JOIN, LEAVE or ROOM message, null otherwise
+    */
+   public String getRoom() {
+      return room;
+   }
+
+   /**
+    * @return the recipient of a PRIVATE message, null otherwise
+    */
+   public String getRecipient() {
+      return recipient;
+   }
+
    public String getLogin() {
       return login;
    }
@@ -17,10 +198,44 @@ public class Message {
       return message;
    }
 
+   /**
+    * @return the sequence of a BROADCAST from the history or the last sequence of a RESUME, -1 otherwise
+    */
+   public long getSequence() {
+      return sequence;
+   }
+
+   /**
+    * @return the id of the stream of a STREAM or CHUNK message, -1 otherwise
+    */
+   public int getStreamId() {
+      return streamId;
+   }
+
+   /**
+    * @return the size of the payload of a STREAM message or of a CHUNK, -1 otherwise
+    */
+   public long getSize() {
+      return size;
+   }
+
+   /**
+    * @return the version of a HELLO message, -1 otherwise
+    */
+   public int getVersion() {
+      return version;
+   }
+
    @Override
    public String toString() {
       return "Message{" +
-            "login='" + login + '\'' +
+            "type=" + type +
+            (room == null ? "" : ", room='" + room + '\'') +
+            (recipient == null ? "" : ", recipient='" + recipient + '\'') +
+            (sequence == -1 ? "" : ", sequence=" + sequence) +
+            (streamId == -1 ? "" : ", streamId=" + streamId + ", size=" + size) +
+            (version == -1 ? "" : ", version=" + version) +
+            ", login='" + login + '\'' +
             ", message='" + message + '\'' +
             '}';
    }
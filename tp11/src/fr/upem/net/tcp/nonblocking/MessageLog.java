@@ -0,0 +1,284 @@
+package fr.upem.net.tcp.nonblocking;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Append-only log of the frames broadcast by a server, written to memory-mapped segments.
+ * <p>
+ * The frames are written with their wire format, so that a segment can be read by a
+ * MessageReader or sent as is to a client. A segment is a file of segmentSize bytes
+ * named by its index. The bytes after the last frame of a segment are left to 0,
+ * which is not a valid start of frame, so the frames of a segment stop at the first
+ * 0 int or at the end of the file. A frame which does not fit in the current segment
+ * starts a new one.
+ * <p>
+ * Appending only copies the frame to the mapped memory, the segments are forced to
+ * the disk according to the FsyncPolicy, by a background thread unless the policy
+ * is ALWAYS. The segment following the current one is created and mapped in advance
+ * by another background thread, so it is already on the disk, filled with 0, when
+ * the log stops. The log may be appended from any thread.
+ */
+public class MessageLog {
+
+   /**
+    * When the frames written to the mapped segments are forced to the disk
+    */
+   public enum FsyncPolicy {
+      NEVER, // left to the operating system
+      PERIODIC, // every fsyncMillis and when a segment is full, by the flusher thread
+      // after each frame, by the thread appending it, which waits for the disk
+      ALWAYS
+   }
+
+   static private String SEGMENT_SUFFIX = ".log";
+   static private Logger logger = Logger.getLogger(MessageLog.class.getName());
+
+   private final Path directory;
+   private final int segmentSize;
+   private final FsyncPolicy policy;
+   // PERIODIC only, the full segments not forced yet
+   private final Queue<MappedByteBuffer> fullSegments = new ConcurrentLinkedQueue<>();
+   private final ExecutorService allocator = Executors.newSingleThreadExecutor(task -> {
+      var thread = new Thread(task, "message-log-allocator");
+      thread.setDaemon(true);
+      return thread;
+   });
+   private volatile MappedByteBuffer segment;
+   private CompletableFuture<MappedByteBuffer> nextSegment;
+   private long segmentIndex;
+   private long lostFrames;
+   private boolean failing; // the last frame has been lost
+
+   /**
+    * Opens a log writing after the last segment found in directory
+    *
+    * @param directory   created if needed
+    * @param segmentSize
+    * @param policy
+    * @param fsyncMillis period of the flusher thread with the PERIODIC policy
+    * @throws IOException
+    */
+   public MessageLog(Path directory, int segmentSize, FsyncPolicy policy, long fsyncMillis) throws IOException {
+      if (segmentSize < FramePool.SEQUENCED_FRAME_SIZE) {
+         throw new IllegalArgumentException("Segments must hold at least " + FramePool.SEQUENCED_FRAME_SIZE + " bytes");
+      }
+      this.directory = Files.createDirectories(directory);
+      this.segmentSize = segmentSize;
+      this.policy = policy;
+      var segments = segments(directory);
+      segmentIndex = segments.length == 0 ? 0 : index(segments[segments.length - 1]) + 1;
+      segment = map(segmentIndex);
+      nextSegment = mapAsync(segmentIndex + 1);
+      if (policy == FsyncPolicy.ALWAYS) {
+         logger.warning("The message log forces each frame to the disk on the thread broadcasting it");
+      }
+      if (policy == FsyncPolicy.PERIODIC) {
+         var flusher = new Thread(() -> flushRun(fsyncMillis), "message-log-flusher");
+         flusher.setDaemon(true);
+         flusher.start();
+      }
+      if (policy != FsyncPolicy.NEVER) {
+         Runtime.getRuntime().addShutdownHook(new Thread(this::flush));
+      }
+   }
+
+   /**
+    * Bytes of a frame copied to a segment, which the ALWAYS policy forces once
+    * the lock of the caller is released
+    */
+   public static class Copy {
+      private final MappedByteBuffer segment;
+      private final int offset;
+      private final int size;
+
+      private Copy(MappedByteBuffer segment, int offset, int size) {
+         this.segment = segment;
+         this.offset = offset;
+         this.size = size;
+      }
+   }
+
+   /**
+    * Copies the bytes of frame to the log and forces them with the ALWAYS policy.
+    *
+    * @param frame
+    * @see #copy(Frame)
+    */
+   public void append(Frame frame) {
+      force(copy(frame));
+   }
+
+   /**
+    * Copies the bytes of frame to the log, with its sequence if it has one. The frames
+    * are logged in the order of the calls, so a caller holding the lock which orders
+    * its frames copies them under that lock, and forces them after releasing it.
+    * <p>
+    * A frame which cannot be copied because a new segment cannot be created, on a full
+    * disk for instance, is counted in lostFrames and not logged: the log never fails
+    * its caller.
+    *
+    * @param frame
+    * @return the bytes to give to force with the ALWAYS policy, null otherwise or if the frame is lost
+    */
+   public Copy copy(Frame frame) {
+      var bb = frame.buffer();
+      var from = frame.sequence() == -1 ? bb.limit() - frame.size() : 0;
+      var size = bb.limit() - from;
+      synchronized (this) {
+         if (size > segment.remaining()) {
+            try {
+               roll();
+            } catch (UncheckedIOException e) {
+               lose(e);
+               return null;
+            }
+         }
+         var offset = segment.position();
+         segment.put(bb.array(), bb.arrayOffset() + from, size);
+         failing = false;
+         return policy == FsyncPolicy.ALWAYS ? new Copy(segment, offset, size) : null;
+      }
+   }
+
+   /**
+    * Forces the bytes of a frame copied by copy, so that the threads appending frames
+    * only wait for their own. A frame which cannot be forced is counted in lostFrames.
+    *
+    * @param copy returned by copy, may be null
+    */
+   public void force(Copy copy) {
+      if (copy == null) {
+         return;
+      }
+      try {
+         copy.segment.force(copy.offset, copy.size);
+      } catch (UncheckedIOException e) {
+         synchronized (this) {
+            lose(e);
+         }
+      }
+   }
+
+   /**
+    * Counts a lost frame, only the first one of a series of failures is logged
+    */
+   private void lose(UncheckedIOException e) {
+      lostFrames++;
+      if (!failing) {
+         failing = true;
+         logger.log(Level.WARNING, "Frames are missing from the message log from now on", e);
+      }
+   }
+
+   /**
+    * @return the number of frames which could not be logged
+    */
+   public synchronized long lostFrames() {
+      return lostFrames;
+   }
+
+   /**
+    * Switches to the segment mapped in advance, and starts mapping the following one.
+    * Only the PERIODIC policy keeps the full segment until it is forced, the frames of
+    * the other policies are already forced or left to the operating system.
+    */
+   private void roll() {
+      MappedByteBuffer next;
+      try {
+         next = nextSegment.join(); // only waits if the allocator is late
+      } catch (CompletionException e) {
+         nextSegment = mapAsync(segmentIndex + 1); // tried again at the next roll
+         if (e.getCause() instanceof UncheckedIOException) {
+            throw (UncheckedIOException) e.getCause();
+         }
+         throw e;
+      }
+      if (policy == FsyncPolicy.PERIODIC) {
+         fullSegments.add(segment);
+      }
+      segment = next;
+      segmentIndex++;
+      nextSegment = mapAsync(segmentIndex + 1);
+   }
+
+   private CompletableFuture<MappedByteBuffer> mapAsync(long index) {
+      return CompletableFuture.supplyAsync(() -> {
+         try {
+            return map(index);
+         } catch (IOException e) {
+            throw new UncheckedIOException(e);
+         }
+      }, allocator);
+   }
+
+   private MappedByteBuffer map(long index) throws IOException {
+      var path = directory.resolve(segmentName(index));
+      try (var channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW,
+            StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+         return channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize); // the mapping outlives the channel
+      }
+   }
+
+   private void flushRun(long fsyncMillis) {
+      try {
+         while (!Thread.interrupted()) {
+            Thread.sleep(fsyncMillis);
+            flush();
+         }
+      } catch (InterruptedException e) {
+         logger.info("Flusher thread has been interrupted");
+      }
+   }
+
+   /**
+    * Forces the full segments not forced yet and the current segment.
+    * Forcing a segment while frames are appended to it is safe, the frames
+    * appended meanwhile are forced by the next flush.
+    */
+   private void flush() {
+      try {
+         MappedByteBuffer full;
+         while ((full = fullSegments.poll()) != null) {
+            full.force();
+         }
+         segment.force();
+      } catch (UncheckedIOException e) {
+         logger.log(Level.WARNING, "Cannot force the message log", e);
+      }
+   }
+
+   static String segmentName(long index) {
+      return String.format("%020d", index) + SEGMENT_SUFFIX;
+   }
+
+   static long index(Path segment) {
+      var name = segment.getFileName().toString();
+      return Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+   }
+
+   /**
+    * @return the segments of directory in the order they were written
+    * @throws IOException
+    */
+   static Path[] segments(Path directory) throws IOException {
+      try (var files = Files.list(directory)) {
+         return files.filter(path -> path.getFileName().toString().matches("\\d{20}\\" + SEGMENT_SUFFIX))
+               .sorted()
+               .toArray(Path[]::new);
+      }
+   }
+}
@@ -0,0 +1,181 @@
+package fr.upem.net.tcp.nonblocking;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.logging.Logger;
+
+/**
+ * Reads the segments written by MessageLog.
+ * <p>
+ * A segment is scanned in place from its mapping, following the sizes of the
+ * strings without decoding them, and a replay sends the frames of each segment
+ * to a socket with FileChannel.transferTo, without copying them to the heap.
+ */
+public class MessageLogReader {
+
+   static private int BUFFER_SIZE = 64 * 1_024;
+   static private final Charset UTF = Charset.forName("UTF-8");
+   static private Logger logger = Logger.getLogger(MessageLogReader.class.getName());
+
+   private final Path directory;
+   private final boolean print;
+   private long frames = 0;
+   private long bytes = 0;
+
+   public MessageLogReader(Path directory, boolean print) {
+      this.directory = directory;
+      this.print = print;
+   }
+
+   /**
+    * Scans every segment and logs the number of frames and the throughput
+    *
+    * @throws IOException
+    */
+   public void scan() throws IOException {
+      var start = System.nanoTime();
+      for (var segment : MessageLog.segments(directory)) {
+         try (var channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+            var bb = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            bytes += scan(bb);
+         }
+      }
+      var seconds = Math.max(System.nanoTime() - start, 1) / 1e9;
+      logger.info(frames + " frames, " + bytes + " bytes in " + String.format("%.3f", seconds) + " s ("
+            + String.format("%.1f", bytes / seconds / (1_024 * 1_024)) + " MB/s)");
+   }
+
+   /**
+    * Follows the frames of a segment
+    *
+    * @param bb the segment in read-mode
+    * @return the size of its frames
+    */
+   private int scan(ByteBuffer bb) {
+      int size;
+      while ((size = frameSize(bb, bb.position())) > 0) {
+         if (print) {
+            print(bb, bb.position());
+         }
+         bb.position(bb.position() + size);
+         frames++;
+      }
+      if (size == -1) {
+         logger.warning("Invalid frame at offset " + bb.position() + ", skipping the end of the segment");
+      }
+      return bb.position();
+   }
+
+   /**
+    * Sends the frames of every segment to the server listening on address, which
+    * broadcasts them again
+    *
+    * @param address
+    * @throws IOException
+    */
+   public void replay(InetSocketAddress address) throws IOException {
+      try (var sc = SocketChannel.open(address)) {
+         for (var segment : MessageLog.segments(directory)) {
+            try (var channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+               var used = scan(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+               for (long position = 0; position < used; ) {
+                  position += channel.transferTo(position, used - position, sc);
+               }
+               bytes += used;
+            }
+         }
+         // the server also broadcasts the frames to us, closing before it is done would reset the connection
+         sc.shutdownOutput();
+         var discard = ByteBuffer.allocateDirect(BUFFER_SIZE);
+         while (sc.read(discard.clear()) != -1) {
+            // until the server closes the connection
+         }
+      }
+      logger.info("Replayed " + frames + " frames, " + bytes + " bytes");
+   }
+
+   /**
+    * Computes the size of the frame starting at position from the sizes of its strings
+    *
+    * @return the size of the frame, 0 at the end of the segment, -1 if the frame is not valid
+    */
+   static int frameSize(ByteBuffer bb, int position) {
+      if (bb.limit() - position < Integer.BYTES) {
+         return 0;
+      }
+      var first = bb.getInt(position);
+      if (first == 0) {
+         return 0;
+      }
+      var header = 0;
+      var strings = Message.Type.BROADCAST.getStrings();
+      if (first < 0) {
+         var type = Message.Type.fromOpcode(first);
+         if (type == Message.Type.SEQUENCED) {
+            header = Integer.BYTES + Long.BYTES;
+         } else if (type != null && type.getStrings() > 0) {
+            header = Integer.BYTES;
+            strings = type.getStrings();
+         } else {
+            return -1;
+         }
+      }
+      var end = position + header;
+      for (var i = 0; i < strings; i++) {
+         if (bb.limit() - end < Integer.BYTES) {
+            return -1;
+         }
+         var size = bb.getInt(end);
+         if (size <= 0 || bb.limit() - end - Integer.BYTES < size) {
+            return -1;
+         }
+         end += Integer.BYTES + size;
+      }
+      return end - position;
+   }
+
+   private static void print(ByteBuffer bb, int position) {
+      var first = bb.getInt(position);
+      var line = new StringBuilder();
+      if (first == Message.Type.SEQUENCED.getOpcode()) {
+         line.append('#').append(bb.getLong(position + Integer.BYTES)).append(' ');
+         position += Integer.BYTES + Long.BYTES;
+      } else if (first < 0) {
+         position += Integer.BYTES;
+         line.append('[').append(string(bb, position)).append("] ");
+         position += Integer.BYTES + bb.getInt(position);
+      }
+      line.append(string(bb, position)).append(": ");
+      position += Integer.BYTES + bb.getInt(position);
+      line.append(string(bb, position));
+      System.out.println(line);
+   }
+
+   private static String string(ByteBuffer bb, int position) {
+      var size = bb.getInt(position);
+      return UTF.decode(bb.slice(position + Integer.BYTES, size)).toString();
+   }
+
+   public static void main(String[] args) throws IOException {
+      if (args.length == 1) {
+         new MessageLogReader(Path.of(args[0]), false).scan();
+      } else if (args.length == 2 && args[1].equals("print")) {
+         new MessageLogReader(Path.of(args[0]), true).scan();
+      } else if (args.length == 4 && args[1].equals("replay")) {
+         new MessageLogReader(Path.of(args[0]), false)
+               .replay(new InetSocketAddress(args[2], Integer.parseInt(args[3])));
+      } else {
+         usage();
+      }
+   }
+
+   private static void usage() {
+      System.out.println("Usage : MessageLogReader directory [print | replay hostname port]");
+   }
+}
@@ -1,55 +1,359 @@
 package fr.upem.net.tcp.nonblocking;
 
 import java.nio.ByteBuffer;
-import java.nio.charset.Charset;
 
+/**
+ * Reader of the frames described in Message.Type.
+ * <p>
+ * The frames packed in a BUNDLE are returned one by one: reset keeps the
+ * position in the current bundle, so the next call to process reads the
+ * next frame of the bundle.
+ * <p>
+ * The bytes of a CHUNK are never accumulated: they are handed to the ChunkSink
+ * as they arrive, and the CHUNK message only carries the stream id and the size.
+ * <p>
+ * With useLoginCache, the logins are looked up by their bytes in a LoginCache,
+ * so a login already seen is neither decoded nor allocated again.
+ */
 public class MessageReader implements Reader<Message> {
 
+   /**
+    * Receives the bytes of the chunks while they are read
+    */
+   public interface ChunkSink {
+
+      /**
+       * Called once the header of a chunk is read
+       *
+       * @return false if the chunk is not valid, process then returns ERROR
+       */
+      boolean chunkStarted(int streamId, int size);
+
+      /**
+       * Called with the next bytes of the current chunk
+       *
+       * @param data in read-mode, only valid during the call
+       */
+      void chunkData(ByteBuffer data);
+   }
+
+   static public int MAX_CHUNK_SIZE = 1_024;
+
    private enum State {DONE, WAITING, ERROR}
 
    ;
 
-   static private int BUFFER_SIZE = 1_024;
+   static private int MAX_STRINGS = 3;
    private State state = State.WAITING;
-   private final StringReader stringReader = new StringReader();
-   private final ByteBuffer internalbb = ByteBuffer.allocate(BUFFER_SIZE); // write-mode
+   private final IntReader intReader = new IntReader();
+   private final LongReader longReader = new LongReader();
+   private final VarIntReader varIntReader = new VarIntReader();
+   private final StringReader stringReader;
+   private final ChunkSink sink; // null if the bytes of the chunks are skipped
+   private final String[] strings = new String[MAX_STRINGS];
    private Message value;
-   private String pseudo;
-   private String msg;
-   private boolean gotPseudo = false;
+   private Message.Type type; // null until the first int of the frame is read
+   private int stringsRead;
+   private boolean sizeRead; // the size of the string being read has been given to stringReader
+   private boolean readingCount; // the BUNDLE opcode has been read, not its count
+   private int bundleRemaining; // frames of the current bundle not read yet
+   private String previousLogin; // login of the previous frame of the current bundle
+   private Message.Type afterSequence; // SEQUENCED or RESUME while their sequence is being read
+   private long sequence = -1;
+   private int streamId = -1; // -1 until read in a STREAM or CHUNK frame
+   private long size = -1; // size of the payload of a STREAM or of a CHUNK, -1 until read
+   private int chunkRemaining; // bytes of the current chunk not handed to the sink yet
+   private int version = -1; // version of a HELLO frame, -1 until read
+   private boolean varInts = false; // the length prefixes are varints, from the version 2
+   private LoginCache logins; // null if the logins are decoded every time
+
+   public MessageReader() {
+      this((ChunkSink) null);
+   }
+
+   /**
+    * @param sink receives the bytes of the chunks, null to skip them
+    */
+   public MessageReader(ChunkSink sink) {
+      stringReader = new StringReader();
+      this.sink = sink;
+   }
+
+   /**
+    * @param pool pool lending the scratch buffer of the strings split across several reads
+    */
+   public MessageReader(BufferPool pool) {
+      this(pool, null);
+   }
+
+   /**
+    * @param pool pool lending the scratch buffer of the strings split across several reads
+    * @param sink receives the bytes of the chunks, null to skip them
+    */
+   public MessageReader(BufferPool pool, ChunkSink sink) {
+      stringReader = new StringReader(pool);
+      this.sink = sink;
+   }
 
    @Override
    public ProcessStatus process(ByteBuffer bb) {
       if (state == State.DONE || state == State.ERROR) {
          throw new IllegalStateException();
       }
-      if (!gotPseudo) {
-         switch (stringReader.process(bb)) {
+      while (type == null) {
+         if (afterSequence != null) {
+            switch (longReader.process(bb)) {
+               case ERROR:
+                  return ProcessStatus.ERROR;
+               case REFILL:
+                  return ProcessStatus.REFILL;
+               case DONE:
+                  sequence = longReader.getLong();
+                  longReader.reset();
+                  if (afterSequence == Message.Type.RESUME) {
+                     type = Message.Type.RESUME;
+                  }
+                  afterSequence = null;
+            }
+            continue;
+         }
+         switch (intReader.process(bb)) {
             case ERROR:
                return ProcessStatus.ERROR;
             case REFILL:
                return ProcessStatus.REFILL;
             case DONE:
-               pseudo = stringReader.get();
-               gotPseudo = true;
-               stringReader.reset();
+               var first = intReader.getInt();
+               intReader.reset();
+               if (!startFrame(first)) {
+                  return ProcessStatus.ERROR;
+               }
+         }
+      }
+      if (type == Message.Type.STREAM || type == Message.Type.CHUNK) {
+         var status = readStreamHeader(bb);
+         if (status != ProcessStatus.DONE) {
+            return status;
+         }
+      }
+      if (type == Message.Type.HELLO && version == -1) {
+         var status = intReader.process(bb);
+         if (status != ProcessStatus.DONE) {
+            return status;
          }
+         version = intReader.getInt();
+         intReader.reset();
       }
-      if (gotPseudo) {
+      while (stringsRead < type.getStrings()) {
+         if (!sizeRead) {
+            switch (processSize(bb)) {
+               case ERROR:
+                  return ProcessStatus.ERROR;
+               case REFILL:
+                  return ProcessStatus.REFILL;
+               case DONE:
+                  var size = getSize();
+                  if (size == 0 && stringsRead == type.getLoginIndex() && previousLogin != null) {
+                     strings[stringsRead++] = previousLogin;
+                     continue;
+                  }
+                  if (!expectString(size)) {
+                     return ProcessStatus.ERROR;
+                  }
+                  sizeRead = true;
+            }
+         }
          switch (stringReader.process(bb)) {
             case ERROR:
                return ProcessStatus.ERROR;
             case REFILL:
                return ProcessStatus.REFILL;
             case DONE:
-               msg = stringReader.get();
-               state = State.DONE;
-               value = new Message(pseudo, msg);
-               gotPseudo = false;
-               return ProcessStatus.DONE;
+               strings[stringsRead++] = stringReader.get();
+               stringReader.reset();
+               sizeRead = false;
+         }
+      }
+      state = State.DONE;
+      value = toMessage();
+      if (bundleRemaining > 0) {
+         bundleRemaining--;
+         previousLogin = bundleRemaining == 0 ? null : value.getLogin();
+      }
+      return ProcessStatus.DONE;
+   }
+
+   /**
+    * Reads the length prefixes following the version 2 as varints instead of ints.
+    * The frame being read, if any, is read entirely with the previous version.
+    */
+   public void useVarInts() {
+      varInts = true;
+   }
+
+   /**
+    * Looks up the logins of the next frames in cache instead of decoding them
+    */
+   public void useLoginCache(LoginCache cache) {
+      logins = cache;
+   }
+
+   /**
+    * Starts the string stringsRead of the frame, whose size has been read
+    */
+   private boolean expectString(int size) {
+      if (logins != null && stringsRead == type.getLoginIndex()) {
+         stringReader.cacheWith(logins);
+      }
+      return stringReader.expectSize(size);
+   }
+
+   /**
+    * Reads a length prefix which is not the first int of a frame
+    */
+   private ProcessStatus processSize(ByteBuffer bb) {
+      return varInts ? varIntReader.process(bb) : intReader.process(bb);
+   }
+
+   /**
+    * Returns the length prefix read by processSize and prepares the next one
+    */
+   private int getSize() {
+      if (varInts) {
+         var size = varIntReader.getInt();
+         varIntReader.reset();
+         return size;
+      }
+      var size = intReader.getInt();
+      intReader.reset();
+      return size;
+   }
+
+   /**
+    * Reads the stream id and the size of a STREAM or CHUNK frame, then hands the
+    * bytes of a chunk to the sink
+    */
+   private ProcessStatus readStreamHeader(ByteBuffer bb) {
+      if (streamId == -1) {
+         var status = intReader.process(bb);
+         if (status != ProcessStatus.DONE) {
+            return status;
+         }
+         streamId = intReader.getInt();
+         intReader.reset();
+         if (streamId < 0) {
+            return ProcessStatus.ERROR;
+         }
+      }
+      if (size == -1) {
+         if (type == Message.Type.STREAM) {
+            var status = longReader.process(bb);
+            if (status != ProcessStatus.DONE) {
+               return status;
+            }
+            size = longReader.getLong();
+            longReader.reset();
+            return size < 0 ? ProcessStatus.ERROR : ProcessStatus.DONE;
+         }
+         var status = processSize(bb);
+         if (status != ProcessStatus.DONE) {
+            return status;
+         }
+         size = getSize();
+         if (size <= 0 || size > MAX_CHUNK_SIZE || (sink != null && !sink.chunkStarted(streamId, (int) size))) {
+            return ProcessStatus.ERROR;
+         }
+         chunkRemaining = (int) size;
+      }
+      if (chunkRemaining == 0) {
+         return ProcessStatus.DONE;
+      }
+      bb.flip();
+      try {
+         var length = Math.min(chunkRemaining, bb.remaining());
+         if (length > 0 && sink != null) {
+            sink.chunkData(bb.slice(bb.position(), length));
          }
+         bb.position(bb.position() + length);
+         chunkRemaining -= length;
+      } finally {
+         bb.compact();
+      }
+      return chunkRemaining == 0 ? ProcessStatus.DONE : ProcessStatus.REFILL;
+   }
+
+   /**
+    * Handles the first int of a frame, or the count of a bundle
+    *
+    * @return false if the int is not valid at this point
+    */
+   private boolean startFrame(int first) {
+      if (readingCount) {
+         readingCount = false;
+         bundleRemaining = first;
+         return first > 0;
+      }
+      if (first > 0) {
+         // legacy frame, the int was the size of the login
+         type = Message.Type.BROADCAST;
+         sizeRead = true;
+         return expectString(first);
+      }
+      if (first == 0) {
+         // legacy frame of a bundle repeating the previous login
+         if (previousLogin == null) {
+            return false;
+         }
+         type = Message.Type.BROADCAST;
+         strings[stringsRead++] = previousLogin;
+         return true;
+      }
+      if (sequence != -1) {
+         return false; // a SEQUENCED frame is followed by a legacy frame
+      }
+      var opcode = Message.Type.fromOpcode(first);
+      if (opcode == Message.Type.SEQUENCED || opcode == Message.Type.RESUME) {
+         afterSequence = opcode;
+         return true;
+      }
+      if (opcode == Message.Type.BUNDLE) {
+         readingCount = true;
+         return bundleRemaining == 0; // bundles do not nest
+      }
+      type = opcode;
+      return type != null;
+   }
+
+   private Message toMessage() {
+      switch (type) {
+         case BROADCAST:
+            if (sequence != -1) {
+               return Message.sequenced(sequence, strings[0], strings[1]);
+            }
+            return new Message(strings[0], strings[1]);
+         case JOIN:
+            return Message.join(strings[0]);
+         case LEAVE:
+            return Message.leave(strings[0]);
+         case ROOM:
+            return Message.toRoom(strings[0], strings[1], strings[2]);
+         case PRIVATE:
+            return Message.toPrivate(strings[0], strings[1], strings[2]);
+         case LOGIN:
+            return Message.login(strings[0]);
+         case RESUME:
+            return Message.resume(sequence);
+         case COMPRESS:
+            return Message.compress();
+         case STREAM:
+            return Message.stream(streamId, size, strings[0]);
+         case CHUNK:
+            return Message.chunk(streamId, (int) size);
+         case HELLO:
+            return Message.hello(version);
+         default:
+            throw new AssertionError(type);
       }
-      return ProcessStatus.ERROR;
    }
 
    @Override
@@ -60,11 +364,29 @@ public class MessageReader implements Reader<Message> {
       return value;
    }
 
+   /**
+    * Prepares the reading of the next frame, which is the next frame of the
+    * current bundle if it is not over
+    */
    @Override
    public void reset() {
       state = State.WAITING;
+      intReader.reset();
+      longReader.reset();
       stringReader.reset();
-      internalbb.clear();
       value = null;
+      afterSequence = null;
+      sequence = -1;
+      streamId = -1;
+      size = -1;
+      chunkRemaining = 0;
+      version = -1;
+      varIntReader.reset();
+      type = null;
+      stringsRead = 0;
+      sizeRead = false;
+      for (var i = 0; i < MAX_STRINGS; i++) {
+         strings[i] = null;
+      }
    }
-}
\ No newline at end of file
+}
@@ -0,0 +1,144 @@
+package fr.upem.net.tcp.nonblocking;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static fr.upem.net.tcp.nonblocking.Reader.ProcessStatus.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MessageReaderTest {
+
+    /**
+     * Messages of the bundle built by bundle, followed by the broadcast which follows it
+     */
+    private static final List<Message> EXPECTED = List.of(
+            new Message("alice", "first"),
+            new Message("alice", "x".repeat(200)),
+            Message.toRoom("room", "alice", "in the room"),
+            Message.toPrivate("carol", "bob", "private"),
+            Message.toRoom("r€", "bob", "€a€"),
+            new Message("dave", "after"));
+
+    private static void putString(ByteBuffer bb, String string) {
+        var bytes = StandardCharsets.UTF_8.encode(string);
+        bb.putInt(bytes.remaining()).put(bytes);
+    }
+
+    /**
+     * Bundle of five frames eliding the logins repeated by the legacy frame, the ROOM
+     * frame and the last ROOM frame, followed by a legacy frame outside of the bundle
+     */
+    private static byte[] bundle() {
+        var bb = ByteBuffer.allocate(1024).putInt(Message.Type.BUNDLE.getOpcode()).putInt(5);
+        putString(bb, "alice");
+        putString(bb, "first");
+        putString(bb.putInt(0), "x".repeat(200));
+        putString(bb.putInt(Message.Type.ROOM.getOpcode()), "room");
+        putString(bb.putInt(0), "in the room");
+        putString(bb.putInt(Message.Type.PRIVATE.getOpcode()), "carol");
+        putString(bb, "bob");
+        putString(bb, "private");
+        putString(bb.putInt(Message.Type.ROOM.getOpcode()), "r€");
+        putString(bb.putInt(0), "€a€");
+        putString(bb, "dave");
+        putString(bb, "after");
+        bb.flip();
+        var bytes = new byte[bb.remaining()];
+        bb.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Feeds the bytes of each part in turn to reader, and collects the messages read
+     */
+    private static List<Message> read(MessageReader reader, byte[]... parts) {
+        var messages = new ArrayList<Message>();
+        var bb = ByteBuffer.allocate(2048);
+        for (var part : parts) {
+            bb.put(part);
+            Reader.ProcessStatus status;
+            while ((status = reader.process(bb)) == DONE) {
+                messages.add(reader.get());
+                reader.reset();
+            }
+            assertEquals(REFILL, status);
+        }
+        assertEquals(0, bb.position());
+        return messages;
+    }
+
+    private static void assertMessages(List<Message> expected, List<Message> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (var i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).toString(), actual.get(i).toString(), "message " + i);
+        }
+    }
+
+    @Test
+    public void bundleWhole() {
+        assertMessages(EXPECTED, read(new MessageReader(), bundle()));
+    }
+
+    @Test
+    public void bundleSplitAtEveryByte() {
+        var bytes = bundle();
+        for (var split = 0; split <= bytes.length; split++) {
+            var first = new byte[split];
+            var second = new byte[bytes.length - split];
+            System.arraycopy(bytes, 0, first, 0, split);
+            System.arraycopy(bytes, split, second, 0, second.length);
+            assertMessages(EXPECTED, read(new MessageReader(), first, second));
+        }
+    }
+
+    @Test
+    public void bundleByteByByte() {
+        var bytes = bundle();
+        var parts = new byte[bytes.length][];
+        for (var i = 0; i < bytes.length; i++) {
+            parts[i] = new byte[]{bytes[i]};
+        }
+        assertMessages(EXPECTED, read(new MessageReader(), parts));
+    }
+
+    @Test
+    public void twoBundlesInARow() {
+        var bytes = bundle();
+        var twice = new byte[2 * bytes.length];
+        System.arraycopy(bytes, 0, twice, 0, bytes.length);
+        System.arraycopy(bytes, 0, twice, bytes.length, bytes.length);
+        var expected = new ArrayList<>(EXPECTED);
+        expected.addAll(EXPECTED);
+        assertMessages(expected, read(new MessageReader(), twice));
+    }
+
+    @Test
+    public void previousLoginClearedAfterBundle() {
+        var reader = new MessageReader();
+        var bb = ByteBuffer.allocate(1024).putInt(Message.Type.BUNDLE.getOpcode()).putInt(1);
+        putString(bb, "alice");
+        putString(bb, "last");
+        putString(bb.putInt(0), "elided outside of a bundle");
+        assertEquals(DONE, reader.process(bb));
+        assertEquals(new Message("alice", "last").toString(), reader.get().toString());
+        reader.reset();
+        assertEquals(ERROR, reader.process(bb));
+    }
+
+    @Test
+    public void nestedBundle() {
+        var bb = ByteBuffer.allocate(1024).putInt(Message.Type.BUNDLE.getOpcode()).putInt(2)
+                .putInt(Message.Type.BUNDLE.getOpcode());
+        assertEquals(ERROR, new MessageReader().process(bb));
+    }
+
+    @Test
+    public void emptyBundle() {
+        var bb = ByteBuffer.allocate(1024).putInt(Message.Type.BUNDLE.getOpcode()).putInt(0);
+        assertEquals(ERROR, new MessageReader().process(bb));
+    }
+}
@@ -0,0 +1,172 @@
+package fr.upem.net.tcp.nonblocking;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Writer of the frames read by MessageReader, but CHUNK whose bytes are not in
+ * the message.
+ * <p>
+ * A frame is written as a sequence of steps, the opcode, the fixed size fields
+ * and the strings, each resuming where the previous call to process stopped. A
+ * broadcast is written as a legacy frame, preceded by its sequence if it has one.
+ */
+public class MessageWriter implements Writer<Message> {
+
+   private enum State {DONE, WAITING, WRITING}
+
+   ;
+
+   static private int MAX_STEPS = 4;
+   private State state = State.WAITING;
+   private final IntWriter opcodeWriter = new IntWriter();
+   private final IntWriter intWriter = new IntWriter();
+   private final LongWriter longWriter = new LongWriter();
+   private final StringWriter legacyWriter = new StringWriter(); // login of a legacy frame, size always an int
+   private final StringWriter[] stringWriters = { new StringWriter(), new StringWriter(), new StringWriter() };
+   private final Writer<?>[] steps = new Writer<?>[MAX_STEPS];
+   private int stepCount;
+   private int step;
+   private int stringCount;
+   private int size;
+
+   /**
+    * Writes the length prefixes of the next frames as varints, as in the version 2
+    * of the protocol. The size of the login of a legacy frame, which is its first
+    * int, stays an int.
+    */
+   public void useVarInts() {
+      for (var writer : stringWriters) {
+         writer.useVarInts();
+      }
+   }
+
+   /**
+    * @throws IllegalArgumentException if msg is a CHUNK or one of its strings cannot be read by StringReader
+    */
+   @Override
+   public void set(Message msg) {
+      if (state != State.WAITING) {
+         throw new IllegalStateException();
+      }
+      try {
+         var type = msg.getType();
+         if (type != Message.Type.BROADCAST) {
+            addOpcode(type);
+         }
+         switch (type) {
+            case BROADCAST:
+               if (msg.getSequence() != -1) {
+                  addOpcode(Message.Type.SEQUENCED);
+                  addLong(msg.getSequence());
+               }
+               legacyWriter.set(msg.getLogin());
+               addStep(legacyWriter, legacyWriter.size());
+               addString(msg.getMessage());
+               break;
+            case JOIN:
+            case LEAVE:
+               addString(msg.getRoom());
+               break;
+            case ROOM:
+               addString(msg.getRoom());
+               addString(msg.getLogin());
+               addString(msg.getMessage());
+               break;
+            case PRIVATE:
+               addString(msg.getRecipient());
+               addString(msg.getLogin());
+               addString(msg.getMessage());
+               break;
+            case LOGIN:
+               addString(msg.getLogin());
+               break;
+            case RESUME:
+               addLong(msg.getSequence());
+               break;
+            case COMPRESS:
+               break;
+            case STREAM:
+               addInt(msg.getStreamId());
+               addLong(msg.getSize());
+               addString(msg.getLogin());
+               break;
+            case HELLO:
+               addInt(msg.getVersion());
+               break;
+            default:
+               throw new IllegalArgumentException("Cannot write a " + type);
+         }
+      } catch (IllegalArgumentException e) {
+         reset();
+         throw e;
+      }
+      state = State.WRITING;
+   }
+
+   private void addStep(Writer<?> writer, int stepSize) {
+      steps[stepCount++] = writer;
+      size += stepSize;
+   }
+
+   private void addOpcode(Message.Type type) {
+      opcodeWriter.setInt(type.getOpcode());
+      addStep(opcodeWriter, opcodeWriter.size());
+   }
+
+   private void addInt(int value) {
+      intWriter.setInt(value);
+      addStep(intWriter, intWriter.size());
+   }
+
+   private void addLong(long value) {
+      longWriter.setLong(value);
+      addStep(longWriter, longWriter.size());
+   }
+
+   private void addString(String value) {
+      var writer = stringWriters[stringCount++];
+      writer.set(value);
+      addStep(writer, writer.size());
+   }
+
+   /**
+    * Number of bytes of the frame being written
+    */
+   public int size() {
+      return size;
+   }
+
+   @Override
+   public ProcessStatus process(ByteBuffer bb) {
+      if (state != State.WRITING) {
+         throw new IllegalStateException();
+      }
+      while (step < stepCount) {
+         if (steps[step].process(bb) == ProcessStatus.PARTIAL) {
+            return ProcessStatus.PARTIAL;
+         }
+         step++;
+      }
+      state = State.DONE;
+      return ProcessStatus.DONE;
+   }
+
+   @Override
+   public void reset() {
+      state = State.WAITING;
+      opcodeWriter.reset();
+      intWriter.reset();
+      longWriter.reset();
+      legacyWriter.reset();
+      for (var writer : stringWriters) {
+         writer.reset();
+      }
+      for (var i = 0; i < stepCount; i++) {
+         steps[i] = null;
+      }
+      stepCount = 0;
+      step = 0;
+      stringCount = 0;
+      size = 0;
+   }
+}
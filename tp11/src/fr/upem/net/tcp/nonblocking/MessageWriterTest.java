@@ -0,0 +1,230 @@
+package fr.upem.net.tcp.nonblocking;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import static fr.upem.net.tcp.nonblocking.Writer.ProcessStatus.DONE;
+import static fr.upem.net.tcp.nonblocking.Writer.ProcessStatus.PARTIAL;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MessageWriterTest {
+
+    private static final List<Message> MESSAGES = List.of(
+            new Message("alice", "hello"),
+            new Message("😀", "a😀b€cé"),
+            Message.sequenced(1L << 40, "bob", "sequenced"),
+            Message.join("room"),
+            Message.leave("r😀om"),
+            Message.toRoom("room", "carol", "€a€"),
+            Message.toPrivate("bob", "alice", "x".repeat(200)),
+            Message.toPrivate("bob", "alice", "😀".repeat(256)),
+            Message.login("dave"),
+            Message.resume(-1),
+            Message.resume(42),
+            Message.compress(),
+            Message.stream(3, 1L << 33, "eve"),
+            Message.hello(2));
+
+    private static MessageWriter writer(boolean varInts) {
+        var writer = new MessageWriter();
+        if (varInts) {
+            writer.useVarInts();
+        }
+        return writer;
+    }
+
+    /**
+     * Writes msg through a buffer of room bytes, emptied after each call to process
+     */
+    private static ByteBuffer write(Message msg, boolean varInts, int room) {
+        var writer = writer(varInts);
+        writer.set(msg);
+        var out = ByteBuffer.allocate(writer.size());
+        var bb = ByteBuffer.allocate(room);
+        for (;;) {
+            var status = writer.process(bb);
+            assertTrue(bb.position() > 0 || status == DONE); // progress with at least 4 bytes of room
+            out.put(bb.flip());
+            bb.clear();
+            if (status == DONE) {
+                break;
+            }
+        }
+        assertFalse(out.hasRemaining());
+        return out.flip();
+    }
+
+    private static Message read(ByteBuffer bytes, boolean varInts) {
+        var reader = new MessageReader();
+        if (varInts) {
+            reader.useVarInts();
+        }
+        var bb = ByteBuffer.allocate(bytes.remaining()).put(bytes.duplicate());
+        assertEquals(Reader.ProcessStatus.DONE, reader.process(bb));
+        assertEquals(0, bb.position());
+        return reader.get();
+    }
+
+    private static void assertSameMessage(Message expected, Message actual) {
+        assertEquals(expected.getType(), actual.getType());
+        assertEquals(expected.getRoom(), actual.getRoom());
+        assertEquals(expected.getRecipient(), actual.getRecipient());
+        assertEquals(expected.getLogin(), actual.getLogin());
+        assertEquals(expected.getMessage(), actual.getMessage());
+        assertEquals(expected.getSequence(), actual.getSequence());
+        assertEquals(expected.getStreamId(), actual.getStreamId());
+        assertEquals(expected.getSize(), actual.getSize());
+        assertEquals(expected.getVersion(), actual.getVersion());
+    }
+
+    private static void roundTrip(boolean varInts) {
+        for (var msg : MESSAGES) {
+            var bytes = write(msg, varInts, 4096);
+            assertSameMessage(msg, read(bytes, varInts));
+        }
+    }
+
+    @Test
+    public void roundTripV1() {
+        roundTrip(false);
+    }
+
+    @Test
+    public void roundTripV2() {
+        roundTrip(true);
+    }
+
+    @Test
+    public void varIntPrefixes() {
+        var msg = Message.toPrivate("bob", "alice", "x".repeat(200));
+        var v1 = write(msg, false, 4096);
+        var v2 = write(msg, true, 4096);
+        assertEquals(Integer.BYTES * 4 + 3 + 5 + 200, v1.remaining());
+        assertEquals(Integer.BYTES + 1 + 3 + 1 + 5 + 2 + 200, v2.remaining());
+        assertEquals(Message.Type.PRIVATE.getOpcode(), v2.getInt(0));
+        assertEquals(3, v2.get(Integer.BYTES));
+        assertEquals((byte) 0xC8, v2.get(Integer.BYTES + 1 + 3 + 1 + 5)); // 200 on two bytes
+        assertEquals(1, v2.get(Integer.BYTES + 1 + 3 + 1 + 5 + 1));
+    }
+
+    @Test
+    public void legacyLoginSizeStaysAnInt() {
+        var v2 = write(Message.sequenced(7, "bob", "hi"), true, 4096);
+        assertEquals(Message.Type.SEQUENCED.getOpcode(), v2.getInt(0));
+        assertEquals(7, v2.getLong(Integer.BYTES));
+        assertEquals(3, v2.getInt(Integer.BYTES + Long.BYTES));
+        assertEquals(Integer.BYTES + Long.BYTES + Integer.BYTES + 3 + 1 + 2, v2.remaining());
+    }
+
+    @Test
+    public void smallBuffers() {
+        for (var varInts : new boolean[] { false, true }) {
+            for (var msg : MESSAGES) {
+                var expected = write(msg, varInts, 4096);
+                for (var room = 4; room <= 16; room++) {
+                    assertEquals(expected, write(msg, varInts, room));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void splitAtEveryPosition() {
+        for (var varInts : new boolean[] { false, true }) {
+            for (var msg : MESSAGES) {
+                var expected = write(msg, varInts, 4096);
+                for (var split = 0; split < expected.remaining(); split++) {
+                    var writer = writer(varInts);
+                    writer.set(msg);
+                    var bb = ByteBuffer.allocate(expected.remaining()).limit(split);
+                    assertEquals(PARTIAL, writer.process(bb));
+                    var written = bb.position();
+                    assertTrue(written <= split);
+                    assertTrue(written > split - 4); // stops at most 3 bytes early, before a 4-byte char
+                    bb.limit(bb.capacity());
+                    assertEquals(DONE, writer.process(bb));
+                    assertEquals(expected, bb.flip());
+                    assertSameMessage(msg, read(bb, varInts));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void fourByteCharsAcrossBuffers() {
+        var msg = new Message("a😀", "😀b😀😀c😀");
+        for (var varInts : new boolean[] { false, true }) {
+            var expected = write(msg, varInts, 4096);
+            for (var room = 4; room <= 9; room++) {
+                var bytes = write(msg, varInts, room);
+                assertEquals(expected, bytes);
+                assertSameMessage(msg, read(bytes, varInts));
+            }
+        }
+    }
+
+    @Test
+    public void noProgressBelowFourBytes() {
+        var writer = new StringWriter();
+        writer.set("😀");
+        var bb = ByteBuffer.allocate(Integer.BYTES);
+        assertEquals(PARTIAL, writer.process(bb)); // the size only
+        for (var room = 0; room < 4; room++) {
+            bb = ByteBuffer.allocate(room);
+            assertEquals(PARTIAL, writer.process(bb));
+            assertEquals(0, bb.position());
+        }
+        bb = ByteBuffer.allocate(4);
+        assertEquals(DONE, writer.process(bb));
+        assertEquals(4, bb.position());
+        assertEquals((byte) 0xF0, bb.get(0));
+    }
+
+    @Test
+    public void writerReset() {
+        var writer = writer(true);
+        var bb = ByteBuffer.allocate(4096);
+        for (var msg : MESSAGES) {
+            writer.set(msg);
+            assertEquals(DONE, writer.process(bb));
+            writer.reset();
+        }
+        bb.flip();
+        var reader = new MessageReader();
+        reader.useVarInts();
+        var input = ByteBuffer.allocate(bb.remaining()).put(bb);
+        for (var msg : MESSAGES) {
+            assertEquals(Reader.ProcessStatus.DONE, reader.process(input));
+            assertSameMessage(msg, reader.get());
+            reader.reset();
+        }
+        assertEquals(0, input.position());
+    }
+
+    @Test
+    public void errorChunk() {
+        var writer = new MessageWriter();
+        assertThrows(IllegalArgumentException.class, () -> writer.set(Message.chunk(1, 10)));
+        writer.set(Message.login("bob")); // usable after the failure
+        assertEquals(DONE, writer.process(ByteBuffer.allocate(64)));
+    }
+
+    @Test
+    public void errorStringSize() {
+        var writer = new MessageWriter();
+        assertThrows(IllegalArgumentException.class, () -> writer.set(Message.join("")));
+        assertThrows(IllegalArgumentException.class, () -> writer.set(Message.login("x".repeat(1025))));
+    }
+
+    @Test
+    public void errorState() {
+        var writer = new MessageWriter();
+        assertThrows(IllegalStateException.class, () -> writer.process(ByteBuffer.allocate(64)));
+        writer.set(Message.compress());
+        assertThrows(IllegalStateException.class, () -> writer.set(Message.compress()));
+        assertEquals(DONE, writer.process(ByteBuffer.allocate(64)));
+        assertThrows(IllegalStateException.class, () -> writer.process(ByteBuffer.allocate(64)));
+    }
+}
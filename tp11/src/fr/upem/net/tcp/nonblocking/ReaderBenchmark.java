@@ -0,0 +1,280 @@
+package fr.upem.net.tcp.nonblocking;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Micro-benchmark of IntReader, StringReader and MessageReader measuring the time
+ * and the bytes allocated per value read.
+ * <p>
+ * Each scenario reads a fixed input of VALUES values through a buffer of BUFFER_SIZE
+ * bytes, fed either as much as the buffer holds (whole), by pieces of random sizes
+ * (random) or one byte at a time (trickle). The strings are either ASCII or mix
+ * characters of 2, 3 and 4 bytes in UTF-8. After some warmup iterations, every
+ * iteration reads the input in a loop during a fixed time, and the median over the
+ * iterations is reported. The allocated bytes come from the ThreadMXBean of HotSpot.
+ * The message.cached scenarios look the logins up in a LoginCache. The ints are
+ * read with IntReader.getInt, so that boxing them is not counted.
+ * <p>
+ * Usage: ReaderBenchmark [filter], where only the scenarios whose name contains
+ * filter are run. With -Dbench.baseline=file, each result is compared to the one
+ * of the same scenario in file, which has the format printed by this class.
+ */
+public class ReaderBenchmark {
+
+   static private int BUFFER_SIZE = 1_024;
+   static private int VALUES = 1_024;
+   static private int MAX_SPLIT = 64;
+   static private int SPLITS = 4_096;
+   static private int MAX_CHARS = 120;
+   static private long SEED = 20_240_101;
+   static private int WARMUP_ITERATIONS = Integer.getInteger("bench.warmups", 5);
+   static private int ITERATIONS = Integer.getInteger("bench.iterations", 10);
+   static private long ITERATION_NANOS = TimeUnit.MILLISECONDS.toNanos(Long.getLong("bench.iterationMillis", 500));
+   static private String BASELINE = System.getProperty("bench.baseline");
+   static private final Charset UTF = StandardCharsets.UTF_8;
+   static private final String UTF8_CHARS = "éß€漢😀"; // 2, 2, 3, 3 and 4 bytes
+   static private final com.sun.management.ThreadMXBean threads =
+         (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+   static private Object sink; // keeps the last value read reachable
+   static private int intSink; // same for the ints, read without boxing them
+
+   static private class Scenario {
+      private final String name;
+      private final Supplier<Reader<?>> factory;
+      private final ByteBuffer input; // read-mode, VALUES encoded values
+      private final int[] splits; // sizes of the pieces put in the buffer, null to fill it
+
+      private Scenario(String name, Supplier<Reader<?>> factory, ByteBuffer input, int[] splits) {
+         this.name = name;
+         this.factory = factory;
+         this.input = input;
+         this.splits = splits;
+      }
+   }
+
+   private final ByteBuffer bb = ByteBuffer.allocate(BUFFER_SIZE);
+   private int split; // index of the next piece, kept between two passes over the input
+
+   /**
+    * Reads all the values of the input of scenario with reader
+    */
+   private void readAll(Scenario scenario, Reader<?> reader) {
+      var input = scenario.input;
+      var intReader = reader instanceof IntReader ? (IntReader) reader : null;
+      input.rewind();
+      bb.clear();
+      var values = 0;
+      while (input.hasRemaining()) {
+         if (!bb.hasRemaining()) {
+            throw new IllegalStateException("The reader does not consume its buffer");
+         }
+         var size = Math.min(bb.remaining(), input.remaining());
+         if (scenario.splits != null) {
+            size = Math.min(size, scenario.splits[split]);
+            split = (split + 1) % scenario.splits.length;
+         }
+         var oldLimit = input.limit();
+         input.limit(input.position() + size);
+         bb.put(input);
+         input.limit(oldLimit);
+         for (;;) {
+            var status = reader.process(bb);
+            if (status == Reader.ProcessStatus.REFILL) {
+               break;
+            }
+            if (status == Reader.ProcessStatus.ERROR) {
+               throw new IllegalStateException("Invalid input in " + scenario.name);
+            }
+            if (intReader != null) {
+               intSink = intReader.getInt();
+            } else {
+               sink = reader.get();
+            }
+            reader.reset();
+            values++;
+         }
+      }
+      if (values != VALUES) {
+         throw new IllegalStateException(scenario.name + " read " + values + " values instead of " + VALUES);
+      }
+   }
+
+   /**
+    * Runs scenario and returns the median of the nanoseconds and of the bytes allocated per value
+    */
+   private double[] run(Scenario scenario) {
+      var reader = scenario.factory.get();
+      split = 0;
+      var thread = Thread.currentThread().getId();
+      var nanosPerOp = new double[ITERATIONS];
+      var bytesPerOp = new double[ITERATIONS];
+      for (var i = -WARMUP_ITERATIONS; i < ITERATIONS; i++) {
+         long ops = 0;
+         var bytes = threads.getThreadAllocatedBytes(thread);
+         var start = System.nanoTime();
+         var elapsed = 0L;
+         while (elapsed < ITERATION_NANOS) {
+            readAll(scenario, reader);
+            ops += VALUES;
+            elapsed = System.nanoTime() - start;
+         }
+         bytes = threads.getThreadAllocatedBytes(thread) - bytes;
+         if (i >= 0) {
+            nanosPerOp[i] = (double) elapsed / ops;
+            bytesPerOp[i] = (double) bytes / ops;
+         }
+      }
+      return new double[] { median(nanosPerOp), median(bytesPerOp) };
+   }
+
+   static private double median(double[] values) {
+      var sorted = values.clone();
+      Arrays.sort(sorted);
+      var middle = sorted.length / 2;
+      return sorted.length % 2 == 1 ? sorted[middle] : (sorted[middle - 1] + sorted[middle]) / 2;
+   }
+
+   static private String[] strings(Random random, String alphabet) {
+      var strings = new String[VALUES];
+      for (var i = 0; i < VALUES; i++) {
+         var length = 1 + random.nextInt(MAX_CHARS);
+         var sb = new StringBuilder(length);
+         while (sb.length() < length) {
+            var index = random.nextInt(alphabet.length());
+            if (Character.isHighSurrogate(alphabet.charAt(index))) {
+               sb.append(alphabet, index, index + 2);
+            } else if (!Character.isLowSurrogate(alphabet.charAt(index))) {
+               sb.append(alphabet.charAt(index));
+            }
+         }
+         strings[i] = sb.toString();
+      }
+      return strings;
+   }
+
+   static private void putString(ByteBuffer bb, String string) {
+      var bytes = UTF.encode(string);
+      bb.putInt(bytes.remaining()).put(bytes);
+   }
+
+   static private ByteBuffer ints(Random random) {
+      var bb = ByteBuffer.allocate(VALUES * Integer.BYTES);
+      for (var i = 0; i < VALUES; i++) {
+         bb.putInt(random.nextInt());
+      }
+      return bb.flip();
+   }
+
+   static private ByteBuffer strings(String[] strings) {
+      var bb = ByteBuffer.allocate(VALUES * (Integer.BYTES + MAX_CHARS * 4));
+      for (var string : strings) {
+         putString(bb, string);
+      }
+      return bb.flip();
+   }
+
+   /**
+    * Broadcasts from eight logins, in the legacy frame of MessageReader
+    */
+   static private ByteBuffer broadcasts(String[] strings) {
+      var bb = ByteBuffer.allocate(VALUES * (3 * Integer.BYTES + MAX_CHARS * 4));
+      for (var i = 0; i < VALUES; i++) {
+         putString(bb, "login" + i % 8);
+         putString(bb, strings[i]);
+      }
+      return bb.flip();
+   }
+
+   static private ArrayList<Scenario> scenarios() {
+      var random = new Random(SEED);
+      var feeds = new HashMap<String, int[]>();
+      feeds.put("whole", null);
+      var splits = new int[SPLITS];
+      for (var i = 0; i < SPLITS; i++) {
+         splits[i] = 1 + random.nextInt(MAX_SPLIT);
+      }
+      feeds.put("random", splits);
+      feeds.put("trickle", new int[] { 1 });
+      var ascii = strings(random, " abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789");
+      var utf8 = strings(random, "abcdefghijklmnopqrstuvwxyz " + UTF8_CHARS + UTF8_CHARS);
+      var ints = ints(random);
+      var scenarios = new ArrayList<Scenario>();
+      for (var feed : new String[] { "whole", "random", "trickle" }) {
+         var pieces = feeds.get(feed);
+         scenarios.add(new Scenario("int." + feed, IntReader::new, ints, pieces));
+         scenarios.add(new Scenario("string.ascii." + feed, StringReader::new, strings(ascii), pieces));
+         scenarios.add(new Scenario("string.utf8." + feed, StringReader::new, strings(utf8), pieces));
+         scenarios.add(new Scenario("message.ascii." + feed, MessageReader::new, broadcasts(ascii), pieces));
+         scenarios.add(new Scenario("message.utf8." + feed, MessageReader::new, broadcasts(utf8), pieces));
+         scenarios.add(new Scenario("message.cached.ascii." + feed, ReaderBenchmark::cachingReader, broadcasts(ascii),
+               pieces));
+         scenarios.add(new Scenario("message.cached.utf8." + feed, ReaderBenchmark::cachingReader, broadcasts(utf8),
+               pieces));
+      }
+      return scenarios;
+   }
+
+   static private MessageReader cachingReader() {
+      var reader = new MessageReader();
+      reader.useLoginCache(new LoginCache(16));
+      return reader;
+   }
+
+   /**
+    * Results of a previous run, by scenario name
+    */
+   static private HashMap<String, double[]> baseline(String file) throws IOException {
+      var results = new HashMap<String, double[]>();
+      for (var line : Files.readAllLines(Path.of(file))) {
+         var fields = line.trim().split("\\s+");
+         if (line.startsWith("#") || fields.length < 3) {
+            continue;
+         }
+         results.put(fields[0], new double[] { Double.parseDouble(fields[1]), Double.parseDouble(fields[2]) });
+      }
+      return results;
+   }
+
+   public static void main(String[] args) throws IOException {
+      if (args.length > 1) {
+         usage();
+         return;
+      }
+      var filter = args.length == 1 ? args[0] : "";
+      var baseline = BASELINE == null ? new HashMap<String, double[]>() : baseline(BASELINE);
+      System.out.println("# " + System.getProperty("java.vm.name") + " " + System.getProperty("java.vm.version") + ", "
+            + Runtime.getRuntime().availableProcessors() + " cpus, " + WARMUP_ITERATIONS + " warmups, " + ITERATIONS
+            + " iterations of " + TimeUnit.NANOSECONDS.toMillis(ITERATION_NANOS) + " ms");
+      System.out.println(String.format("# %-28s %10s %10s", "scenario", "ns/op", "B/op"));
+      var benchmark = new ReaderBenchmark();
+      for (var scenario : scenarios()) {
+         if (!scenario.name.contains(filter)) {
+            continue;
+         }
+         var result = benchmark.run(scenario);
+         var line = String.format("%-30s %10.1f %10.1f", scenario.name, result[0], result[1]);
+         var previous = baseline.get(scenario.name);
+         if (previous != null) {
+            line += String.format("   %+6.1f%% time, %+8.1f B/op", 100 * (result[0] / previous[0] - 1),
+                  result[1] - previous[1]);
+         }
+         System.out.println(line);
+      }
+   }
+
+   private static void usage() {
+      System.out.println("Usage : ReaderBenchmark [filter]");
+   }
+}
@@ -0,0 +1,357 @@
+package fr.upem.net.tcp.nonblocking;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+
+/**
+ * Combinators building readers of compound values from simpler readers.
+ * <p>
+ * The readers built here follow the convention of Reader: process takes a
+ * buffer in write-mode and leaves it in write-mode with the bytes it did not
+ * consume. They keep the readers they are built from and reset them when they
+ * are reset, so reading many values does not allocate anything but the values.
+ * A reader built here must not be shared with another reader.
+ */
+public final class Readers {
+
+   private Readers() {
+      throw new AssertionError();
+   }
+
+   static private abstract class AbstractReader<T> implements Reader<T> {
+
+      private boolean done;
+      private T value;
+
+      /**
+       * Reads the value, called until it returns DONE or ERROR
+       */
+      abstract ProcessStatus read(ByteBuffer bb);
+
+      /**
+       * Value read, called once read returns DONE
+       */
+      abstract T value();
+
+      /**
+       * Resets the state used by read
+       */
+      abstract void clear();
+
+      @Override
+      public final ProcessStatus process(ByteBuffer bb) {
+         if (done) {
+            throw new IllegalStateException();
+         }
+         var status = read(bb);
+         if (status == ProcessStatus.DONE) {
+            value = value();
+            done = true;
+         }
+         return status;
+      }
+
+      @Override
+      public final T get() {
+         if (!done) {
+            throw new IllegalStateException();
+         }
+         return value;
+      }
+
+      @Override
+      public final void reset() {
+         done = false;
+         value = null;
+         clear();
+      }
+   }
+
+   /**
+    * Reader applying mapper to the values of reader
+    */
+   public static <T, R> Reader<R> map(Reader<T> reader, Function<? super T, ? extends R> mapper) {
+      Objects.requireNonNull(reader);
+      Objects.requireNonNull(mapper);
+      return new AbstractReader<>() {
+         @Override
+         ProcessStatus read(ByteBuffer bb) {
+            return reader.process(bb);
+         }
+
+         @Override
+         R value() {
+            return mapper.apply(reader.get());
+         }
+
+         @Override
+         void clear() {
+            reader.reset();
+         }
+      };
+   }
+
+   /**
+    * Reader applying mapper to the ints read, without boxing them
+    */
+   public static <R> Reader<R> mapInt(IntFunction<? extends R> mapper) {
+      Objects.requireNonNull(mapper);
+      var reader = new IntReader();
+      return new AbstractReader<>() {
+         @Override
+         ProcessStatus read(ByteBuffer bb) {
+            return reader.process(bb);
+         }
+
+         @Override
+         R value() {
+            return mapper.apply(reader.getInt());
+         }
+
+         @Override
+         void clear() {
+            reader.reset();
+         }
+      };
+   }
+
+   /**
+    * Reader of a value of first followed by a value of second, combined by combiner
+    */
+   public static <A, B, R> Reader<R> sequence(Reader<A> first, Reader<B> second,
+                                              BiFunction<? super A, ? super B, ? extends R> combiner) {
+      Objects.requireNonNull(first);
+      Objects.requireNonNull(second);
+      Objects.requireNonNull(combiner);
+      return new AbstractReader<>() {
+         private boolean firstRead;
+
+         @Override
+         ProcessStatus read(ByteBuffer bb) {
+            if (!firstRead) {
+               var status = first.process(bb);
+               if (status != ProcessStatus.DONE) {
+                  return status;
+               }
+               firstRead = true;
+            }
+            return second.process(bb);
+         }
+
+         @Override
+         R value() {
+            return combiner.apply(first.get(), second.get());
+         }
+
+         @Override
+         void clear() {
+            firstRead = false;
+            first.reset();
+            second.reset();
+         }
+      };
+   }
+
+   /**
+    * Reader of the values of element read count times
+    */
+   public static <T> Reader<List<T>> repeat(int count, Reader<T> element) {
+      if (count < 0) {
+         throw new IllegalArgumentException("Negative count " + count);
+      }
+      Objects.requireNonNull(element);
+      return new Repeat<>(null, count, element);
+   }
+
+   /**
+    * Reader of an int count between 0 and maxCount followed by count values of element
+    */
+   public static <T> Reader<List<T>> counted(int maxCount, Reader<T> element) {
+      if (maxCount < 0) {
+         throw new IllegalArgumentException("Negative count " + maxCount);
+      }
+      Objects.requireNonNull(element);
+      return new Repeat<>(new IntReader(), maxCount, element);
+   }
+
+   static private class Repeat<T> extends AbstractReader<List<T>> {
+
+      private final IntReader countReader; // null if the count is fixed
+      private final int maxCount;
+      private final Reader<T> element;
+      private int count = -1; // -1 until known
+      private ArrayList<T> values;
+
+      private Repeat(IntReader countReader, int maxCount, Reader<T> element) {
+         this.countReader = countReader;
+         this.maxCount = maxCount;
+         this.element = element;
+      }
+
+      @Override
+      ProcessStatus read(ByteBuffer bb) {
+         if (count == -1) {
+            if (countReader == null) {
+               count = maxCount;
+            } else {
+               var status = countReader.process(bb);
+               if (status != ProcessStatus.DONE) {
+                  return status;
+               }
+               count = countReader.getInt();
+               if (count < 0 || count > maxCount) {
+                  return ProcessStatus.ERROR;
+               }
+            }
+            values = new ArrayList<>(count);
+         }
+         while (values.size() < count) {
+            var status = element.process(bb);
+            if (status != ProcessStatus.DONE) {
+               return status;
+            }
+            values.add(element.get());
+            element.reset();
+         }
+         return ProcessStatus.DONE;
+      }
+
+      @Override
+      List<T> value() {
+         var result = values;
+         values = null;
+         return result;
+      }
+
+      @Override
+      void clear() {
+         if (countReader != null) {
+            countReader.reset();
+         }
+         element.reset();
+         count = -1;
+         values = null;
+      }
+   }
+
+   /**
+    * Reader of an int size between 0 and maxSize followed by size bytes, which are
+    * given to decoder. The bytes are decoded in place when they are all in the
+    * buffer given to process, and accumulated in a buffer borrowed from a pool of
+    * its own otherwise.
+    *
+    * @param maxSize maximal number of bytes
+    * @param decoder decodes the bytes given in read-mode, it may consume them or not
+    *                but must not keep the buffer
+    */
+   public static <T> Reader<T> lengthPrefixed(int maxSize, Function<? super ByteBuffer, ? extends T> decoder) {
+      if (maxSize < 0) {
+         throw new IllegalArgumentException("Negative size " + maxSize);
+      }
+      Objects.requireNonNull(decoder);
+      return new LengthPrefixed<>(new BufferPool(Math.max(1, maxSize), 1), maxSize, decoder);
+   }
+
+   /**
+    * Same as lengthPrefixed(pool.bufferSize(), decoder), where the bytes split
+    * across several reads are accumulated in a buffer borrowed from pool only
+    * until they are decoded
+    *
+    * @param pool
+    * @param decoder decodes the bytes given in read-mode, it may consume them or not
+    *                but must not keep the buffer
+    */
+   public static <T> Reader<T> lengthPrefixed(BufferPool pool, Function<? super ByteBuffer, ? extends T> decoder) {
+      Objects.requireNonNull(decoder);
+      return new LengthPrefixed<>(pool, pool.bufferSize(), decoder);
+   }
+
+   static private class LengthPrefixed<T> extends AbstractReader<T> {
+
+      private final IntReader sizeReader = new IntReader();
+      private final BufferPool pool;
+      private final int maxSize;
+      private final Function<? super ByteBuffer, ? extends T> decoder;
+      private ByteBuffer internalbb; // write-mode, borrowed from pool only while split bytes are being read
+      private int size = -1; // -1 until known
+      private T decoded;
+
+      private LengthPrefixed(BufferPool pool, int maxSize, Function<? super ByteBuffer, ? extends T> decoder) {
+         this.pool = pool;
+         this.maxSize = maxSize;
+         this.decoder = decoder;
+      }
+
+      @Override
+      ProcessStatus read(ByteBuffer bb) {
+         if (size == -1) {
+            var status = sizeReader.process(bb);
+            if (status != ProcessStatus.DONE) {
+               return status;
+            }
+            var size = sizeReader.getInt();
+            if (size < 0 || size > maxSize) {
+               return ProcessStatus.ERROR;
+            }
+            this.size = size;
+         }
+         bb.flip();
+         try {
+            if (internalbb == null && bb.remaining() >= size) {
+               var view = bb.slice(bb.position(), size);
+               bb.position(bb.position() + size);
+               decoded = decoder.apply(view);
+               return ProcessStatus.DONE;
+            }
+            if (internalbb == null) {
+               internalbb = pool.acquire();
+               internalbb.limit(size);
+            }
+            if (bb.remaining() <= internalbb.remaining()) {
+               internalbb.put(bb);
+            } else {
+               var oldLimit = bb.limit();
+               bb.limit(bb.position() + internalbb.remaining());
+               internalbb.put(bb);
+               bb.limit(oldLimit);
+            }
+         } finally {
+            bb.compact();
+         }
+         if (internalbb.hasRemaining()) {
+            return ProcessStatus.REFILL;
+         }
+         internalbb.flip();
+         decoded = decoder.apply(internalbb);
+         releaseBuffer();
+         return ProcessStatus.DONE;
+      }
+
+      @Override
+      T value() {
+         var result = decoded;
+         decoded = null;
+         return result;
+      }
+
+      @Override
+      void clear() {
+         sizeReader.reset();
+         releaseBuffer();
+         size = -1;
+         decoded = null;
+      }
+
+      private void releaseBuffer() {
+         if (internalbb != null) {
+            pool.release(internalbb);
+            internalbb = null;
+         }
+      }
+   }
+}
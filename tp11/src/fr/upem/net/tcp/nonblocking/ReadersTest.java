@@ -0,0 +1,201 @@
+package fr.upem.net.tcp.nonblocking;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static fr.upem.net.tcp.nonblocking.Reader.ProcessStatus.DONE;
+import static fr.upem.net.tcp.nonblocking.Reader.ProcessStatus.ERROR;
+import static fr.upem.net.tcp.nonblocking.Reader.ProcessStatus.REFILL;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ReadersTest {
+
+    private static ByteBuffer string(String string) {
+        var bytes = StandardCharsets.UTF_8.encode(string);
+        return ByteBuffer.allocate(Integer.BYTES + bytes.remaining()).putInt(bytes.remaining()).put(bytes).flip();
+    }
+
+    private static String decode(ByteBuffer bb) {
+        return StandardCharsets.UTF_8.decode(bb).toString();
+    }
+
+    private static ByteBuffer concat(ByteBuffer... parts) {
+        var size = 0;
+        for (var part : parts) {
+            size += part.remaining();
+        }
+        var bb = ByteBuffer.allocate(size);
+        for (var part : parts) {
+            bb.put(part.duplicate());
+        }
+        return bb.flip();
+    }
+
+    /**
+     * Feeds input to reader one byte at a time, every byte but the last one must ask for a refill
+     */
+    private static <T> T trickle(Reader<T> reader, ByteBuffer input) {
+        var bb = ByteBuffer.allocate(1);
+        input = input.duplicate();
+        while (input.hasRemaining()) {
+            bb.put(input.get());
+            var status = reader.process(bb);
+            assertEquals(input.hasRemaining() ? REFILL : DONE, status);
+            assertEquals(0, bb.position());
+        }
+        return reader.get();
+    }
+
+    private static Reader<String> strings(int maxSize) {
+        return Readers.lengthPrefixed(maxSize, ReadersTest::decode);
+    }
+
+    @Test
+    public void sequenceWhole() {
+        var reader = Readers.sequence(new IntReader(), strings(64), (i, s) -> i + ":" + s);
+        var bb = ByteBuffer.allocate(1024).putInt(42).put(string("€a€"));
+        assertEquals(DONE, reader.process(bb));
+        assertEquals("42:€a€", reader.get());
+        assertEquals(0, bb.position());
+        assertEquals(bb.capacity(), bb.limit());
+    }
+
+    @Test
+    public void sequenceTrickledAndReset() {
+        var reader = Readers.sequence(new IntReader(), strings(64), (i, s) -> i + ":" + s);
+        var input = concat(ByteBuffer.allocate(Integer.BYTES).putInt(-7).flip(), string("€a€"));
+        assertEquals("-7:€a€", trickle(reader, input));
+        reader.reset();
+        var input2 = concat(ByteBuffer.allocate(Integer.BYTES).putInt(8).flip(), string("abcd"));
+        assertEquals("8:abcd", trickle(reader, input2));
+    }
+
+    @Test
+    public void sequenceLeavesNextValue() {
+        var reader = Readers.sequence(new IntReader(), new IntReader(), (a, b) -> a + b);
+        var bb = ByteBuffer.allocate(1024).putInt(1).putInt(2).putInt(3).putInt(4);
+        assertEquals(DONE, reader.process(bb));
+        assertEquals(3, (int) reader.get());
+        assertEquals(2 * Integer.BYTES, bb.position());
+        reader.reset();
+        assertEquals(DONE, reader.process(bb));
+        assertEquals(7, (int) reader.get());
+    }
+
+    @Test
+    public void countedTrickledAndReset() {
+        var reader = Readers.counted(3, strings(64));
+        var input = concat(ByteBuffer.allocate(Integer.BYTES).putInt(3).flip(), string("a"), string("€"),
+                string("bc"));
+        assertEquals(List.of("a", "€", "bc"), trickle(reader, input));
+        reader.reset();
+        var input2 = concat(ByteBuffer.allocate(Integer.BYTES).putInt(1).flip(), string("d"));
+        assertEquals(List.of("d"), trickle(reader, input2));
+    }
+
+    @Test
+    public void countedEmpty() {
+        var reader = Readers.counted(3, new IntReader());
+        var bb = ByteBuffer.allocate(1024).putInt(0);
+        assertEquals(DONE, reader.process(bb));
+        assertEquals(List.of(), reader.get());
+    }
+
+    @Test
+    public void countedTooMany() {
+        var reader = Readers.counted(3, new IntReader());
+        var bb = ByteBuffer.allocate(1024).putInt(4);
+        assertEquals(ERROR, reader.process(bb));
+    }
+
+    @Test
+    public void countedNegative() {
+        var reader = Readers.counted(3, new IntReader());
+        var bb = ByteBuffer.allocate(1024).putInt(-1);
+        assertEquals(ERROR, reader.process(bb));
+    }
+
+    @Test
+    public void repeat() {
+        var reader = Readers.repeat(2, Readers.mapInt(i -> i * 2));
+        var bb = ByteBuffer.allocate(1024).putInt(1).putInt(2);
+        assertEquals(DONE, reader.process(bb));
+        assertEquals(List.of(2, 4), reader.get());
+    }
+
+    @Test
+    public void map() {
+        var reader = Readers.map(strings(64), String::length);
+        assertEquals(3, (int) trickle(reader, string("abc")));
+    }
+
+    @Test
+    public void lengthPrefixedInPlace() {
+        var pool = new BufferPool(64, 1);
+        var reader = Readers.lengthPrefixed(pool, ReadersTest::decode);
+        var bb = ByteBuffer.allocate(1024).put(string("abc"));
+        assertEquals(DONE, reader.process(bb));
+        assertEquals("abc", reader.get());
+        assertEquals(0, pool.inUse());
+        assertEquals(0, pool.pooled());
+    }
+
+    @Test
+    public void lengthPrefixedBorrowsOnlyWhileSplit() {
+        var pool = new BufferPool(64, 1);
+        var reader = Readers.lengthPrefixed(pool, ReadersTest::decode);
+        var input = string("€abc");
+        var bb = ByteBuffer.allocate(1024);
+        bb.put(input.duplicate().limit(Integer.BYTES + 2));
+        assertEquals(REFILL, reader.process(bb));
+        assertEquals(1, pool.inUse());
+        bb.put(input.position(Integer.BYTES + 2));
+        assertEquals(DONE, reader.process(bb));
+        assertEquals("€abc", reader.get());
+        assertEquals(0, pool.inUse());
+    }
+
+    @Test
+    public void lengthPrefixedResetReleasesBuffer() {
+        var pool = new BufferPool(64, 1);
+        var reader = Readers.lengthPrefixed(pool, ReadersTest::decode);
+        var bb = ByteBuffer.allocate(1024).put(string("abcd").limit(Integer.BYTES + 1));
+        assertEquals(REFILL, reader.process(bb));
+        reader.reset();
+        assertEquals(0, pool.inUse());
+        assertEquals("xyz", trickle(reader, string("xyz")));
+        assertEquals(0, pool.inUse());
+    }
+
+    @Test
+    public void lengthPrefixedTooLong() {
+        var reader = Readers.lengthPrefixed(new BufferPool(4, 1), ReadersTest::decode);
+        var bb = ByteBuffer.allocate(1024).put(string("abcde"));
+        assertEquals(ERROR, reader.process(bb));
+    }
+
+    @Test
+    public void lengthPrefixedEmpty() {
+        var reader = strings(0);
+        var bb = ByteBuffer.allocate(1024).putInt(0);
+        assertEquals(DONE, reader.process(bb));
+        assertEquals("", reader.get());
+    }
+
+    @Test
+    public void errorGet() {
+        var reader = Readers.sequence(new IntReader(), new IntReader(), Integer::sum);
+        assertThrows(IllegalStateException.class, () -> reader.get());
+    }
+
+    @Test
+    public void errorProcessAfterDone() {
+        var reader = Readers.mapInt(i -> i);
+        var bb = ByteBuffer.allocate(1024).putInt(1);
+        assertEquals(DONE, reader.process(bb));
+        assertThrows(IllegalStateException.class, () -> reader.process(bb));
+    }
+}
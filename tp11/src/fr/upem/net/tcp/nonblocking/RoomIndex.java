@@ -0,0 +1,89 @@
+package fr.upem.net.tcp.nonblocking;
+
+import java.util.HashMap;
+
+/**
+ * Index from the name of a room to the connections which joined it.
+ * <p>
+ * The members of a room are kept in a ContextRegistry of memberships, so
+ * joining and leaving a room are O(1) whatever the size of the room, and a
+ * fan-out to a room only visits its members. A room is dropped from the index
+ * when its last member leaves it. A fan-out to a room follows the same rule
+ * as for a ContextRegistry and should loop from the last member down to 0.
+ * <p>
+ * Like a ContextRegistry, the index belongs to a single selector thread.
+ *
+ * @param <T> type of the connection contexts
+ */
+public class RoomIndex<T> {
+
+   /**
+    * Membership of a connection to one room, the connection keeps it to leave the room
+    */
+   static public class Membership<T> implements ContextRegistry.Entry {
+
+      private final String room;
+      private final T member;
+      private int registryIndex = -1;
+
+      private Membership(String room, T member) {
+         this.room = room;
+         this.member = member;
+      }
+
+      public String room() {
+         return room;
+      }
+
+      public T member() {
+         return member;
+      }
+
+      @Override
+      public int getRegistryIndex() {
+         return registryIndex;
+      }
+
+      @Override
+      public void setRegistryIndex(int index) {
+         registryIndex = index;
+      }
+   }
+
+   static private int INITIAL_ROOM_CAPACITY = 8;
+
+   private final HashMap<String, ContextRegistry<Membership<T>>> rooms = new HashMap<>();
+
+   /**
+    * Adds member to room, the caller must not join a room it is already a member of
+    *
+    * @return the membership to give back to leave
+    */
+   public Membership<T> join(String room, T member) {
+      var membership = new Membership<>(room, member);
+      rooms.computeIfAbsent(room, __ -> new ContextRegistry<>(INITIAL_ROOM_CAPACITY)).add(membership);
+      return membership;
+   }
+
+   public void leave(Membership<T> membership) {
+      var members = rooms.get(membership.room);
+      if (members == null) {
+         return;
+      }
+      members.remove(membership);
+      if (members.size() == 0) {
+         rooms.remove(membership.room);
+      }
+   }
+
+   /**
+    * @return the members of room, null if nobody joined it
+    */
+   public ContextRegistry<Membership<T>> members(String room) {
+      return rooms.get(room);
+   }
+
+   public int roomCount() {
+      return rooms.size();
+   }
+}
@@ -0,0 +1,168 @@
+package fr.upem.net.tcp.nonblocking;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Opt-in instrumentation of a selector loop, enabled with -Dtp11.stats=true.
+ * <p>
+ * When disabled every method returns immediately on a constant, so the JIT
+ * removes the calls. The counters of an instance are written by the selector
+ * thread owning it and should be read from that thread, for instance when it
+ * processes a STATS console command.
+ * <p>
+ * The expected usage in a selector loop is:
+ * <pre>
+ * stats.selectStarted();
+ * stats.selectFinished(selector.select(this::treatKey));
+ * </pre>
+ * with treatKey surrounded by treatStarted and treatFinished, and accepted called
+ * with the number of connections accepted by each call to doAccept.
+ */
+public class SelectorStats {
+
+   static public final boolean ENABLED = Boolean.getBoolean("tp11.stats");
+   static private final Path NETSTAT = Path.of("/proc/net/netstat");
+
+   private final Histogram selectWaitNanos = new Histogram();
+   private final Histogram keysPerWakeup = new Histogram();
+   private final Histogram treatKeyNanos = new Histogram();
+   private final Histogram bytesReadPerConnection = new Histogram();
+   private final Histogram bytesWrittenPerConnection = new Histogram();
+   private final Histogram acceptsPerWakeup = new Histogram();
+   private final long startNanos = System.nanoTime();
+   private final long listenOverflowsAtStart = ENABLED ? listenOverflows() : -1;
+   private long accepted;
+   private long selectStart;
+   private long treatNanosInSelect;
+   private long bytesRead;
+   private long bytesWritten;
+
+   public void selectStarted() {
+      if (!ENABLED) {
+         return;
+      }
+      selectStart = System.nanoTime();
+      treatNanosInSelect = 0;
+   }
+
+   /**
+    * The time spent in select minus the time spent in treatKey is recorded as wait time
+    *
+    * @param keys number of keys returned by select
+    */
+   public void selectFinished(int keys) {
+      if (!ENABLED) {
+         return;
+      }
+      selectWaitNanos.record(System.nanoTime() - selectStart - treatNanosInSelect);
+      keysPerWakeup.record(keys);
+   }
+
+   /**
+    * @return the value to give to treatFinished
+    */
+   public long treatStarted() {
+      if (!ENABLED) {
+         return 0;
+      }
+      return System.nanoTime();
+   }
+
+   public void treatFinished(long treatStart) {
+      if (!ENABLED) {
+         return;
+      }
+      var nanos = System.nanoTime() - treatStart;
+      treatKeyNanos.record(nanos);
+      treatNanosInSelect += nanos;
+   }
+
+   public void bytesRead(long bytes) {
+      if (!ENABLED || bytes <= 0) {
+         return;
+      }
+      bytesRead += bytes;
+   }
+
+   public void bytesWritten(long bytes) {
+      if (!ENABLED || bytes <= 0) {
+         return;
+      }
+      bytesWritten += bytes;
+   }
+
+   /**
+    * Records the connections accepted at once when the listening channel was selected
+    */
+   public void accepted(int connections) {
+      if (!ENABLED) {
+         return;
+      }
+      acceptsPerWakeup.record(connections);
+      accepted += connections;
+   }
+
+   /**
+    * Number of connections dropped by the kernel because the accept queue of a
+    * listening socket was full, counted for all the sockets of the network namespace
+    *
+    * @return ListenOverflows of /proc/net/netstat, -1 where it is not available
+    */
+   static public long listenOverflows() {
+      try {
+         var lines = Files.readAllLines(NETSTAT);
+         for (var i = 0; i + 1 < lines.size(); i += 2) {
+            var names = Arrays.asList(lines.get(i).split(" "));
+            var index = names.indexOf("ListenOverflows");
+            if (index != -1) {
+               return Long.parseLong(lines.get(i + 1).split(" ")[index]);
+            }
+         }
+      } catch (IOException | RuntimeException e) {
+         // not Linux, or an unexpected format
+      }
+      return -1;
+   }
+
+   /**
+    * Records the totals of a connection when it is closed
+    */
+   public void connectionClosed(long read, long written) {
+      if (!ENABLED) {
+         return;
+      }
+      bytesReadPerConnection.record(read);
+      bytesWrittenPerConnection.record(written);
+   }
+
+   public String report() {
+      if (!ENABLED) {
+         return "instrumentation disabled, start the server with -Dtp11.stats=true";
+      }
+      var elapsed = System.nanoTime() - startNanos;
+      var overflows = listenOverflowsAtStart == -1 ? -1 : listenOverflows() - listenOverflowsAtStart;
+      return "\n\tselect wait (ns): " + selectWaitNanos
+            + "\n\tkeys per wakeup: " + keysPerWakeup
+            + "\n\ttreatKey (ns): " + treatKeyNanos
+            + "\n\tbytes read: " + bytesRead + ", per closed connection: " + bytesReadPerConnection
+            + "\n\tbytes written: " + bytesWritten + ", per closed connection: " + bytesWrittenPerConnection
+            + "\n\taccepted: " + accepted + " (" + accepted * TimeUnit.SECONDS.toNanos(1) / Math.max(1, elapsed)
+            + " per second), per wakeup: " + acceptsPerWakeup
+            + "\n\taccept queue overflows, all sockets: " + (overflows == -1 ? "unknown" : overflows);
+   }
+
+   /**
+    * For the servers without console, logs the report when the JVM stops
+    */
+   public void reportOnExit(Logger logger) {
+      if (!ENABLED) {
+         return;
+      }
+      Runtime.getRuntime().addShutdownHook(new Thread(() -> logger.info("STATS: " + report())));
+   }
+}
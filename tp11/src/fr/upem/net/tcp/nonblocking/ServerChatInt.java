@@ -5,24 +5,26 @@ import java.io.UncheckedIOException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.*;
-import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.Queue;
-import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class ServerChatInt {
 
-   static private class Context {
+   static private class Context implements ContextRegistry.Entry {
 
       final private SelectionKey key;
       final private SocketChannel sc;
       final private ByteBuffer bbin = ByteBuffer.allocate(BUFFER_SIZE);
       final private ByteBuffer bbout = ByteBuffer.allocate(BUFFER_SIZE);
       final private Queue<Integer> queue = new LinkedList<>();
+      final private GatheringQueue<ByteBuffer> frames = new GatheringQueue<>(INITIAL_QUEUE_CAPACITY); // read-mode
       final private ServerChatInt server;
       final private IntReader messageReader = new IntReader();
+      private int registryIndex = -1;
+      private long bytesRead = 0;
+      private long bytesWritten = 0;
       private boolean closed = false;
 
       private Context(ServerChatInt server, SelectionKey key) {
@@ -31,6 +33,16 @@ public class ServerChatInt {
          this.server = server;
       }
 
+      @Override
+      public int getRegistryIndex() {
+         return registryIndex;
+      }
+
+      @Override
+      public void setRegistryIndex(int index) {
+         registryIndex = index;
+      }
+
       /**
        * Process the content of bbin
        * <p>
@@ -73,6 +85,17 @@ public class ServerChatInt {
          processOut();
       }
 
+      /**
+       * Add an encoded message to the frame queue written with gathering writes
+       * and updateInterestOps
+       *
+       * @param frame read-mode view owned by this context
+       */
+      private void queueFrame(ByteBuffer frame) {
+         frames.add(frame, frame);
+         updateInterestOps();
+      }
+
       /**
        * Try to fill bbout from the message queue
        */
@@ -99,17 +122,21 @@ public class ServerChatInt {
          if (bbin.remaining() >= Integer.BYTES && !closed) {
             newInterestOp |= SelectionKey.OP_READ;
          }
-         if (bbout.position() > 0) {
+         if (bbout.position() > 0 || !frames.isEmpty()) {
             newInterestOp |= SelectionKey.OP_WRITE;
          }
          if (newInterestOp == 0) {
-            closed = true;
+            silentlyClose();
          } else {
             key.interestOps(newInterestOp);
          }
       }
 
       private void silentlyClose() {
+         if (sc.isOpen()) {
+            server.stats.connectionClosed(bytesRead, bytesWritten);
+         }
+         server.contexts.remove(this);
          try {
             sc.close();
          } catch (IOException e) {
@@ -126,7 +153,10 @@ public class ServerChatInt {
        * @throws IOException
        */
       private void doRead() throws IOException {
-         if (sc.read(bbin) == -1) {
+         var read = sc.read(bbin);
+         bytesRead += Math.max(read, 0);
+         server.stats.bytesRead(read);
+         if (read == -1) {
             logger.info("Input stream closed");
             closed = true;
          }
@@ -143,18 +173,33 @@ public class ServerChatInt {
        */
 
       private void doWrite() throws IOException {
+         if (GATHERING_WRITE) {
+            var written = frames.write(sc, frame -> {});
+            bytesWritten += written;
+            server.stats.bytesWritten(written);
+            updateInterestOps();
+            return;
+         }
          bbout.flip();
-         sc.write(bbout);
+         var written = sc.write(bbout);
+         bytesWritten += written;
+         server.stats.bytesWritten(written);
          bbout.compact();
          processOut();
       }
    }
 
    static private int BUFFER_SIZE = 1_024;
+   static private int INITIAL_QUEUE_CAPACITY = 16;
+   static private int INITIAL_REGISTRY_CAPACITY = 1_024;
+   // each message is encoded once and written from the frame queue with gathering writes
+   static private boolean GATHERING_WRITE = Boolean.getBoolean("chatint.gatheringWrite");
    static private Logger logger = Logger.getLogger(ServerChatInt.class.getName());
 
    private final ServerSocketChannel serverSocketChannel;
    private final Selector selector;
+   private final ContextRegistry<Context> contexts = new ContextRegistry<>(INITIAL_REGISTRY_CAPACITY);
+   private final SelectorStats stats = new SelectorStats();
 
    public ServerChatInt(int port) throws IOException {
       serverSocketChannel = ServerSocketChannel.open();
@@ -165,20 +210,19 @@ public class ServerChatInt {
    public void launch() throws IOException {
       serverSocketChannel.configureBlocking(false);
       serverSocketChannel.register(selector, SelectionKey.OP_ACCEPT);
+      stats.reportOnExit(logger);
       while (!Thread.interrupted()) {
-         printKeys(); // for debug
-         System.out.println("Starting select");
          try {
-            selector.select(this::treatKey);
+            stats.selectStarted();
+            stats.selectFinished(selector.select(this::treatKey));
          } catch (UncheckedIOException tunneled) {
             throw tunneled.getCause();
          }
-         System.out.println("Select finished");
       }
    }
 
    private void treatKey(SelectionKey key) {
-      printSelectedKey(key); // for debug
+      var treatStart = stats.treatStarted();
       try {
          if (key.isValid() && key.isAcceptable()) {
             doAccept(key);
@@ -196,8 +240,9 @@ public class ServerChatInt {
          }
       } catch (IOException e) {
          logger.log(Level.INFO, "Connection closed with client due to IOException", e);
-         silentlyClose(key);
+         ((Context) key.attachment()).silentlyClose();
       }
+      stats.treatFinished(treatStart);
    }
 
    private void doAccept(SelectionKey key) throws IOException {
@@ -208,16 +253,9 @@ public class ServerChatInt {
       }
       sc.configureBlocking(false);
       var clientKey = sc.register(selector, SelectionKey.OP_READ);
-      clientKey.attach(new Context(this, clientKey));
-   }
-
-   private void silentlyClose(SelectionKey key) {
-      Channel sc = (Channel) key.channel();
-      try {
-         sc.close();
-      } catch (IOException e) {
-         // ignore exception
-      }
+      var context = new Context(this, clientKey);
+      clientKey.attach(context);
+      contexts.add(context);
    }
 
    /**
@@ -226,10 +264,12 @@ public class ServerChatInt {
     * @param msg
     */
    private void broadcast(Integer msg) {
-      var keys = selector.keys();
-      for (var key : keys) {
-         if (key.interestOps() != SelectionKey.OP_ACCEPT) {
-            var context = (Context) key.attachment();
+      var frame = GATHERING_WRITE ? ByteBuffer.allocate(Integer.BYTES).putInt(msg).flip() : null;
+      for (var i = contexts.size() - 1; i >= 0; i--) {
+         var context = contexts.get(i);
+         if (GATHERING_WRITE) {
+            context.queueFrame(frame.duplicate());
+         } else {
             context.queueMessage(msg);
          }
       }
@@ -246,67 +286,4 @@ public class ServerChatInt {
    private static void usage() {
       System.out.println("Usage : ServerSumBetter port");
    }
-
-   /***
-    *  Theses methods are here to help understanding the behavior of the selector
-    ***/
-
-   private String interestOpsToString(SelectionKey key) {
-      if (!key.isValid()) {
-         return "CANCELLED";
-      }
-      int interestOps = key.interestOps();
-      ArrayList<String> list = new ArrayList<>();
-      if ((interestOps & SelectionKey.OP_ACCEPT) != 0) list.add("OP_ACCEPT");
-      if ((interestOps & SelectionKey.OP_READ) != 0) list.add("OP_READ");
-      if ((interestOps & SelectionKey.OP_WRITE) != 0) list.add("OP_WRITE");
-      return String.join("|", list);
-   }
-
-   public void printKeys() {
-      Set<SelectionKey> selectionKeySet = selector.keys();
-      if (selectionKeySet.isEmpty()) {
-         System.out.println("The selector contains no key : this should not happen!");
-         return;
-      }
-      System.out.println("The selector contains:");
-      for (SelectionKey key : selectionKeySet) {
-         SelectableChannel channel = key.channel();
-         if (channel instanceof ServerSocketChannel) {
-            System.out.println("\tKey for ServerSocketChannel : " + interestOpsToString(key));
-         } else {
-            SocketChannel sc = (SocketChannel) channel;
-            System.out.println("\tKey for Client " + remoteAddressToString(sc) + " : " + interestOpsToString(key));
-         }
-      }
-   }
-
-   private String remoteAddressToString(SocketChannel sc) {
-      try {
-         return sc.getRemoteAddress().toString();
-      } catch (IOException e) {
-         return "???";
-      }
-   }
-
-   public void printSelectedKey(SelectionKey key) {
-      SelectableChannel channel = key.channel();
-      if (channel instanceof ServerSocketChannel) {
-         System.out.println("\tServerSocketChannel can perform : " + possibleActionsToString(key));
-      } else {
-         SocketChannel sc = (SocketChannel) channel;
-         System.out.println("\tClient " + remoteAddressToString(sc) + " can perform : " + possibleActionsToString(key));
-      }
-   }
-
-   private String possibleActionsToString(SelectionKey key) {
-      if (!key.isValid()) {
-         return "CANCELLED";
-      }
-      ArrayList<String> list = new ArrayList<>();
-      if (key.isAcceptable()) list.add("ACCEPT");
-      if (key.isReadable()) list.add("READ");
-      if (key.isWritable()) list.add("WRITE");
-      return String.join(" and ", list);
-   }
-}
\ No newline at end of file
+}
@@ -4,38 +4,112 @@ import java.io.IOException;
 import java.io.UncheckedIOException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
-import java.nio.channels.Channel;
-import java.nio.channels.SelectableChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.Path;
 import java.util.ArrayList;
-import java.util.LinkedList;
+import java.util.HashMap;
 import java.util.Queue;
-import java.util.Set;
+import java.util.Scanner;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 import java.util.logging.Level;
+import java.util.zip.Deflater;
 import java.util.logging.Logger;
 
 public class ServerChaton {
 
-   static private class Context {
+   static private class Context implements ContextRegistry.Entry, MessageReader.ChunkSink {
 
       final private SelectionKey key;
       final private SocketChannel sc;
-      final private ByteBuffer bbin = ByteBuffer.allocate(BUFFER_SIZE);
-      final private ByteBuffer bbout = ByteBuffer.allocate(BUFFER_SIZE);
-      private static final Charset UTF = Charset.forName("UTF-8");
-      final private Queue<Message> queue = new LinkedList<>();
-      final private ServerChaton server;
-      final private MessageReader messageReader = new MessageReader();
+      final private BufferPool pool;
+      private ByteBuffer bbin; // write-mode, borrowed from pool only while it holds data
+      private ByteBuffer bbout; // write-mode, borrowed from pool only while it holds data
+      final private GatheringQueue<Frame> queue = new GatheringQueue<>(INITIAL_QUEUE_CAPACITY); // views in read-mode
+      final private Consumer<Frame> onFrameSent = this::frameSent;
+      final private Reactor reactor;
+      final private MessageReader messageReader;
+      private int queuedBytes = 0;
+      private long droppedFrames = 0;
+      // time at which the queue became full, -1 once the client has caught up and emptied it
+      private long overflowSince = -1;
+      private boolean overflowWatched = false; // in the overflow list of the reactor
+      private int registryIndex = -1;
+      private long bytesRead = 0;
+      private long bytesWritten = 0;
       private boolean closed = false;
+      private boolean flushPending = false; // in the flush list of the reactor
+      // rooms joined by the client, null until it joins its first room
+      private HashMap<String, RoomIndex.Membership<Context>> memberships;
+      private String login; // null until the client sends its login
+      private boolean sequenced = false; // the client asked for the sequences of the broadcasts
+      private HistoryRing.Cursor replay; // null until the client sends RESUME
+      private Compressor compressor; // null unless the client asked for compression
+      private int streamId = -1; // id given by the client to the stream it is sending, -1 if none
+      private int relayedStreamId; // id of that stream for the other clients
+      private long streamRemaining; // bytes of that stream not received yet
+      private Frame chunkFrame; // frame of the chunk being received, null between two chunks
+      // chunks of the client not yet released by every recipient, the client is not read at STREAM_WINDOW
+      final private AtomicInteger chunksInFlight = new AtomicInteger();
+      final private Runnable onChunkDelivered = this::chunkDelivered;
+      private boolean firstFrame = true; // no frame has been read from the client yet
+      private boolean readsOpcodes = false; // the client sent an opcode frame, a legacy client never does
+      private VarIntTranscoder transcoder; // null unless the client speaks the version 2
+      private int rawFrames = 0; // queued frames sent before the answer to HELLO, which are not transcoded
+      // target of the replay of a client of version 2, which is transcoded into bbout
+      final private WritableByteChannel transcodedOut = new WritableByteChannel() {
+         @Override
+         public int write(ByteBuffer src) {
+            if (bbout == null) {
+               bbout = pool.acquire();
+            }
+            var remaining = src.remaining();
+            transcoder.transcode(src, bbout);
+            return remaining - src.remaining();
+         }
+
+         @Override
+         public boolean isOpen() {
+            return true;
+         }
+
+         @Override
+         public void close() {
+            // nothing to release
+         }
+      };
 
-      private Context(ServerChaton server, SelectionKey key) {
+      private Context(Reactor reactor, SelectionKey key) {
          this.key = key;
          this.sc = (SocketChannel) key.channel();
-         this.server = server;
+         this.reactor = reactor;
+         this.pool = reactor.server.bufferPool;
+         this.messageReader = new MessageReader(pool, this);
+         if (LOGIN_CACHE_SIZE > 0) {
+            messageReader.useLoginCache(new LoginCache(LOGIN_CACHE_SIZE));
+         }
+      }
+
+      @Override
+      public int getRegistryIndex() {
+         return registryIndex;
+      }
+
+      @Override
+      public void setRegistryIndex(int index) {
+         registryIndex = index;
       }
 
       /**
@@ -50,7 +124,53 @@ public class ServerChaton {
             switch (status) {
                case DONE:
                   Message value = messageReader.get();
-                  server.broadcast(value);
+                  if (value.getType() != Message.Type.BROADCAST) {
+                     readsOpcodes = true;
+                  }
+                  switch (value.getType()) {
+                     case JOIN:
+                        join(value.getRoom());
+                        break;
+                     case LEAVE:
+                        leave(value.getRoom());
+                        break;
+                     case LOGIN:
+                        bindLogin(value.getLogin());
+                        break;
+                     case RESUME:
+                        resume(value.getSequence());
+                        break;
+                     case COMPRESS:
+                        startCompression();
+                        break;
+                     case PRIVATE:
+                        bindLogin(value.getLogin());
+                        reactor.server.sendPrivate(value, reactor);
+                        break;
+                     case STREAM:
+                        bindLogin(value.getLogin());
+                        if (!startStream(value)) {
+                           silentlyClose();
+                           return;
+                        }
+                        break;
+                     case CHUNK:
+                        relayChunk(value.getSize());
+                        break;
+                     case HELLO:
+                        if (!hello(value.getVersion())) {
+                           silentlyClose();
+                           return;
+                        }
+                        break;
+                     default:
+                        bindLogin(value.getLogin());
+                        reactor.server.broadcast(value, reactor);
+                  }
+                  if (!sc.isOpen()) {
+                     return; // closed by its own overflow policy during the broadcast
+                  }
+                  firstFrame = false;
                   messageReader.reset();
                   break;
                case REFILL:
@@ -63,31 +183,445 @@ public class ServerChaton {
       }
 
       /**
-       * Add a message to the message queue, tries to fill bbOut and updateInterestOps
+       * Records the login of the client in the login index the first time it is known.
+       * A client reconnecting with the same login takes over the private messages
+       * of its previous connection.
+       * <p>
+       * A legacy client is not indexed, it would take the opcode of a PRIVATE frame
+       * for the size of a login. It is indexed once it sends an opcode frame.
+       */
+      private void bindLogin(String login) {
+         if (this.login != null || !readsOpcodes) {
+            return;
+         }
+         this.login = login;
+         var previous = reactor.server.logins.put(login, this);
+         if (previous != null) {
+            logger.info("Private messages to " + login + " now go to its new connection");
+         }
+      }
+
+      /**
+       * Replays the broadcasts following lastSequence kept in the history, then
+       * sends the following broadcasts with their sequence. The frames already
+       * queued are sent after the replay.
+       */
+      private void resume(long lastSequence) {
+         if (sequenced) {
+            return;
+         }
+         sequenced = true;
+         replay = reactor.server.history.cursor(lastSequence);
+      }
+
+      /**
+       * Compresses what follows the answer to COMPRESS. The bytes of the frame being
+       * sent and the answer are sent as is.
+       * <p>
+       * COMPRESS must come before RESUME, so the switch never happens in the middle
+       * of an entry of the history.
+       */
+      private void startCompression() {
+         if (compressor != null) {
+            return;
+         }
+         if (replay != null) {
+            logger.info("Ignoring COMPRESS sent after RESUME");
+            return;
+         }
+         compressor = new Compressor(COMPRESS_LEVEL, COMPRESS_BUFFER_SIZE, reactor.compressionStats);
+         if (bbout != null) {
+            bbout.flip();
+            compressor.putRaw(bbout);
+            bbout.clear();
+         }
+         var head = queue.peekBuffer();
+         if (head != null && head.position() > 0) {
+            if (transcoder != null && rawFrames == 0) {
+               var transcoded = ByteBuffer.allocate(head.remaining());
+               transcoder.transcode(head, transcoded);
+               head = transcoded.flip();
+            } else if (rawFrames > 0) {
+               rawFrames--;
+            }
+            compressor.putRaw(head);
+            frameSent(queue.poll());
+         }
+         compressor.putRaw(COMPRESS_ANSWER.duplicate());
+         processOut();
+      }
+
+      /**
+       * Answers HELLO with the version used from now on, the highest version
+       * supported up to the one asked. HELLO must be the first frame of the client.
+       * <p>
+       * The frames already queued are sent before the answer with the version 1,
+       * the following ones are transcoded to the version 2, and so is the replay.
+       *
+       * @return false if the version asked is not valid
+       */
+      private boolean hello(int asked) {
+         if (asked < 1) {
+            return false;
+         }
+         if (!firstFrame) {
+            logger.info("Ignoring HELLO which is not the first frame");
+            return true;
+         }
+         var version = Math.min(asked, PROTOCOL_VERSION);
+         var answer = reactor.server.framePool.encode(Message.hello(version), reactor.encoder);
+         queue.add(answer, answer.view());
+         queuedBytes += answer.size();
+         if (version >= 2) {
+            messageReader.useVarInts();
+            transcoder = new VarIntTranscoder();
+            rawFrames = queue.size();
+         }
+         processOut();
+         return true;
+      }
+
+      /**
+       * Announces the stream to every client under a new id. A client sends
+       * one stream at a time.
+       *
+       * @return false if the previous stream of the client is not over or if its login
+       * cannot be sent to the other clients
+       */
+      private boolean startStream(Message msg) {
+         if (streamId != -1) {
+            logger.info("Stream started before the end of the previous one");
+            return false;
+         }
+         var server = reactor.server;
+         relayedStreamId = server.nextStreamId();
+         var frame = server.framePool.encode(Message.stream(relayedStreamId, msg.getSize(), msg.getLogin()),
+               reactor.encoder);
+         if (frame == null) {
+            logger.info("Stream announced with a login too long once encoded");
+            return false;
+         }
+         if (msg.getSize() > 0) {
+            streamId = msg.getStreamId();
+            streamRemaining = msg.getSize();
+         }
+         server.relay(frame, reactor);
+         return true;
+      }
+
+      /**
+       * The bytes of the chunk are written straight into the frame relayed to the clients
+       */
+      @Override
+      public boolean chunkStarted(int streamId, int size) {
+         if (streamId != this.streamId || size > streamRemaining) {
+            logger.info("Chunk outside of the stream being sent");
+            return false;
+         }
+         chunkFrame = reactor.server.framePool.chunk(relayedStreamId, size, onChunkDelivered);
+         chunksInFlight.incrementAndGet();
+         return true;
+      }
+
+      /**
+       * Called from any thread when a chunk of the client has been sent to every recipient
+       */
+      private void chunkDelivered() {
+         if (chunksInFlight.decrementAndGet() == STREAM_WINDOW - 1) {
+            reactor.submitTask(() -> {
+               if (sc.isOpen()) {
+                  updateInterestOps(); // reads the next chunks
+               }
+            });
+         }
+      }
+
+      /**
+       * The client is not read while too many of its chunks wait in the queues of the
+       * recipients, so the slowest recipient paces the stream and no chunk is dropped
+       */
+      private boolean streamPaused() {
+         return chunksInFlight.get() >= STREAM_WINDOW;
+      }
+
+      @Override
+      public void chunkData(ByteBuffer data) {
+         chunkFrame.buffer().put(data);
+      }
+
+      private void relayChunk(long size) {
+         var frame = chunkFrame;
+         chunkFrame = null;
+         frame.buffer().flip();
+         streamRemaining -= size;
+         if (streamRemaining == 0) {
+            streamId = -1;
+         }
+         reactor.server.relay(frame, reactor);
+      }
+
+      /**
+       * The replay waits for the frames sent before the answer to HELLO and the answer,
+       * and for the end of a frame partially sent when RESUME arrived
+       */
+      private boolean replaying() {
+         if (replay == null || replay.isDone() || rawFrames > 0) {
+            return false;
+         }
+         var head = queue.peekBuffer();
+         return head == null || head.position() == 0;
+      }
+
+      private void join(String room) {
+         if (memberships == null) {
+            memberships = new HashMap<>();
+         }
+         if (!memberships.containsKey(room)) {
+            memberships.put(room, reactor.rooms.join(room, this));
+         }
+      }
+
+      private void leave(String room) {
+         if (memberships == null) {
+            return;
+         }
+         var membership = memberships.remove(room);
+         if (membership != null) {
+            reactor.rooms.leave(membership);
+         }
+      }
+
+      /**
+       * Add a frame to the frame queue, tries to fill bbOut and updateInterestOps
+       * <p>
+       * The context holds a reference to the frame until it has been copied into bbout,
+       * or written to sc in gathering write mode.
        *
-       * @param msg
+       * @param frame
+       */
+      private void queueFrame(Frame frame) {
+         if (!sc.isOpen()) {
+            return;
+         }
+         if (replay != null && frame.sequence() != -1 && frame.sequence() < replay.end()) {
+            return; // sent by the replay
+         }
+         if (!readsOpcodes && frame.isStream()) {
+            return; // a legacy client would read the opcode as the size of a login
+         }
+         if (!frame.isChunk() && isFull(frame.size()) && !applyOverflowPolicy(frame.size())) {
+            return; // the chunks are paced by the window of their sender instead
+         }
+         queue.add(frame.retain(), sequenced ? frame.sequencedView() : frame.view());
+         queuedBytes += frame.size();
+         if (BUNDLE && readsOpcodes) {
+            reactor.scheduleFlush(this); // the frames queued by this loop iteration go in one bundle
+            return;
+         }
+         processOut();
+         updateInterestOps();
+      }
+
+      /**
+       * Copies the frames queued during the loop iteration into bbout
        */
-      private void queueMessage(Message msg) {
-         queue.add(msg);
+      private void flush() {
+         if (!sc.isOpen()) {
+            return;
+         }
          processOut();
          updateInterestOps();
       }
 
       /**
-       * Try to fill bbout from the message queue
+       * A frame is always accepted in an empty queue so that a frame bigger
+       * than MAX_QUEUED_BYTES can still be sent
+       */
+      private boolean isFull(int frameSize) {
+         return !queue.isEmpty()
+               && (queue.size() >= MAX_QUEUED_FRAMES || queuedBytes + frameSize > MAX_QUEUED_BYTES);
+      }
+
+      /**
+       * Applies OVERFLOW_POLICY when a frame of frameSize bytes does not fit in the queue
+       *
+       * @param frameSize
+       * @return true if the frame can now be queued, false if it has been dropped
+       */
+      private boolean applyOverflowPolicy(int frameSize) {
+         switch (OVERFLOW_POLICY) {
+            case DROP_OLDEST:
+               while (isFull(frameSize) && dropOldest()) {
+                  // keep dropping until the new frame fits
+               }
+               if (!isFull(frameSize)) {
+                  return true;
+               }
+               break;
+            case DISCONNECT_AFTER_GRACE:
+               var now = System.currentTimeMillis();
+               if (overflowSince == -1) {
+                  overflowSince = now;
+                  reactor.watchOverflow(this);
+               } else if (!checkOverflowGrace(now)) {
+                  return false;
+               }
+               break;
+            case DROP_NEWEST:
+               break;
+         }
+         droppedFrames++;
+         return false;
+      }
+
+      /**
+       * Closes the client if its queue has been full for more than OVERFLOW_GRACE_MILLIS.
+       * Also called by the reactor on each loop iteration, so that a client which stopped
+       * reading is closed when its grace period expires even if no frame is sent to it anymore.
+       *
+       * @param now
+       * @return false if the client is closed or has emptied its queue, it is then
+       * no longer watched by the reactor
+       */
+      private boolean checkOverflowGrace(long now) {
+         if (!sc.isOpen() || overflowSince == -1) {
+            overflowWatched = false;
+            return false;
+         }
+         if (now - overflowSince > OVERFLOW_GRACE_MILLIS) {
+            logger.info("Disconnecting slow client after " + (now - overflowSince) + " ms with a full queue");
+            silentlyClose();
+            overflowWatched = false;
+            return false;
+         }
+         return true;
+      }
+
+      /**
+       * Drops the oldest frame which has not started to be sent, except the chunks
+       *
+       * @return false if there is no such frame
+       */
+      private boolean dropOldest() {
+         if (rawFrames > 0) {
+            return false; // the answer to HELLO must not be dropped
+         }
+         var frame = queue.pollUnstarted(NOT_CHUNK);
+         if (frame == null) {
+            return false;
+         }
+         queuedBytes -= frame.size();
+         frame.release();
+         droppedFrames++;
+         return true;
+      }
+
+      /**
+       * Called once a frame has been entirely copied into bbout or written to sc.
+       * The grace period of a full queue only ends once the client has caught up, a client
+       * which stopped reading may still take a frame or two as the socket buffers drain.
+       */
+      private void frameSent(Frame frame) {
+         queuedBytes -= frame.size();
+         frame.release();
+         if (queue.isEmpty()) {
+            overflowSince = -1;
+         }
+      }
+
+      /**
+       * Try to fill bbout from the frame queue, a frame that does not fit
+       * is copied partially and resumed at the next call. With bundles enabled,
+       * the whole frames which fit together in bbout are copied into a BUNDLE frame,
+       * except for a legacy client, which would read the opcode as the size of a login.
+       * <p>
+       * Does nothing in gathering write mode where the frames are written from the queue,
+       * unless they are compressed or transcoded, nor during a replay.
        */
       private void processOut() {
-         // vérifier si bbout a suffisamment de place
-         while (!queue.isEmpty()) {
-            var msg = queue.remove();
-            var login = UTF.encode(msg.getLogin());
-            var actualMsg = UTF.encode(msg.getMessage());
-            var bbtmp = ByteBuffer.allocate(BUFFER_SIZE);
-            bbtmp.putInt(login.remaining()).put(login).putInt(actualMsg.remaining()).put(actualMsg).flip();
-            bbout.put(bbtmp);
+         if ((GATHERING_WRITE && compressor == null && transcoder == null) || queue.isEmpty() || replaying()) {
+            return;
+         }
+         if (bbout == null) {
+            bbout = pool.acquire();
+         }
+         while (!queue.isEmpty() && bbout.hasRemaining() && !replaying()) {
+            var view = queue.peekBuffer();
+            if (BUNDLE && readsOpcodes && rawFrames == 0 && view.position() == 0 && copyBundle()) {
+               continue;
+            }
+            copyFrame(view);
+            if (view.hasRemaining()) {
+               return; // bbout is full
+            }
+            if (rawFrames > 0) {
+               rawFrames--;
+            }
+            frameSent(queue.poll());
          }
       }
 
+      /**
+       * Copies as much of view as bbout allows, transcoded for a client of version 2
+       */
+      private void copyFrame(ByteBuffer view) {
+         if (transcoder != null && rawFrames == 0) {
+            transcoder.transcode(view, bbout);
+            return;
+         }
+         if (view.remaining() <= bbout.remaining()) {
+            bbout.put(view);
+            return;
+         }
+         var oldLimit = view.limit();
+         view.limit(view.position() + bbout.remaining());
+         bbout.put(view);
+         view.limit(oldLimit);
+      }
+
+      /**
+       * Copies the longest run of frames of the queue which fits in bbout into a
+       * BUNDLE frame, eliding the login of a frame sent by the previous login.
+       *
+       * @return false if less than two frames fit, nothing is copied then
+       */
+      private boolean copyBundle() {
+         // the bundle of a client of version 2 is transcoded, it only gets shorter
+         var out = transcoder == null ? bbout : reactor.scratch.clear();
+         var count = 0;
+         var bound = BUNDLE_HEADER_SIZE; // elided logins only make the bundle shorter
+         ByteBuffer view;
+         while ((view = queue.peekBuffer(count)) != null && bound + view.remaining() <= bbout.remaining()) {
+            bound += view.remaining();
+            count++;
+         }
+         if (count < 2) {
+            return false;
+         }
+         out.putInt(Message.Type.BUNDLE.getOpcode()).putInt(count);
+         String previousLogin = null;
+         for (var i = 0; i < count; i++) {
+            view = queue.peekBuffer();
+            var frame = queue.poll();
+            if (frame.login() != null && frame.login().equals(previousLogin)) {
+               var loginOffset = frame.loginOffset() + view.limit() - frame.size(); // after the sequence if any
+               var afterLogin = loginOffset + Integer.BYTES + view.getInt(loginOffset);
+               var oldLimit = view.limit();
+               view.limit(loginOffset);
+               out.put(view);
+               out.putInt(0);
+               view.limit(oldLimit).position(afterLogin);
+            }
+            out.put(view);
+            previousLogin = frame.login();
+            frameSent(frame);
+         }
+         if (out != bbout) {
+            transcoder.transcode(out.flip(), bbout);
+         }
+         return true;
+      }
+
       /**
        * Update the interestOps of the key looking
        * only at values of the boolean closed and
@@ -100,14 +634,20 @@ public class ServerChaton {
        */
 
       private void updateInterestOps() {
+         if (!key.isValid()) {
+            return;
+         }
          var newInterestOp = 0;
-         if (bbin.hasRemaining() && !closed) {
+         var paused = streamPaused(); // read once, chunks are delivered by other threads
+         if ((bbin == null || bbin.hasRemaining()) && !closed && !paused) {
             newInterestOp |= SelectionKey.OP_READ;
          }
-         if (bbout.position() > 0) {
+         if ((bbout != null && bbout.position() > 0) || replaying()
+               || (compressor == null ? GATHERING_WRITE && transcoder == null && !queue.isEmpty()
+               : compressor.hasPending())) {
             newInterestOp |= SelectionKey.OP_WRITE;
          }
-         if (newInterestOp == 0) {
+         if (newInterestOp == 0 && !paused) {
             silentlyClose();
             return;
          } else {
@@ -116,11 +656,64 @@ public class ServerChaton {
       }
 
       private void silentlyClose() {
+         if (!sc.isOpen()) {
+            return;
+         }
+         reactor.stats.connectionClosed(bytesRead, bytesWritten);
+         if (droppedFrames > 0) {
+            logger.info("Closing client which missed " + droppedFrames + " frames");
+         }
          try {
             sc.close();
          } catch (IOException e) {
             // ignore exception
          }
+         reactor.contexts.remove(this);
+         if (login != null) {
+            reactor.server.logins.remove(login, this); // unless a new connection took over the login
+         }
+         if (memberships != null) {
+            for (var membership : memberships.values()) {
+               reactor.rooms.leave(membership);
+            }
+            memberships = null;
+         }
+         queuedBytes = 0;
+         queue.clear(Frame::release);
+         replay = null;
+         if (chunkFrame != null) {
+            chunkFrame.release();
+            chunkFrame = null;
+         }
+         if (compressor != null) {
+            compressor.close();
+            compressor = null;
+         }
+         messageReader.reset();
+         if (bbin != null) {
+            pool.release(bbin);
+            bbin = null;
+         }
+         if (bbout != null) {
+            pool.release(bbout);
+            bbout = null;
+         }
+      }
+
+      /**
+       * Gives bbin and bbout back to the pool when they do not hold any data.
+       * A string split across several reads is kept by messageReader, so bbin
+       * can be released between two reads.
+       */
+      private void releaseIdleBuffers() {
+         if (bbin != null && bbin.position() == 0) {
+            pool.release(bbin);
+            bbin = null;
+         }
+         if (bbout != null && bbout.position() == 0) {
+            pool.release(bbout);
+            bbout = null;
+         }
       }
 
       /**
@@ -132,16 +725,71 @@ public class ServerChaton {
        * @throws IOException
        */
       private void doRead() throws IOException {
-         if (sc.read(bbin) == -1) {
+         if (bbin == null) {
+            bbin = pool.acquire();
+         }
+         var read = sc.read(bbin);
+         bytesRead += Math.max(read, 0);
+         reactor.stats.bytesRead(read);
+         if (read == -1) {
             logger.info("Input stream closed");
             closed = true;
+            releaseIdleBuffers();
             updateInterestOps();
             return;
          }
          processIn();
+         releaseIdleBuffers();
          updateInterestOps();
       }
 
+      /**
+       * Compresses the content of bbout or the next entries of the replay, then
+       * writes what the compressor holds
+       *
+       * @return the number of bytes written
+       * @throws IOException
+       */
+      private long compressedWrite() throws IOException {
+         if (bbout != null && bbout.position() > 0) {
+            bbout.flip();
+            compressor.write(bbout);
+            bbout.compact();
+            processOut();
+            releaseIdleBuffers();
+         } else if (replaying()) {
+            if (reactor.server.history.write(transcoder == null ? compressor : transcodedOut, replay) == -1) {
+               logger.info("Disconnecting slow client whose replay was overwritten by the history");
+               silentlyClose();
+               return 0;
+            }
+            if (!replaying()) {
+               processOut();
+            }
+         }
+         return compressor.writeTo(sc);
+      }
+
+      /**
+       * Writes the next entries of the replay straight from the history
+       *
+       * @return the number of bytes written
+       * @throws IOException
+       */
+      private long replay() throws IOException {
+         // the replay of a client of version 2 is transcoded into bbout and written by the next call
+         var written = reactor.server.history.write(transcoder == null ? sc : transcodedOut, replay);
+         if (written == -1) {
+            logger.info("Disconnecting slow client whose replay was overwritten by the history");
+            silentlyClose();
+            return 0;
+         }
+         if (!replaying()) {
+            processOut(); // the frames queued during the replay
+         }
+         return transcoder == null ? written : 0;
+      }
+
       /**
        * Performs the write action on sc
        * <p>
@@ -152,171 +800,627 @@ public class ServerChaton {
        */
 
       private void doWrite() throws IOException {
-         bbout.flip();
-         sc.write(bbout);
-         bbout.compact();
-         processOut();
+         long written;
+         if (compressor != null) {
+            written = compressedWrite();
+         } else if (bbout != null && bbout.position() > 0) {
+            bbout.flip();
+            written = sc.write(bbout);
+            bbout.compact();
+            processOut();
+            releaseIdleBuffers();
+         } else if (replaying()) {
+            written = replay();
+         } else if (GATHERING_WRITE && transcoder == null) {
+            written = queue.write(sc, onFrameSent);
+         } else {
+            written = 0;
+         }
+         bytesWritten += written;
+         reactor.stats.bytesWritten(written);
          updateInterestOps();
       }
    }
 
-   static private int BUFFER_SIZE = 1_024;
-   static private Logger logger = Logger.getLogger(ServerChaton.class.getName());
+   /**
+    * A reactor owns one Selector and every client connection registered on it.
+    * <p>
+    * All the methods are called from the reactor thread except submitChannel,
+    * submitFrame and submitTask which are the only way for another thread to hand work to it.
+    */
+   static private class Reactor {
 
-   private final ServerSocketChannel serverSocketChannel;
-   private final Selector selector;
+      final private ServerChaton server;
+      final private Selector selector;
+      final private ContextRegistry<Context> contexts = new ContextRegistry<>(INITIAL_REGISTRY_CAPACITY);
+      final private RoomIndex<Context> rooms = new RoomIndex<>();
+      final private ArrayList<Context> flushes = new ArrayList<>();
+      // contexts whose queue became full with DISCONNECT_AFTER_GRACE, checked on each loop iteration
+      final private ArrayList<Context> overflowing = new ArrayList<>();
+      final private Queue<SocketChannel> pendingChannels = new ConcurrentLinkedQueue<>();
+      final private Queue<Frame> pendingFrames = new ConcurrentLinkedQueue<>();
+      final private Queue<Runnable> pendingTasks = new ConcurrentLinkedQueue<>();
+      final private SelectorStats stats = new SelectorStats();
+      final private Compressor.Stats compressionStats = new Compressor.Stats();
+      final private ByteBuffer scratch = ByteBuffer.allocate(BUFFER_SIZE); // bundles of the clients of version 2
+      final private AtomicBoolean wakeupRequested = new AtomicBoolean();
+      final private CharsetEncoder encoder = UTF.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
 
-   public ServerChaton(int port) throws IOException {
-      serverSocketChannel = ServerSocketChannel.open();
-      serverSocketChannel.bind(new InetSocketAddress(port));
-      selector = Selector.open();
-   }
+      private Reactor(ServerChaton server) throws IOException {
+         this.server = server;
+         this.selector = Selector.open();
+      }
 
-   public void launch() throws IOException {
-      serverSocketChannel.configureBlocking(false);
-      serverSocketChannel.register(selector, SelectionKey.OP_ACCEPT);
-      while (!Thread.interrupted()) {
-         printKeys(); // for debug
-         System.out.println("Starting select");
+      /**
+       * Hands a freshly accepted channel to this reactor, may be called from any thread
+       *
+       * @param sc
+       */
+      private void submitChannel(SocketChannel sc) {
+         pendingChannels.add(sc);
+         requestWakeup();
+      }
+
+      /**
+       * Hands a frame broadcast by another reactor, may be called from any thread.
+       * The reactor takes over the reference held by the caller.
+       * <p>
+       * The frames of the history are added to pendingFrames directly by
+       * relaySequenced, the origin reactor included.
+       *
+       * @param frame
+       */
+      private void submitFrame(Frame frame) {
+         pendingFrames.add(frame);
+         requestWakeup();
+      }
+
+      /**
+       * Runs task on the reactor thread, may be called from any thread
+       *
+       * @param task
+       */
+      private void submitTask(Runnable task) {
+         pendingTasks.add(task);
+         requestWakeup();
+      }
+
+      /**
+       * Wakes up the selector unless a wakeup is already pending, so a burst of
+       * submissions only costs a single wakeup
+       */
+      private void requestWakeup() {
+         if (wakeupRequested.compareAndSet(false, true)) {
+            selector.wakeup();
+         }
+      }
+
+      private void run() throws IOException {
+         while (!Thread.interrupted()) {
+            try {
+               stats.selectStarted();
+               stats.selectFinished(selector.select(this::treatKey, selectTimeout()));
+            } catch (UncheckedIOException tunneled) {
+               throw tunneled.getCause();
+            }
+            processPending();
+            flush();
+            checkOverflowGraces();
+            if (this == server.reactors[0]) {
+               server.processCommands();
+            }
+         }
+      }
+
+      /**
+       * Registers the channels, delivers the frames and runs the tasks handed by other threads.
+       * <p>
+       * The flag is cleared before draining so that a submission racing with
+       * the drain always triggers a new wakeup.
+       */
+      private void processPending() throws IOException {
+         wakeupRequested.set(false);
+         SocketChannel sc;
+         while ((sc = pendingChannels.poll()) != null) {
+            register(sc);
+         }
+         Frame frame;
+         while ((frame = pendingFrames.poll()) != null) {
+            deliver(frame);
+            frame.release();
+         }
+         Runnable task;
+         while ((task = pendingTasks.poll()) != null) {
+            task.run();
+         }
+      }
+
+      /**
+       * Watches context until its queue is no longer full, to close it when its grace period expires
+       */
+      private void watchOverflow(Context context) {
+         if (!context.overflowWatched) {
+            context.overflowWatched = true;
+            overflowing.add(context);
+         }
+      }
+
+      /**
+       * @return the time select may wait until the earliest grace period expires, 0 to wait
+       * without timeout
+       */
+      private long selectTimeout() {
+         var earliest = Long.MAX_VALUE;
+         for (var i = 0; i < overflowing.size(); i++) {
+            var since = overflowing.get(i).overflowSince;
+            if (since != -1) {
+               earliest = Math.min(earliest, since);
+            }
+         }
+         if (earliest == Long.MAX_VALUE) {
+            return 0;
+         }
+         return Math.max(1, earliest + OVERFLOW_GRACE_MILLIS + 1 - System.currentTimeMillis());
+      }
+
+      private void checkOverflowGraces() {
+         if (overflowing.isEmpty()) {
+            return;
+         }
+         var now = System.currentTimeMillis();
+         overflowing.removeIf(context -> !context.checkOverflowGrace(now));
+      }
+
+      /**
+       * Delays the copy of the frames queued for context to the end of the loop iteration
+       */
+      private void scheduleFlush(Context context) {
+         if (!context.flushPending) {
+            context.flushPending = true;
+            flushes.add(context);
+         }
+      }
+
+      private void flush() {
+         for (var i = 0; i < flushes.size(); i++) {
+            var context = flushes.get(i);
+            context.flushPending = false;
+            context.flush();
+         }
+         flushes.clear();
+      }
+
+      private void register(SocketChannel sc) throws IOException {
+         sc.configureBlocking(false);
+         var clientKey = sc.register(selector, SelectionKey.OP_READ);
+         var context = new Context(this, clientKey);
+         clientKey.attach(context);
+         contexts.add(context);
+      }
+
+      private void treatKey(SelectionKey key) {
+         var treatStart = stats.treatStarted();
+         try {
+            if (key.isValid() && key.isAcceptable()) {
+               doAccept(key);
+            }
+         } catch (IOException ioe) {
+            // lambda call in select requires to tunnel IOException
+            throw new UncheckedIOException(ioe);
+         }
          try {
-            selector.select(this::treatKey);
-         } catch (UncheckedIOException tunneled) {
-            throw tunneled.getCause();
+            if (key.isValid() && key.isWritable()) {
+               ((Context) key.attachment()).doWrite();
+            }
+            if (key.isValid() && key.isReadable()) {
+               ((Context) key.attachment()).doRead();
+            }
+         } catch (IOException e) {
+            logger.log(Level.INFO, "Connection closed with client due to IOException", e);
+            ((Context) key.attachment()).silentlyClose();
+         } catch (RuntimeException e) {
+            // a bug triggered by one client must not stop the reactor serving the others
+            logger.log(Level.WARNING, "Connection closed with client due to unexpected exception", e);
+            ((Context) key.attachment()).silentlyClose();
          }
-         System.out.println("Select finished");
+         stats.treatFinished(treatStart);
       }
-   }
 
-   private void treatKey(SelectionKey key) {
-      printSelectedKey(key); // for debug
-      try {
-         if (key.isValid() && key.isAcceptable()) {
-            doAccept(key);
+      /**
+       * Accepts the queued connections, up to ACCEPT_BUDGET so that a reconnection
+       * storm does not hold the messages of the connected clients for long
+       */
+      private void doAccept(SelectionKey key) throws IOException {
+         var ssc = (ServerSocketChannel) key.channel();
+         var accepted = 0;
+         while (accepted < ACCEPT_BUDGET) {
+            var sc = ssc.accept();
+            if (sc == null) {
+               break;
+            }
+            register(sc);
+            accepted++;
          }
-      } catch (IOException ioe) {
-         // lambda call in select requires to tunnel IOException
-         throw new UncheckedIOException(ioe);
+         stats.accepted(accepted);
       }
-      try {
-         if (key.isValid() && key.isWritable()) {
-            ((Context) key.attachment()).doWrite();
+
+      /**
+       * Add a frame to the queue of the clients of this reactor, either all of
+       * them or only the members of the room of the frame
+       *
+       * @param frame
+       */
+      private void deliver(Frame frame) {
+         if (frame.room() == null) {
+            for (var i = contexts.size() - 1; i >= 0; i--) {
+               contexts.get(i).queueFrame(frame);
+            }
+            return;
+         }
+         var members = rooms.members(frame.room());
+         if (members == null) {
+            return;
          }
-         if (key.isValid() && key.isReadable()) {
-            ((Context) key.attachment()).doRead();
+         for (var i = members.size() - 1; i >= 0; i--) {
+            members.get(i).member().queueFrame(frame);
          }
-      } catch (IOException e) {
-         logger.log(Level.INFO, "Connection closed with client due to IOException", e);
-         silentlyClose(key);
       }
    }
 
-   private void doAccept(SelectionKey key) throws IOException {
-      var ssc = (ServerSocketChannel) key.channel();
-      var sc = ssc.accept();
-      if (sc == null) {
-         return;
+   /**
+    * What to do with a frame sent to a client whose queue is full
+    */
+   public enum OverflowPolicy {
+      DROP_OLDEST, DROP_NEWEST, DISCONNECT_AFTER_GRACE
+   }
+
+   static private int BUFFER_SIZE = 1_024;
+   static private int MAX_POOLED_FRAMES = 4_096;
+   static private int MAX_POOLED_BUFFERS = 4_096;
+   // bbin, bbout and the scratch buffers of MessageReader and StringReader of a connection
+   static private int EAGER_BYTES_PER_CLIENT = 4 * BUFFER_SIZE;
+   static private int INITIAL_QUEUE_CAPACITY = 16;
+   static private int INITIAL_REGISTRY_CAPACITY = 1_024;
+   // connections accepted per wakeup of the single-threaded mode, the acceptor thread accepts without limit
+   static private int ACCEPT_BUDGET = Integer.getInteger("chaton.acceptBudget", 64);
+   // connections queued by the kernel until accepted, capped by net.core.somaxconn on Linux
+   static private int BACKLOG = Integer.getInteger("chaton.backlog", 1_024);
+   // frames are written straight from the queue with gathering writes instead of being copied into bbout
+   static private boolean GATHERING_WRITE = Boolean.getBoolean("chaton.gatheringWrite");
+   // frames queued for a client during a loop iteration are sent as a BUNDLE, legacy clients get plain frames
+   static private boolean BUNDLE = Boolean.getBoolean("chaton.bundle") && !GATHERING_WRITE;
+   static private int BUNDLE_HEADER_SIZE = 2 * Integer.BYTES;
+   // Deflater level of the clients asking for compression, and size of their compressed output
+   static private int COMPRESS_LEVEL = Integer.getInteger("chaton.compressLevel", Deflater.BEST_SPEED);
+   // room for bbout, a partially sent frame and the answer, which are sent as is
+   static private int COMPRESS_BUFFER_SIZE = BUFFER_SIZE + FramePool.SEQUENCED_FRAME_SIZE + Integer.BYTES;
+   static private final ByteBuffer COMPRESS_ANSWER =
+         ByteBuffer.allocate(Integer.BYTES).putInt(0, Message.Type.COMPRESS.getOpcode()).asReadOnlyBuffer();
+   // outbound queue bounds and slow consumer policy, set with -Dchaton.xxx=value
+   static private int MAX_QUEUED_FRAMES = Integer.getInteger("chaton.maxQueuedFrames", 1_024);
+   static private int MAX_QUEUED_BYTES = Integer.getInteger("chaton.maxQueuedBytes", 256 * 1_024);
+   static private OverflowPolicy OVERFLOW_POLICY =
+         OverflowPolicy.valueOf(System.getProperty("chaton.overflowPolicy", "DROP_OLDEST"));
+   static private long OVERFLOW_GRACE_MILLIS = Long.getLong("chaton.overflowGraceMillis", 10_000);
+   // highest version of the protocol, asked by the clients with HELLO
+   static private int PROTOCOL_VERSION = 2;
+   static private final Predicate<Frame> NOT_CHUNK = frame -> !frame.isChunk();
+   // chunks of a client which may wait in the queues of the recipients
+   static private int STREAM_WINDOW = Integer.getInteger("chaton.streamWindow", 16);
+   // logins of a client decoded once, a client sends with its own login, 0 to decode every login
+   static private int LOGIN_CACHE_SIZE = Integer.getInteger("chaton.loginCacheSize", 4);
+   // broadcasts kept off-heap for the clients which resume
+   static private int HISTORY_FRAMES = Integer.getInteger("chaton.historyFrames", 1_024);
+   static private int HISTORY_BYTES = Integer.getInteger("chaton.historyBytes", 1_024 * 1_024);
+   // durable log of the broadcasts, disabled unless -Dchaton.logDir is set
+   static private String LOG_DIR = System.getProperty("chaton.logDir");
+   static private int LOG_SEGMENT_BYTES = Integer.getInteger("chaton.logSegmentBytes", 64 * 1_024 * 1_024);
+   static private MessageLog.FsyncPolicy LOG_FSYNC =
+         MessageLog.FsyncPolicy.valueOf(System.getProperty("chaton.logFsync", "PERIODIC"));
+   static private long LOG_FSYNC_MILLIS = Long.getLong("chaton.logFsyncMillis", 1_000);
+   static private final Charset UTF = Charset.forName("UTF-8");
+   static private Logger logger = Logger.getLogger(ServerChaton.class.getName());
+
+   private final ServerSocketChannel serverSocketChannel;
+   private final FramePool framePool = new FramePool(MAX_POOLED_FRAMES);
+   private final BufferPool bufferPool = new BufferPool(BUFFER_SIZE, MAX_POOLED_BUFFERS);
+   private final HistoryRing history = new HistoryRing(HISTORY_FRAMES, HISTORY_BYTES);
+   private final MessageLog messageLog; // null if disabled
+   private final Reactor[] reactors;
+   private final ConcurrentHashMap<String, Context> logins = new ConcurrentHashMap<>();
+   private final AtomicInteger streamIds = new AtomicInteger();
+   private final ArrayBlockingQueue<String> commandQueue = new ArrayBlockingQueue<>(10);
+   private final Thread console;
+   private int nextReactor = 0;
+
+   /**
+    * Single-threaded server, the only reactor also accepts the connections
+    *
+    * @param port
+    * @throws IOException
+    */
+   public ServerChaton(int port) throws IOException {
+      this(port, 0);
+   }
+
+   /**
+    * Server with a dedicated acceptor thread dispatching the connections
+    * round-robin to nbReactors reactor threads. With nbReactors equal to 0 the server
+    * runs on a single thread.
+    *
+    * @param port
+    * @param nbReactors
+    * @throws IOException
+    */
+   public ServerChaton(int port, int nbReactors) throws IOException {
+      if (nbReactors < 0) {
+         throw new IllegalArgumentException("nbReactors must not be negative");
+      }
+      messageLog = LOG_DIR == null ? null
+            : new MessageLog(Path.of(LOG_DIR), LOG_SEGMENT_BYTES, LOG_FSYNC, LOG_FSYNC_MILLIS);
+      serverSocketChannel = ServerSocketChannel.open();
+      serverSocketChannel.bind(new InetSocketAddress(port), BACKLOG);
+      reactors = new Reactor[Math.max(1, nbReactors)];
+      for (var i = 0; i < reactors.length; i++) {
+         reactors[i] = new Reactor(this);
+      }
+      if (nbReactors == 0) {
+         serverSocketChannel.configureBlocking(false);
+         serverSocketChannel.register(reactors[0].selector, SelectionKey.OP_ACCEPT);
       }
-      sc.configureBlocking(false);
-      var clientKey = sc.register(selector, SelectionKey.OP_READ);
-      clientKey.attach(new Context(this, clientKey));
+      console = new Thread(this::consoleRun);
    }
 
-   private void silentlyClose(SelectionKey key) {
-      Channel sc = (Channel) key.channel();
+   private void consoleRun() {
       try {
-         sc.close();
-      } catch (IOException e) {
-         // ignore exception
+         var scan = new Scanner(System.in);
+         while (scan.hasNextLine()) {
+            var msg = scan.nextLine();
+            sendCommand(msg);
+         }
+      } catch (InterruptedException e) {
+         logger.info("Console thread has been interrupted");
+      } finally {
+         logger.info("Console thread stopping");
       }
    }
 
    /**
-    * Add a message to all connected clients queue
+    * Send a command to the first reactor via commandQueue and wake it up
     *
     * @param msg
+    * @throws InterruptedException
     */
-   private void broadcast(Message msg) {
-      var keys = selector.keys();
-      for (var key : keys) {
-         if (key.attachment() != null) {
-            var context = (Context) key.attachment();
-            context.queueMessage(msg);
+   private void sendCommand(String msg) throws InterruptedException {
+      commandQueue.put(msg);
+      reactors[0].selector.wakeup();
+   }
+
+   /**
+    * Processes the command from commandQueue
+    */
+   private void processCommands() {
+      while (!commandQueue.isEmpty()) {
+         var msg = commandQueue.remove();
+         switch (msg) {
+            case "INFO":
+               logger.info("INFO: " + clientCount() + " clients connected, " + logins.size() + " logged in"
+                     + (messageLog == null ? "" : ", " + messageLog.lostFrames() + " frames lost by the message log"));
+               break;
+            case "STATS":
+               for (var i = 0; i < reactors.length; i++) {
+                  var reactor = reactors[i];
+                  var name = "STATS reactor " + i + ": ";
+                  // the stats of a reactor are only read by its own thread
+                  reactor.submitTask(() -> logger.info(name + reactor.stats.report() + ", "
+                        + reactor.compressionStats));
+               }
+               break;
+            case "MEM":
+               logger.info(memoryReport());
+               break;
+            default:
+               logger.info("UNKNOWN COMMAND");
+               break;
          }
       }
    }
 
-   public static void main(String[] args) throws NumberFormatException, IOException {
-      if (args.length != 1) {
-         usage();
-         return;
+   /**
+    * Sum of the sizes of the reactor registries, which may be read from any thread
+    */
+   private int clientCount() {
+      var count = 0;
+      for (var reactor : reactors) {
+         count += reactor.contexts.size();
       }
-      new ServerChaton(Integer.parseInt(args[0])).launch();
+      return count;
    }
 
-   private static void usage() {
-      System.out.println("Usage : ServerSumBetter port");
+   /**
+    * Memory held by the connection buffers compared to what eagerly allocated buffers would cost
+    */
+   private String memoryReport() {
+      var clients = clientCount();
+      var lent = bufferPool.inUse();
+      var pooled = bufferPool.pooled();
+      var bytes = (long) (lent + pooled) * bufferPool.bufferSize();
+      return "MEM: " + clients + " clients, " + lent + " buffers lent and " + pooled + " pooled ("
+            + bytes / 1_024 + " KB), " + (clients == 0 ? 0 : bytes / clients) + " bytes per client instead of "
+            + EAGER_BYTES_PER_CLIENT + " with eager buffers, history of " + history.frames() + " frames in "
+            + history.capacity() / 1_024 + " KB off-heap";
    }
 
-   /***
-    *  Theses methods are here to help understanding the behavior of the selector
-    ***/
+   public void launch() throws IOException {
+      console.start();
+      if (serverSocketChannel.isRegistered()) {
+         reactors[0].run();
+         return;
+      }
+      for (var reactor : reactors) {
+         new Thread(() -> {
+            try {
+               reactor.run();
+            } catch (IOException e) {
+               throw new UncheckedIOException(e);
+            }
+         }).start();
+      }
+      runAcceptor();
+   }
 
-   private String interestOpsToString(SelectionKey key) {
-      if (!key.isValid()) {
-         return "CANCELLED";
+   /**
+    * Accepts the connections in blocking mode and hands them round-robin to the reactors
+    *
+    * @throws IOException
+    */
+   private void runAcceptor() throws IOException {
+      while (!Thread.interrupted()) {
+         var sc = serverSocketChannel.accept();
+         reactors[nextReactor].submitChannel(sc);
+         nextReactor = (nextReactor + 1) % reactors.length;
       }
-      int interestOps = key.interestOps();
-      ArrayList<String> list = new ArrayList<>();
-      if ((interestOps & SelectionKey.OP_ACCEPT) != 0) list.add("OP_ACCEPT");
-      if ((interestOps & SelectionKey.OP_READ) != 0) list.add("OP_READ");
-      if ((interestOps & SelectionKey.OP_WRITE) != 0) list.add("OP_WRITE");
-      return String.join("|", list);
    }
 
-   public void printKeys() {
-      Set<SelectionKey> selectionKeySet = selector.keys();
-      if (selectionKeySet.isEmpty()) {
-         System.out.println("The selector contains no key : this should not happen!");
+   /**
+    * Add a message to the queue of all connected clients, or of the members
+    * of its room for a ROOM message.
+    * <p>
+    * The message is encoded once into a frame shared by every recipient.
+    * Each reactor only visits its own members of the room. The messages sent
+    * to everybody are also kept in the history, and every message is appended to
+    * the message log if it is enabled.
+    * The clients of the origin reactor are served directly, the other
+    * reactors receive the frame through their hand-off queue.
+    * A message whose strings are too long once encoded is dropped.
+    *
+    * @param msg
+    * @param origin the reactor calling broadcast
+    */
+   private void broadcast(Message msg, Reactor origin) {
+      var frame = framePool.encode(msg, origin.encoder);
+      if (frame == null) {
+         logger.info("Dropping a message too long once encoded");
          return;
       }
-      System.out.println("The selector contains:");
-      for (SelectionKey key : selectionKeySet) {
-         SelectableChannel channel = key.channel();
-         if (channel instanceof ServerSocketChannel) {
-            System.out.println("\tKey for ServerSocketChannel : " + interestOpsToString(key));
-         } else {
-            SocketChannel sc = (SocketChannel) channel;
-            System.out.println("\tKey for Client " + remoteAddressToString(sc) + " : " + interestOpsToString(key));
-         }
+      if (frame.room() == null) {
+         relaySequenced(frame, origin);
+         return;
+      }
+      if (messageLog != null) {
+         messageLog.append(frame);
       }
+      relay(frame, origin);
    }
 
-   private String remoteAddressToString(SocketChannel sc) {
+   /**
+    * Gives the next sequence to frame and adds it to the hand-off queue of every
+    * reactor under the lock of the history, so that every reactor delivers the frames
+    * in the order of their sequences. A client acknowledges the highest sequence it
+    * received, so a frame delivered after the next one could be skipped by a RESUME.
+    * The frame is copied to the message log under the same lock, so the log is in
+    * the order of the sequences too.
+    * <p>
+    * The origin reactor delivers the frame at the end of its loop iteration.
+    * The frame is released.
+    *
+    * @param frame
+    * @param origin the reactor calling relaySequenced
+    */
+   private void relaySequenced(Frame frame, Reactor origin) {
+      MessageLog.Copy logged = null;
       try {
-         return sc.getRemoteAddress().toString();
-      } catch (IOException e) {
-         return "???";
+         synchronized (history) {
+            history.append(frame);
+            for (var reactor : reactors) {
+               reactor.pendingFrames.add(frame.retain());
+            }
+            if (messageLog != null) {
+               logged = messageLog.copy(frame); // with its sequence, in the order of the sequences
+            }
+         }
+         if (messageLog != null) {
+            messageLog.force(logged);
+         }
+      } finally {
+         for (var reactor : reactors) {
+            if (reactor != origin) {
+               reactor.requestWakeup();
+            }
+         }
+         frame.release();
+      }
+   }
+
+   /**
+    * Add a frame to the queue of all connected clients, or of the members of its room,
+    * and release it. The frames of the streams are relayed chunk by chunk this way,
+    * outside of the history and of the message log.
+    *
+    * @param frame
+    * @param origin the reactor calling relay
+    */
+   private void relay(Frame frame, Reactor origin) {
+      for (var reactor : reactors) {
+         if (reactor == origin) {
+            reactor.deliver(frame);
+         } else {
+            reactor.submitFrame(frame.retain());
+         }
       }
+      frame.release();
+   }
+
+   /**
+    * @return a new stream id, which is never negative
+    */
+   private int nextStreamId() {
+      return streamIds.getAndIncrement() & Integer.MAX_VALUE;
    }
 
-   public void printSelectedKey(SelectionKey key) {
-      SelectableChannel channel = key.channel();
-      if (channel instanceof ServerSocketChannel) {
-         System.out.println("\tServerSocketChannel can perform : " + possibleActionsToString(key));
-      } else {
-         SocketChannel sc = (SocketChannel) channel;
-         System.out.println("\tClient " + remoteAddressToString(sc) + " can perform : " + possibleActionsToString(key));
+   /**
+    * Add a PRIVATE message to the queue of its recipient only, found in O(1)
+    * through the login index. The message is dropped if the recipient is not connected.
+    * <p>
+    * A recipient of another reactor is served by a task of its reactor.
+    *
+    * @param msg
+    * @param origin the reactor calling sendPrivate
+    */
+   private void sendPrivate(Message msg, Reactor origin) {
+      var recipient = logins.get(msg.getRecipient());
+      if (recipient == null) {
+         logger.fine("Private message to unknown login " + msg.getRecipient());
+         return;
+      }
+      var frame = framePool.encode(msg, origin.encoder);
+      if (frame == null) {
+         logger.info("Dropping a private message too long once encoded");
+         return;
+      }
+      if (recipient.reactor == origin) {
+         recipient.queueFrame(frame);
+         frame.release();
+         return;
       }
+      recipient.reactor.submitTask(() -> {
+         recipient.queueFrame(frame);
+         frame.release();
+      });
    }
 
-   private String possibleActionsToString(SelectionKey key) {
-      if (!key.isValid()) {
-         return "CANCELLED";
+   public static void main(String[] args) throws NumberFormatException, IOException {
+      if (args.length != 1 && args.length != 2) {
+         usage();
+         return;
       }
-      ArrayList<String> list = new ArrayList<>();
-      if (key.isAcceptable()) list.add("ACCEPT");
-      if (key.isReadable()) list.add("READ");
-      if (key.isWritable()) list.add("WRITE");
-      return String.join(" and ", list);
+      var nbReactors = args.length == 2 ? Integer.parseInt(args[1]) : 0;
+      new ServerChaton(Integer.parseInt(args[0]), nbReactors).launch();
+   }
+
+   private static void usage() {
+      System.out.println("Usage : ServerChaton port [nbReactors]");
    }
-}
\ No newline at end of file
+}
@@ -0,0 +1,106 @@
+package fr.upem.net.tcp.nonblocking;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ServerChatonTest {
+
+    /**
+     * Starts a single-threaded server on a free port. The server runs on a daemon
+     * thread, so do its console and the threads it starts.
+     */
+    private static int startServer() throws IOException {
+        int port;
+        try (var probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        var ready = new Object[1];
+        var thread = new Thread(() -> {
+            try {
+                var server = new ServerChaton(port);
+                synchronized (ready) {
+                    ready[0] = server;
+                    ready.notifyAll();
+                }
+                server.launch();
+            } catch (IOException e) {
+                synchronized (ready) {
+                    ready[0] = e;
+                    ready.notifyAll();
+                }
+                throw new UncheckedIOException(e);
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        synchronized (ready) {
+            while (ready[0] == null) {
+                try {
+                    ready.wait();
+                } catch (InterruptedException e) {
+                    throw new AssertionError(e);
+                }
+            }
+        }
+        if (ready[0] instanceof IOException) {
+            throw (IOException) ready[0];
+        }
+        return port;
+    }
+
+    private static Socket connect(int port) throws IOException {
+        var socket = new Socket("localhost", port);
+        socket.setSoTimeout(5_000);
+        return socket;
+    }
+
+    private static void sendLegacy(DataOutputStream out, byte[] login, byte[] message) throws IOException {
+        out.writeInt(login.length);
+        out.write(login);
+        out.writeInt(message.length);
+        out.write(message);
+        out.flush();
+    }
+
+    private static void sendLegacy(DataOutputStream out, String login, String message) throws IOException {
+        sendLegacy(out, login.getBytes(StandardCharsets.UTF_8), message.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        var bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void malformedFrameDoesNotStopTheServer() throws IOException {
+        var port = startServer();
+        try (var sender = connect(port); var receiver = connect(port); var other = connect(port)) {
+            var receiverIn = new DataInputStream(receiver.getInputStream());
+            var receiverOut = new DataOutputStream(receiver.getOutputStream());
+            // the receiver is registered once it gets its own broadcast back
+            sendLegacy(receiverOut, "bob", "ready");
+            assertEquals("bob", readString(receiverIn));
+            assertEquals("ready", readString(receiverIn));
+
+            // 0xFF is decoded as U+FFFD, which takes 3 bytes once encoded again
+            var garbage = new byte[1024];
+            Arrays.fill(garbage, (byte) 0xFF);
+            sendLegacy(new DataOutputStream(sender.getOutputStream()), garbage, garbage);
+            sendLegacy(new DataOutputStream(other.getOutputStream()), "alice", "hello");
+
+            assertEquals("alice", readString(receiverIn));
+            assertEquals("hello", readString(receiverIn));
+        }
+    }
+}
@@ -0,0 +1,315 @@
+package fr.upem.net.tcp.nonblocking;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Chat server speaking the protocol of ServerChaton with blocking I/O: each client
+ * has a thread reading its frames. Its queue of frames is written by a task started
+ * by the fan-out when a frame is queued and no task is writing, which stops once the
+ * queue is empty, so an idle client only costs its reading thread.
+ * <p>
+ * The threads are virtual threads when the runtime provides them, platform threads
+ * otherwise. The broadcasts, rooms and private messages are supported, the history,
+ * the bundles, the compression and the message log are only provided by ServerChaton,
+ * so RESUME, COMPRESS and the streams are ignored and HELLO is answered with version 1.
+ */
+public class ServerChatonVirtual {
+
+   static private class Client {
+
+      final private ServerChatonVirtual server;
+      final private SocketChannel sc;
+      final private BlockingQueue<Frame> queue = new ArrayBlockingQueue<>(MAX_QUEUED_FRAMES);
+      final private HashSet<String> rooms = new HashSet<>(); // only used by the reading thread
+      final private AtomicLong droppedFrames = new AtomicLong();
+      final private AtomicBoolean draining = new AtomicBoolean(); // a task is writing the queue
+      private String login; // only used by the reading thread, null until known
+      private boolean readsOpcodes = false; // only used by the reading thread, a legacy client never sends opcodes
+
+      private Client(ServerChatonVirtual server, SocketChannel sc) {
+         this.server = server;
+         this.sc = sc;
+      }
+
+      /**
+       * Reads and handles the frames of the client until it disconnects
+       */
+      private void readLoop() {
+         var encoder = UTF.newEncoder()
+               .onMalformedInput(CodingErrorAction.REPLACE)
+               .onUnmappableCharacter(CodingErrorAction.REPLACE);
+         var reader = new BlockingReader<>(new MessageReader(), sc, ByteBuffer.allocate(BUFFER_SIZE));
+         try {
+            Message msg;
+            while ((msg = reader.read()) != null) {
+               handle(msg, encoder);
+            }
+            logger.info("Input stream closed");
+         } catch (IOException e) {
+            logger.info("Connection closed with client due to IOException: " + e.getMessage());
+         } finally {
+            close();
+         }
+      }
+
+      private void handle(Message msg, CharsetEncoder encoder) {
+         if (msg.getType() != Message.Type.BROADCAST) {
+            readsOpcodes = true;
+         }
+         switch (msg.getType()) {
+            case JOIN:
+               if (rooms.add(msg.getRoom())) {
+                  server.join(msg.getRoom(), this);
+               }
+               break;
+            case LEAVE:
+               if (rooms.remove(msg.getRoom())) {
+                  server.leave(msg.getRoom(), this);
+               }
+               break;
+            case LOGIN:
+               bindLogin(msg.getLogin());
+               break;
+            case PRIVATE:
+               bindLogin(msg.getLogin());
+               server.sendPrivate(msg, encoder);
+               break;
+            case BROADCAST:
+            case ROOM:
+               bindLogin(msg.getLogin());
+               server.broadcast(msg, encoder);
+               break;
+            case HELLO:
+               var answer = server.framePool.encode(Message.hello(1), encoder); // length prefixes stay ints
+               send(answer);
+               answer.release();
+               break;
+            default:
+               break; // RESUME, COMPRESS, STREAM and CHUNK are not supported
+         }
+      }
+
+      /**
+       * A legacy client is not indexed, it cannot read a PRIVATE frame
+       */
+      private void bindLogin(String login) {
+         if (this.login == null && readsOpcodes) {
+            this.login = login;
+            server.logins.put(login, this);
+         }
+      }
+
+      /**
+       * Writes the queued frames until the queue is empty. A frame queued after the
+       * last poll but before draining is cleared starts a new task.
+       */
+      private void drain() {
+         try {
+            Frame frame;
+            while ((frame = queue.poll()) != null) {
+               try {
+                  var view = frame.view();
+                  while (view.hasRemaining()) {
+                     sc.write(view);
+                  }
+               } finally {
+                  frame.release();
+               }
+            }
+         } catch (IOException e) {
+            if (sc.isOpen()) {
+               logger.info("Connection closed with client due to IOException: " + e.getMessage());
+            }
+            try {
+               sc.close(); // the reading thread fails and closes the client
+            } catch (IOException ioe) {
+               // ignore exception
+            }
+            releaseQueue();
+         } finally {
+            draining.set(false);
+         }
+         if (!queue.isEmpty()) {
+            startDrain();
+         }
+      }
+
+      private void startDrain() {
+         if (draining.compareAndSet(false, true)) {
+            server.executor.execute(this::drain);
+         }
+      }
+
+      private void releaseQueue() {
+         Frame frame;
+         while ((frame = queue.poll()) != null) {
+            frame.release();
+         }
+      }
+
+      /**
+       * Queues frame, may be called from any thread.
+       * The frame is dropped if the queue of the client is full.
+       */
+      private void send(Frame frame) {
+         if (!queue.offer(frame.retain())) {
+            frame.release();
+            droppedFrames.incrementAndGet();
+            return;
+         }
+         startDrain();
+      }
+
+      /**
+       * Called by the reading thread once it is done
+       */
+      private void close() {
+         if (!server.clients.remove(this)) {
+            return;
+         }
+         try {
+            sc.close();
+         } catch (IOException e) {
+            // ignore exception
+         }
+         if (login != null) {
+            server.logins.remove(login, this);
+         }
+         for (var room : rooms) {
+            server.leave(room, this);
+         }
+         if (droppedFrames.get() > 0) {
+            logger.info("Closing client which missed " + droppedFrames.get() + " frames");
+         }
+         startDrain(); // fails on the closed channel and releases the queue
+      }
+   }
+
+   static private int BUFFER_SIZE = 1_024;
+   static private int MAX_POOLED_FRAMES = 4_096;
+   static private int MAX_QUEUED_FRAMES = Integer.getInteger("chaton.maxQueuedFrames", 1_024);
+   static private final Charset UTF = Charset.forName("UTF-8");
+   static private Logger logger = Logger.getLogger(ServerChatonVirtual.class.getName());
+
+   private final ServerSocketChannel serverSocketChannel;
+   private final ExecutorService executor = newThreadPerTaskExecutor();
+   private final FramePool framePool = new FramePool(MAX_POOLED_FRAMES);
+   private final Set<Client> clients = ConcurrentHashMap.newKeySet();
+   private final ConcurrentHashMap<String, Set<Client>> rooms = new ConcurrentHashMap<>();
+   private final ConcurrentHashMap<String, Client> logins = new ConcurrentHashMap<>();
+
+   public ServerChatonVirtual(int port) throws IOException {
+      serverSocketChannel = ServerSocketChannel.open();
+      serverSocketChannel.bind(new InetSocketAddress(port));
+   }
+
+   /**
+    * Executor starting a virtual thread per task when the runtime has them
+    * (Java 21, or Java 19 and 20 with preview features enabled), a cached
+    * pool of platform threads otherwise. The method is looked up by reflection
+    * because this code is compiled for an older release.
+    */
+   static private ExecutorService newThreadPerTaskExecutor() {
+      try {
+         var executor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+         logger.info("Using virtual threads");
+         return executor;
+      } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
+         logger.info("Virtual threads are not available, using platform threads");
+         return Executors.newCachedThreadPool();
+      }
+   }
+
+   public void launch() throws IOException {
+      while (!Thread.interrupted()) {
+         var sc = serverSocketChannel.accept();
+         var client = new Client(this, sc);
+         clients.add(client);
+         executor.execute(client::readLoop);
+      }
+   }
+
+   private void join(String room, Client client) {
+      rooms.compute(room, (__, members) -> {
+         if (members == null) {
+            members = ConcurrentHashMap.newKeySet();
+         }
+         members.add(client);
+         return members;
+      });
+   }
+
+   private void leave(String room, Client client) {
+      rooms.computeIfPresent(room, (__, members) -> {
+         members.remove(client);
+         return members.isEmpty() ? null : members;
+      });
+   }
+
+   /**
+    * Encodes msg once and queues it for all the clients, or the members of its room.
+    * A message whose strings are too long once encoded is dropped.
+    *
+    * @param msg
+    * @param encoder encoder of the calling thread
+    */
+   private void broadcast(Message msg, CharsetEncoder encoder) {
+      var frame = framePool.encode(msg, encoder);
+      if (frame == null) {
+         logger.info("Dropping a message too long once encoded");
+         return;
+      }
+      var recipients = frame.room() == null ? clients : rooms.get(frame.room());
+      if (recipients != null) {
+         for (var client : recipients) {
+            client.send(frame);
+         }
+      }
+      frame.release();
+   }
+
+   private void sendPrivate(Message msg, CharsetEncoder encoder) {
+      var recipient = logins.get(msg.getRecipient());
+      if (recipient == null) {
+         logger.fine("Private message to unknown login " + msg.getRecipient());
+         return;
+      }
+      var frame = framePool.encode(msg, encoder);
+      if (frame == null) {
+         logger.info("Dropping a private message too long once encoded");
+         return;
+      }
+      recipient.send(frame);
+      frame.release();
+   }
+
+   public static void main(String[] args) throws NumberFormatException, IOException {
+      if (args.length != 1) {
+         usage();
+         return;
+      }
+      new ServerChatonVirtual(Integer.parseInt(args[0])).launch();
+   }
+
+   private static void usage() {
+      System.out.println("Usage : ServerChatonVirtual port");
+   }
+}
@@ -5,8 +5,6 @@ import java.io.UncheckedIOException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.*;
-import java.util.ArrayList;
-import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -16,9 +14,13 @@ public class ServerEcho {
       final private SelectionKey key;
       final private SocketChannel sc;
       final private ByteBuffer bb = ByteBuffer.allocate(BUFFER_SIZE);
+      final private SelectorStats stats;
+      private long bytesRead = 0;
+      private long bytesWritten = 0;
       private boolean closed = false;
 
-      private Context(SelectionKey key) {
+      private Context(SelectorStats stats, SelectionKey key) {
+         this.stats = stats;
          this.key = key;
          this.sc = (SocketChannel) key.channel();
       }
@@ -69,7 +71,10 @@ public class ServerEcho {
        * @throws IOException
        */
       private void doRead() throws IOException {
-         if (sc.read(bb) == -1) {
+         var read = sc.read(bb);
+         bytesRead += Math.max(read, 0);
+         stats.bytesRead(read);
+         if (read == -1) {
             logger.info("Input stream closed");
             closed = true;
          }
@@ -87,12 +92,17 @@ public class ServerEcho {
        */
       private void doWrite() throws IOException {
          bb.flip();
-         sc.write(bb);
+         var written = sc.write(bb);
+         bytesWritten += written;
+         stats.bytesWritten(written);
          bb.compact();
          updateInterestOps();
       }
 
       private void silentlyClose() {
+         if (sc.isOpen()) {
+            stats.connectionClosed(bytesRead, bytesWritten);
+         }
          try {
             sc.close();
          } catch (IOException e) {
@@ -102,34 +112,36 @@ public class ServerEcho {
    }
 
    static private int BUFFER_SIZE = 1_024;
+   static private int ACCEPT_BUDGET = Integer.getInteger("tp11.acceptBudget", 64);
+   static private int BACKLOG = Integer.getInteger("tp11.backlog", 1_024);
    static private Logger logger = Logger.getLogger(ServerEcho.class.getName());
 
    private final ServerSocketChannel serverSocketChannel;
    private final Selector selector;
+   private final SelectorStats stats = new SelectorStats();
 
    public ServerEcho(int port) throws IOException {
       serverSocketChannel = ServerSocketChannel.open();
-      serverSocketChannel.bind(new InetSocketAddress(port));
+      serverSocketChannel.bind(new InetSocketAddress(port), BACKLOG);
       selector = Selector.open();
    }
 
    public void launch() throws IOException {
       serverSocketChannel.configureBlocking(false);
       serverSocketChannel.register(selector, SelectionKey.OP_ACCEPT);
+      stats.reportOnExit(logger);
       while (!Thread.interrupted()) {
-         printKeys(); // for debug
-         System.out.println("Starting select");
          try {
-            selector.select(this::treatKey);
+            stats.selectStarted();
+            stats.selectFinished(selector.select(this::treatKey));
          } catch (UncheckedIOException tunneled) {
             throw tunneled.getCause();
          }
-         System.out.println("Select finished");
       }
    }
 
    private void treatKey(SelectionKey key) {
-      printSelectedKey(key); // for debug
+      var treatStart = stats.treatStarted();
       try {
          if (key.isValid() && key.isAcceptable()) {
             doAccept(key);
@@ -147,28 +159,28 @@ public class ServerEcho {
          }
       } catch (IOException e) {
          logger.log(Level.INFO, "Connection closed with client due to IOException", e);
-         silentlyClose(key);
+         ((Context) key.attachment()).silentlyClose();
       }
+      stats.treatFinished(treatStart);
    }
 
+   /**
+    * Accepts up to ACCEPT_BUDGET pending connections, the others wait for the next wakeup
+    */
    private void doAccept(SelectionKey key) throws IOException {
       var ssc = (ServerSocketChannel) key.channel();
-      var sc = ssc.accept();
-      if (sc == null) {
-         return;
-      }
-      sc.configureBlocking(false);
-      var clientKey = sc.register(selector, SelectionKey.OP_READ);
-      clientKey.attach(new Context(clientKey));
-   }
-
-   private void silentlyClose(SelectionKey key) {
-      Channel sc = (Channel) key.channel();
-      try {
-         sc.close();
-      } catch (IOException e) {
-         // ignore exception
+      var accepted = 0;
+      while (accepted < ACCEPT_BUDGET) {
+         var sc = ssc.accept();
+         if (sc == null) {
+            break;
+         }
+         sc.configureBlocking(false);
+         var clientKey = sc.register(selector, SelectionKey.OP_READ);
+         clientKey.attach(new Context(stats, clientKey));
+         accepted++;
       }
+      stats.accepted(accepted);
    }
 
    public static void main(String[] args) throws NumberFormatException, IOException {
@@ -182,67 +194,4 @@ public class ServerEcho {
    private static void usage() {
       System.out.println("Usage : ServerEcho port");
    }
-
-   /***
-    *  Theses methods are here to help understanding the behavior of the selector
-    ***/
-
-   private String interestOpsToString(SelectionKey key) {
-      if (!key.isValid()) {
-         return "CANCELLED";
-      }
-      int interestOps = key.interestOps();
-      ArrayList<String> list = new ArrayList<>();
-      if ((interestOps & SelectionKey.OP_ACCEPT) != 0) list.add("OP_ACCEPT");
-      if ((interestOps & SelectionKey.OP_READ) != 0) list.add("OP_READ");
-      if ((interestOps & SelectionKey.OP_WRITE) != 0) list.add("OP_WRITE");
-      return String.join("|", list);
-   }
-
-   public void printKeys() {
-      Set<SelectionKey> selectionKeySet = selector.keys();
-      if (selectionKeySet.isEmpty()) {
-         System.out.println("The selector contains no key : this should not happen!");
-         return;
-      }
-      System.out.println("The selector contains:");
-      for (SelectionKey key : selectionKeySet) {
-         SelectableChannel channel = key.channel();
-         if (channel instanceof ServerSocketChannel) {
-            System.out.println("\tKey for ServerSocketChannel : " + interestOpsToString(key));
-         } else {
-            SocketChannel sc = (SocketChannel) channel;
-            System.out.println("\tKey for Client " + remoteAddressToString(sc) + " : " + interestOpsToString(key));
-         }
-      }
-   }
-
-   private String remoteAddressToString(SocketChannel sc) {
-      try {
-         return sc.getRemoteAddress().toString();
-      } catch (IOException e) {
-         return "???";
-      }
-   }
-
-   public void printSelectedKey(SelectionKey key) {
-      SelectableChannel channel = key.channel();
-      if (channel instanceof ServerSocketChannel) {
-         System.out.println("\tServerSocketChannel can perform : " + possibleActionsToString(key));
-      } else {
-         SocketChannel sc = (SocketChannel) channel;
-         System.out.println("\tClient " + remoteAddressToString(sc) + " can perform : " + possibleActionsToString(key));
-      }
-   }
-
-   private String possibleActionsToString(SelectionKey key) {
-      if (!key.isValid()) {
-         return "CANCELLED";
-      }
-      ArrayList<String> list = new ArrayList<>();
-      if (key.isAcceptable()) list.add("ACCEPT");
-      if (key.isReadable()) list.add("READ");
-      if (key.isWritable()) list.add("WRITE");
-      return String.join(" and ", list);
-   }
 }
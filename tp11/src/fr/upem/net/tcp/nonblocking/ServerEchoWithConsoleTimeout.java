@@ -4,15 +4,11 @@ import java.io.IOException;
 import java.io.UncheckedIOException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
-import java.nio.channels.Channel;
-import java.nio.channels.SelectableChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
-import java.util.ArrayList;
 import java.util.Scanner;
-import java.util.Set;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -20,15 +16,22 @@ import java.util.logging.Logger;
 public class ServerEchoWithConsoleTimeout {
    private static int TIMEOUT = 300;
 
-   static private class Context {
+   static private class Context implements ContextRegistry.Entry {
       final private SelectionKey key;
       final private SocketChannel sc;
       final private ByteBuffer bb = ByteBuffer.allocate(BUFFER_SIZE);
+      final private ContextRegistry<Context> contexts;
+      final private SelectorStats stats;
+      private int registryIndex = -1;
       private boolean activeSinceLastTimeoutCheck;
 
+      private long bytesRead = 0;
+      private long bytesWritten = 0;
       private boolean closed = false;
 
-      private Context(SelectionKey key) {
+      private Context(ContextRegistry<Context> contexts, SelectorStats stats, SelectionKey key) {
+         this.contexts = contexts;
+         this.stats = stats;
          this.key = key;
          this.sc = (SocketChannel) key.channel();
          activeSinceLastTimeoutCheck = false;
@@ -81,7 +84,10 @@ public class ServerEchoWithConsoleTimeout {
        */
       private void doRead() throws IOException {
          activeSinceLastTimeoutCheck = true;
-         if (sc.read(bb) == -1) {
+         var read = sc.read(bb);
+         bytesRead += Math.max(read, 0);
+         stats.bytesRead(read);
+         if (read == -1) {
             logger.info("Input stream closed");
             closed = true;
          }
@@ -100,12 +106,28 @@ public class ServerEchoWithConsoleTimeout {
       private void doWrite() throws IOException {
          activeSinceLastTimeoutCheck = true;
          bb.flip();
-         sc.write(bb);
+         var written = sc.write(bb);
+         bytesWritten += written;
+         stats.bytesWritten(written);
          bb.compact();
          updateInterestOps();
       }
 
+      @Override
+      public int getRegistryIndex() {
+         return registryIndex;
+      }
+
+      @Override
+      public void setRegistryIndex(int index) {
+         registryIndex = index;
+      }
+
       private void silentlyClose() {
+         if (sc.isOpen()) {
+            stats.connectionClosed(bytesRead, bytesWritten);
+         }
+         contexts.remove(this);
          try {
             sc.close();
          } catch (IOException e) {
@@ -115,10 +137,13 @@ public class ServerEchoWithConsoleTimeout {
    }
 
    static private int BUFFER_SIZE = 1_024;
+   static private int INITIAL_REGISTRY_CAPACITY = 1_024;
    static private Logger logger = Logger.getLogger(ServerEchoWithConsoleTimeout.class.getName());
 
    private final ServerSocketChannel serverSocketChannel;
    private final Selector selector;
+   private final ContextRegistry<Context> contexts = new ContextRegistry<>(INITIAL_REGISTRY_CAPACITY);
+   private final SelectorStats stats = new SelectorStats();
    private final ArrayBlockingQueue<String> commandQueue = new ArrayBlockingQueue<>(10);
    private final Thread console;
    private final Thread server;
@@ -133,10 +158,9 @@ public class ServerEchoWithConsoleTimeout {
 
    private void serverRun() {
       while (!Thread.interrupted()) {
-         printKeys(); // for debug
-         System.out.println("Starting select");
          try {
-            selector.select(this::treatKey, TIMEOUT);
+            stats.selectStarted();
+            stats.selectFinished(selector.select(this::treatKey, TIMEOUT));
             for (SelectionKey key : selector.selectedKeys()) {
                var ctx = (Context) key.attachment();
                if (ctx.activeSinceLastTimeoutCheck) {
@@ -148,8 +172,6 @@ public class ServerEchoWithConsoleTimeout {
             throw new UncheckedIOException(e);
          }
          processCommands();
-
-         System.out.println("Select finished");
       }
    }
 
@@ -185,13 +207,10 @@ public class ServerEchoWithConsoleTimeout {
          var msg = commandQueue.remove();
          switch (msg) {
             case "INFO":
-               var counter = 0;
-               for (var key : selector.keys()) {
-                  if (key.attachment() != null) {
-                     counter++;
-                  }
-               }
-               logger.info("INFO: " + counter + " clients connected");
+               logger.info("INFO: " + contexts.size() + " clients connected");
+               break;
+            case "STATS":
+               logger.info("STATS: " + stats.report());
                break;
             case "SHUTDOWN":
                logger.info("SHUTDOWN: No new clients");
@@ -218,7 +237,7 @@ public class ServerEchoWithConsoleTimeout {
    }
 
    private void treatKey(SelectionKey key) {
-      printSelectedKey(key); // for debug
+      var treatStart = stats.treatStarted();
       try {
          if (key.isValid() && key.isAcceptable()) {
             doAccept(key);
@@ -236,8 +255,9 @@ public class ServerEchoWithConsoleTimeout {
          }
       } catch (IOException e) {
          logger.log(Level.INFO, "Connection closed with client due to IOException", e);
-         silentlyClose(key);
+         ((Context) key.attachment()).silentlyClose();
       }
+      stats.treatFinished(treatStart);
    }
 
    private void doAccept(SelectionKey key) throws IOException {
@@ -248,16 +268,9 @@ public class ServerEchoWithConsoleTimeout {
       }
       sc.configureBlocking(false);
       var clientKey = sc.register(selector, SelectionKey.OP_READ);
-      clientKey.attach(new Context(clientKey));
-   }
-
-   private void silentlyClose(SelectionKey key) {
-      Channel sc = (Channel) key.channel();
-      try {
-         sc.close();
-      } catch (IOException e) {
-         // ignore exception
-      }
+      var context = new Context(contexts, stats, clientKey);
+      clientKey.attach(context);
+      contexts.add(context);
    }
 
    public static void main(String[] args) throws NumberFormatException, IOException {
@@ -271,67 +284,4 @@ public class ServerEchoWithConsoleTimeout {
    private static void usage() {
       System.out.println("Usage : ServerEcho port");
    }
-
-   /***
-    *  Theses methods are here to help understanding the behavior of the selector
-    ***/
-
-   private String interestOpsToString(SelectionKey key) {
-      if (!key.isValid()) {
-         return "CANCELLED";
-      }
-      int interestOps = key.interestOps();
-      ArrayList<String> list = new ArrayList<>();
-      if ((interestOps & SelectionKey.OP_ACCEPT) != 0) list.add("OP_ACCEPT");
-      if ((interestOps & SelectionKey.OP_READ) != 0) list.add("OP_READ");
-      if ((interestOps & SelectionKey.OP_WRITE) != 0) list.add("OP_WRITE");
-      return String.join("|", list);
-   }
-
-   public void printKeys() {
-      Set<SelectionKey> selectionKeySet = selector.keys();
-      if (selectionKeySet.isEmpty()) {
-         System.out.println("The selector contains no key : this should not happen!");
-         return;
-      }
-      System.out.println("The selector contains:");
-      for (SelectionKey key : selectionKeySet) {
-         SelectableChannel channel = key.channel();
-         if (channel instanceof ServerSocketChannel) {
-            System.out.println("\tKey for ServerSocketChannel : " + interestOpsToString(key));
-         } else {
-            SocketChannel sc = (SocketChannel) channel;
-            System.out.println("\tKey for Client " + remoteAddressToString(sc) + " : " + interestOpsToString(key));
-         }
-      }
-   }
-
-   private String remoteAddressToString(SocketChannel sc) {
-      try {
-         return sc.getRemoteAddress().toString();
-      } catch (IOException e) {
-         return "???";
-      }
-   }
-
-   public void printSelectedKey(SelectionKey key) {
-      SelectableChannel channel = key.channel();
-      if (channel instanceof ServerSocketChannel) {
-         System.out.println("\tServerSocketChannel can perform : " + possibleActionsToString(key));
-      } else {
-         SocketChannel sc = (SocketChannel) channel;
-         System.out.println("\tClient " + remoteAddressToString(sc) + " can perform : " + possibleActionsToString(key));
-      }
-   }
-
-   private String possibleActionsToString(SelectionKey key) {
-      if (!key.isValid()) {
-         return "CANCELLED";
-      }
-      ArrayList<String> list = new ArrayList<>();
-      if (key.isAcceptable()) list.add("ACCEPT");
-      if (key.isReadable()) list.add("READ");
-      if (key.isWritable()) list.add("WRITE");
-      return String.join(" and ", list);
-   }
 }
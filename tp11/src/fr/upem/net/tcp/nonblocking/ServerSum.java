@@ -5,13 +5,10 @@ import java.io.UncheckedIOException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.Channel;
-import java.nio.channels.SelectableChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
-import java.util.ArrayList;
-import java.util.Set;
 import java.util.logging.Logger;
 
 public class ServerSum {
@@ -21,6 +18,7 @@ public class ServerSum {
 
    private final ServerSocketChannel serverSocketChannel;
    private final Selector selector;
+   private final SelectorStats stats = new SelectorStats();
 
    public ServerSum(int port) throws IOException {
       serverSocketChannel = ServerSocketChannel.open();
@@ -31,16 +29,15 @@ public class ServerSum {
    public void launch() throws IOException {
       serverSocketChannel.configureBlocking(false);
       serverSocketChannel.register(selector, SelectionKey.OP_ACCEPT);
+      stats.reportOnExit(logger);
       while (!Thread.interrupted()) {
-         printKeys(); // for debug
-         System.out.println("Starting select");
-         selector.select(this::treatKey);
-         System.out.println("Select finished");
+         stats.selectStarted();
+         stats.selectFinished(selector.select(this::treatKey));
       }
    }
 
    private void treatKey(SelectionKey key) {
-      printSelectedKey(key); // for debug
+      var treatStart = stats.treatStarted();
       try {
          if (key.isValid() && key.isAcceptable()) {
             doAccept(key);
@@ -54,6 +51,7 @@ public class ServerSum {
       } catch (IOException e) {
          throw new UncheckedIOException(e);
       }
+      stats.treatFinished(treatStart);
    }
 
    private void doAccept(SelectionKey key) throws IOException {
@@ -70,11 +68,13 @@ public class ServerSum {
       var sc = (SocketChannel) key.channel();
       var buff = (ByteBuffer) key.attachment();
 
-      if (sc.read(buff) == -1) {
+      var read = sc.read(buff);
+      if (read == -1) {
          logger.info("Input stream closed");
          silentlyClose(key);
          return;
       }
+      stats.bytesRead(read);
 
       if (buff.hasRemaining()) {
          return;
@@ -93,7 +93,7 @@ public class ServerSum {
       var sc = (SocketChannel) key.channel();
       var buff = (ByteBuffer) key.attachment();
 
-      sc.write(buff);
+      stats.bytesWritten(sc.write(buff));
 
       if (buff.hasRemaining()) {
          return;
@@ -123,67 +123,4 @@ public class ServerSum {
    private static void usage() {
       System.out.println("Usage : ServerSumOneShot port");
    }
-
-   /***
-    *  Theses methods are here to help understanding the behavior of the selector
-    ***/
-
-   private String interestOpsToString(SelectionKey key) {
-      if (!key.isValid()) {
-         return "CANCELLED";
-      }
-      int interestOps = key.interestOps();
-      ArrayList<String> list = new ArrayList<>();
-      if ((interestOps & SelectionKey.OP_ACCEPT) != 0) list.add("OP_ACCEPT");
-      if ((interestOps & SelectionKey.OP_READ) != 0) list.add("OP_READ");
-      if ((interestOps & SelectionKey.OP_WRITE) != 0) list.add("OP_WRITE");
-      return String.join("|", list);
-   }
-
-   public void printKeys() {
-      Set<SelectionKey> selectionKeySet = selector.keys();
-      if (selectionKeySet.isEmpty()) {
-         System.out.println("The selector contains no key : this should not happen!");
-         return;
-      }
-      System.out.println("The selector contains:");
-      for (SelectionKey key : selectionKeySet) {
-         SelectableChannel channel = key.channel();
-         if (channel instanceof ServerSocketChannel) {
-            System.out.println("\tKey for ServerSocketChannel : " + interestOpsToString(key));
-         } else {
-            SocketChannel sc = (SocketChannel) channel;
-            System.out.println("\tKey for Client " + remoteAddressToString(sc) + " : " + interestOpsToString(key));
-         }
-      }
-   }
-
-   private String remoteAddressToString(SocketChannel sc) {
-      try {
-         return sc.getRemoteAddress().toString();
-      } catch (IOException e) {
-         return "???";
-      }
-   }
-
-   public void printSelectedKey(SelectionKey key) {
-      SelectableChannel channel = key.channel();
-      if (channel instanceof ServerSocketChannel) {
-         System.out.println("\tServerSocketChannel can perform : " + possibleActionsToString(key));
-      } else {
-         SocketChannel sc = (SocketChannel) channel;
-         System.out.println("\tClient " + remoteAddressToString(sc) + " can perform : " + possibleActionsToString(key));
-      }
-   }
-
-   private String possibleActionsToString(SelectionKey key) {
-      if (!key.isValid()) {
-         return "CANCELLED";
-      }
-      ArrayList<String> list = new ArrayList<>();
-      if (key.isAcceptable()) list.add("ACCEPT");
-      if (key.isReadable()) list.add("READ");
-      if (key.isWritable()) list.add("WRITE");
-      return String.join(" and ", list);
-   }
 }
@@ -3,10 +3,9 @@ package fr.upem.net.tcp.nonblocking;
 import java.io.IOException;
 import java.io.UncheckedIOException;
 import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
 import java.nio.channels.*;
-import java.util.ArrayList;
-import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -17,9 +16,15 @@ public class ServerSumBetter {
       final private SocketChannel sc;
       final private ByteBuffer bbin = ByteBuffer.allocate(BUFFER_SIZE);
       final private ByteBuffer bbout = ByteBuffer.allocate(BUFFER_SIZE);
+      final private SelectorStats stats;
+      final private int[] scratch;
+      private long bytesRead = 0;
+      private long bytesWritten = 0;
       private boolean closed = false;
 
-      private Context(SelectionKey key) {
+      private Context(Loop loop, SelectionKey key) {
+         this.stats = loop.stats;
+         this.scratch = loop.scratch;
          this.key = key;
          this.sc = (SocketChannel) key.channel();
       }
@@ -33,12 +38,11 @@ public class ServerSumBetter {
 
       private void process() {
          bbin.flip();
-         while (bbin.remaining() >= 2 * Integer.BYTES && bbout.position() + Integer.BYTES <= bbout.capacity()) {
-            var op1 = bbin.getInt();
-            var op2 = bbin.getInt();
-            bbout.putInt(op1 + op2);
+         if (BULK) {
+            bulkSum(bbin, bbout, scratch);
+         } else {
+            sum(bbin, bbout);
          }
-
          bbin.compact();
       }
 
@@ -69,6 +73,9 @@ public class ServerSumBetter {
       }
 
       private void silentlyClose() {
+         if (sc.isOpen()) {
+            stats.connectionClosed(bytesRead, bytesWritten);
+         }
          try {
             sc.close();
          } catch (IOException e) {
@@ -86,7 +93,10 @@ public class ServerSumBetter {
        */
 
       private void doRead() throws IOException {
-         if (sc.read(bbin) == -1) {
+         var read = sc.read(bbin);
+         bytesRead += Math.max(read, 0);
+         stats.bytesRead(read);
+         if (read == -1) {
             logger.info("Input stream closed");
             closed = true;
          }
@@ -105,7 +115,9 @@ public class ServerSumBetter {
 
       private void doWrite() throws IOException {
          bbout.flip();
-         sc.write(bbout);
+         var written = sc.write(bbout);
+         bytesWritten += written;
+         stats.bytesWritten(written);
          bbout.compact();
          process();
          updateInterestOps();
@@ -113,148 +125,184 @@ public class ServerSumBetter {
 
    }
 
-   static private int BUFFER_SIZE = 1024;
-   static private Logger logger = Logger.getLogger(ServerSumBetter.class.getName());
+   /**
+    * Event loop owning a listening channel, a selector and the connections it
+    * accepts, from the accept to the close. With SO_REUSEPORT, several loops bind
+    * their own channel on the same port and the kernel spreads the incoming
+    * connections over them, so the loops share nothing.
+    */
+   static private class Loop {
 
-   private final ServerSocketChannel serverSocketChannel;
-   private final Selector selector;
+      final private ServerSocketChannel serverSocketChannel;
+      final private Selector selector;
+      final private SelectorStats stats = new SelectorStats();
+      final private int[] scratch = new int[BUFFER_SIZE / Integer.BYTES]; // for bulkSum
 
-   public ServerSumBetter(int port) throws IOException {
-      serverSocketChannel = ServerSocketChannel.open();
-      serverSocketChannel.bind(new InetSocketAddress(port));
-      selector = Selector.open();
-   }
-
-   public void launch() throws IOException {
-      serverSocketChannel.configureBlocking(false);
-      serverSocketChannel.register(selector, SelectionKey.OP_ACCEPT);
-      while (!Thread.interrupted()) {
-         printKeys(); // for debug
-         System.out.println("Starting select");
-         try {
-            selector.select(this::treatKey);
-         } catch (UncheckedIOException tunneled) {
-            throw tunneled.getCause();
+      private Loop(int port, boolean reusePort) throws IOException {
+         serverSocketChannel = ServerSocketChannel.open();
+         if (reusePort) {
+            serverSocketChannel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
          }
-         System.out.println("Select finished");
+         serverSocketChannel.bind(new InetSocketAddress(port), BACKLOG);
+         selector = Selector.open();
       }
-   }
 
-   private void treatKey(SelectionKey key) {
-      printSelectedKey(key); // for debug
-      try {
-         if (key.isValid() && key.isAcceptable()) {
-            doAccept(key);
+      private void run() throws IOException {
+         serverSocketChannel.configureBlocking(false);
+         serverSocketChannel.register(selector, SelectionKey.OP_ACCEPT);
+         stats.reportOnExit(logger);
+         while (!Thread.interrupted()) {
+            try {
+               stats.selectStarted();
+               stats.selectFinished(selector.select(this::treatKey));
+            } catch (UncheckedIOException tunneled) {
+               throw tunneled.getCause();
+            }
          }
-      } catch (IOException ioe) {
-         // lambda call in select requires to tunnel IOException
-         throw new UncheckedIOException(ioe);
       }
-      try {
-         if (key.isValid() && key.isWritable()) {
-            ((Context) key.attachment()).doWrite();
+
+      private void treatKey(SelectionKey key) {
+         var treatStart = stats.treatStarted();
+         try {
+            if (key.isValid() && key.isAcceptable()) {
+               doAccept(key);
+            }
+         } catch (IOException ioe) {
+            // lambda call in select requires to tunnel IOException
+            throw new UncheckedIOException(ioe);
          }
-         if (key.isValid() && key.isReadable()) {
-            ((Context) key.attachment()).doRead();
+         try {
+            if (key.isValid() && key.isWritable()) {
+               ((Context) key.attachment()).doWrite();
+            }
+            if (key.isValid() && key.isReadable()) {
+               ((Context) key.attachment()).doRead();
+            }
+         } catch (IOException e) {
+            logger.log(Level.INFO, "Connection closed with client due to IOException", e);
+            ((Context) key.attachment()).silentlyClose();
          }
-      } catch (IOException e) {
-         logger.log(Level.INFO, "Connection closed with client due to IOException", e);
-         silentlyClose(key);
+         stats.treatFinished(treatStart);
       }
-   }
 
-   private void doAccept(SelectionKey key) throws IOException {
-      var ssc = (ServerSocketChannel) key.channel();
-      var sc = ssc.accept();
-      if (sc == null) {
-         return;
+      /**
+       * Accepts up to ACCEPT_BUDGET of the connections queued on the channel of this loop
+       */
+      private void doAccept(SelectionKey key) throws IOException {
+         var ssc = (ServerSocketChannel) key.channel();
+         var accepted = 0;
+         while (accepted < ACCEPT_BUDGET) {
+            var sc = ssc.accept();
+            if (sc == null) {
+               break;
+            }
+            sc.configureBlocking(false);
+            var clientKey = sc.register(selector, SelectionKey.OP_READ);
+            clientKey.attach(new Context(this, clientKey));
+            accepted++;
+         }
+         stats.accepted(accepted);
       }
-      sc.configureBlocking(false);
-      var clientKey = sc.register(selector, SelectionKey.OP_READ);
-      clientKey.attach(new Context(clientKey));
    }
 
-   private void silentlyClose(SelectionKey key) {
-      Channel sc = (Channel) key.channel();
-      try {
-         sc.close();
-      } catch (IOException e) {
-         // ignore exception
+   static private int BUFFER_SIZE = 1024;
+   static private int ACCEPT_BUDGET = Integer.getInteger("tp11.acceptBudget", 64);
+   static private int BACKLOG = Integer.getInteger("tp11.backlog", 1_024);
+   // sums all the complete pairs of bbin at once through int views of the buffers
+   static private boolean BULK = Boolean.getBoolean("sumbetter.bulk");
+   static private Logger logger = Logger.getLogger(ServerSumBetter.class.getName());
+
+   private final Loop[] loops;
+
+   /**
+    * Writes into out the sum of each pair of ints of in, as long as out has room
+    *
+    * @param in  in read-mode
+    * @param out in write-mode
+    */
+   static void sum(ByteBuffer in, ByteBuffer out) {
+      while (in.remaining() >= 2 * Integer.BYTES && out.position() + Integer.BYTES <= out.capacity()) {
+         var op1 = in.getInt();
+         var op2 = in.getInt();
+         out.putInt(op1 + op2);
       }
    }
 
-   public static void main(String[] args) throws NumberFormatException, IOException {
-      if (args.length != 1) {
-         usage();
+   /**
+    * Same as sum, but the pairs are copied in one bulk get from an int view of in,
+    * summed in a loop over an array without bounds checks on the buffers, and the
+    * sums copied in one bulk put to an int view of out. The Vector API is not
+    * used since it needs an incubator module, the loop is left to the JIT.
+    *
+    * @param in      in read-mode, at most the pairs held by scratch are summed
+    * @param out     in write-mode
+    * @param scratch receives the pairs, then the sums in place
+    */
+   static void bulkSum(ByteBuffer in, ByteBuffer out, int[] scratch) {
+      var pairs = Math.min(Math.min(in.remaining() / (2 * Integer.BYTES), out.remaining() / Integer.BYTES),
+            scratch.length / 2);
+      if (pairs == 0) {
          return;
       }
-      new ServerSumBetter(Integer.parseInt(args[0])).launch();
-   }
-
-   private static void usage() {
-      System.out.println("Usage : ServerSumBetter port");
+      in.asIntBuffer().get(scratch, 0, 2 * pairs);
+      for (var i = 0; i < pairs; i++) {
+         scratch[i] = scratch[2 * i] + scratch[2 * i + 1]; // never overwrites a pair not summed yet
+      }
+      out.asIntBuffer().put(scratch, 0, pairs);
+      in.position(in.position() + pairs * 2 * Integer.BYTES);
+      out.position(out.position() + pairs * Integer.BYTES);
    }
 
-   /***
-    *  Theses methods are here to help understanding the behavior of the selector
-    ***/
-
-   private String interestOpsToString(SelectionKey key) {
-      if (!key.isValid()) {
-         return "CANCELLED";
-      }
-      int interestOps = key.interestOps();
-      ArrayList<String> list = new ArrayList<>();
-      if ((interestOps & SelectionKey.OP_ACCEPT) != 0) list.add("OP_ACCEPT");
-      if ((interestOps & SelectionKey.OP_READ) != 0) list.add("OP_READ");
-      if ((interestOps & SelectionKey.OP_WRITE) != 0) list.add("OP_WRITE");
-      return String.join("|", list);
+   public ServerSumBetter(int port) throws IOException {
+      this(port, 1);
    }
 
-   public void printKeys() {
-      Set<SelectionKey> selectionKeySet = selector.keys();
-      if (selectionKeySet.isEmpty()) {
-         System.out.println("The selector contains no key : this should not happen!");
-         return;
+   /**
+    * Server running nbLoops event loops which each accept their own connections.
+    * With more than one loop, the listening channels are bound with SO_REUSEPORT.
+    *
+    * @throws UnsupportedOperationException if nbLoops is above 1 and the platform has no SO_REUSEPORT
+    * @param port
+    * @param nbLoops
+    * @throws IOException
+    */
+   public ServerSumBetter(int port, int nbLoops) throws IOException {
+      if (nbLoops < 1) {
+         throw new IllegalArgumentException("nbLoops must be positive");
       }
-      System.out.println("The selector contains:");
-      for (SelectionKey key : selectionKeySet) {
-         SelectableChannel channel = key.channel();
-         if (channel instanceof ServerSocketChannel) {
-            System.out.println("\tKey for ServerSocketChannel : " + interestOpsToString(key));
-         } else {
-            SocketChannel sc = (SocketChannel) channel;
-            System.out.println("\tKey for Client " + remoteAddressToString(sc) + " : " + interestOpsToString(key));
-         }
+      loops = new Loop[nbLoops];
+      for (var i = 0; i < nbLoops; i++) {
+         loops[i] = new Loop(port, nbLoops > 1);
       }
    }
 
-   private String remoteAddressToString(SocketChannel sc) {
-      try {
-         return sc.getRemoteAddress().toString();
-      } catch (IOException e) {
-         return "???";
+   /**
+    * Runs the first loop on the calling thread and each other loop on its own thread
+    */
+   public void launch() throws IOException {
+      for (var i = 1; i < loops.length; i++) {
+         var loop = loops[i];
+         new Thread(() -> {
+            try {
+               loop.run();
+            } catch (IOException e) {
+               throw new UncheckedIOException(e);
+            }
+         }).start();
       }
+      loops[0].run();
    }
 
-   public void printSelectedKey(SelectionKey key) {
-      SelectableChannel channel = key.channel();
-      if (channel instanceof ServerSocketChannel) {
-         System.out.println("\tServerSocketChannel can perform : " + possibleActionsToString(key));
-      } else {
-         SocketChannel sc = (SocketChannel) channel;
-         System.out.println("\tClient " + remoteAddressToString(sc) + " can perform : " + possibleActionsToString(key));
+   public static void main(String[] args) throws NumberFormatException, IOException {
+      if (args.length != 1 && args.length != 2) {
+         usage();
+         return;
       }
+      var nbLoops = args.length == 2 ? Integer.parseInt(args[1]) : 1;
+      new ServerSumBetter(Integer.parseInt(args[0]), nbLoops).launch();
    }
 
-   private String possibleActionsToString(SelectionKey key) {
-      if (!key.isValid()) {
-         return "CANCELLED";
-      }
-      ArrayList<String> list = new ArrayList<>();
-      if (key.isAcceptable()) list.add("ACCEPT");
-      if (key.isReadable()) list.add("READ");
-      if (key.isWritable()) list.add("WRITE");
-      return String.join(" and ", list);
+   private static void usage() {
+      System.out.println("Usage : ServerSumBetter port [nbLoops]");
    }
 }
@@ -1,22 +1,63 @@
 package fr.upem.net.tcp.nonblocking;
 
 import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
 import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
 
+/**
+ * Reader of a string encoded in UTF-8 preceded by its size as an int.
+ * <p>
+ * When all the bytes of the string are already in the buffer given to process,
+ * they are decoded in place. A buffer is borrowed from the pool to accumulate
+ * them only when the string is split across several reads. The decoder and the
+ * buffer of chars are shared by the readers of a thread, such as the contexts of a
+ * reactor, so decoding a string only allocates the String and an idle reader holds
+ * no buffer. A string found in the LoginCache given to cacheWith is not decoded at all.
+ */
 public class StringReader implements Reader<String> {
 
    private enum State {DONE, WAITING, ERROR}
 
    ;
 
+   /**
+    * Decoder and buffer of chars of a thread, only used during a call to decode
+    */
+   static private class Decoding {
+      private final CharsetDecoder decoder = UTF.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+      private final CharBuffer chars = CharBuffer.allocate(BUFFER_SIZE); // UTF-8 never has more chars than bytes
+   }
+
    static private int BUFFER_SIZE = 1_024;
    private State state = State.WAITING;
    private static final Charset UTF = Charset.forName("UTF-8");
+   static private final ThreadLocal<Decoding> decodings = ThreadLocal.withInitial(Decoding::new);
    private final IntReader intReader = new IntReader();
-   private final ByteBuffer internalbb = ByteBuffer.allocate(BUFFER_SIZE); // write-mode
+   private final BufferPool pool;
+   private ByteBuffer internalbb; // write-mode, borrowed from pool only while a split string is being read
+   private LoginCache cache; // cache of the string being read, null if it is not cached
+   private int size;
    private String value;
    private boolean done = false;
 
+   public StringReader() {
+      this(new BufferPool(BUFFER_SIZE, 1));
+   }
+
+   /**
+    * @param pool pool of buffers of at least BUFFER_SIZE bytes
+    */
+   public StringReader(BufferPool pool) {
+      if (pool.bufferSize() < BUFFER_SIZE) {
+         throw new IllegalArgumentException("Buffers must hold at least " + BUFFER_SIZE + " bytes");
+      }
+      this.pool = pool;
+   }
+
    @Override
    public ProcessStatus process(ByteBuffer bb) {
       if (state == State.DONE || state == State.ERROR) {
@@ -29,35 +70,108 @@ public class StringReader implements Reader<String> {
             case REFILL:
                return ProcessStatus.REFILL;
             case DONE:
-               if (intReader.get() > 1024 || intReader.get() <= 0) {
+               if (!startString(intReader.getInt())) {
                   return ProcessStatus.ERROR;
                }
-               internalbb.limit(intReader.get());
-               done = true;
          }
       }
       bb.flip();
       try {
+         if (internalbb == null && bb.remaining() >= size) {
+            var oldLimit = bb.limit();
+            bb.limit(bb.position() + size);
+            decode(bb);
+            bb.limit(oldLimit);
+            return ProcessStatus.DONE;
+         }
+         if (internalbb == null) {
+            internalbb = pool.acquire();
+            internalbb.limit(size);
+         }
          if (bb.remaining() <= internalbb.remaining()) {
             internalbb.put(bb);
          } else {
             var oldLimit = bb.limit();
-            bb.limit(internalbb.remaining());
+            bb.limit(bb.position() + internalbb.remaining());
             internalbb.put(bb);
             bb.limit(oldLimit);
          }
       } finally {
          bb.compact();
       }
-      if (internalbb.position() < intReader.get()) {
+      if (internalbb.hasRemaining()) {
          return ProcessStatus.REFILL;
       }
-      state = State.DONE;
       internalbb.flip();
-      value = UTF.decode(internalbb).toString();
+      decode(internalbb);
+      releaseBuffer();
       return ProcessStatus.DONE;
    }
 
+   /**
+    * Decodes all the bytes of src
+    *
+    * @param src in read-mode
+    */
+   private void decode(ByteBuffer src) {
+      if (cache != null) {
+         var cached = cache.get(src);
+         if (cached != null) {
+            src.position(src.limit());
+            value = cached;
+            state = State.DONE;
+            return;
+         }
+      }
+      var start = src.position();
+      var decoding = decodings.get();
+      var decoder = decoding.decoder;
+      var chars = decoding.chars;
+      decoder.reset();
+      chars.clear();
+      decoder.decode(src, chars, true);
+      decoder.flush(chars);
+      chars.flip();
+      value = chars.toString();
+      state = State.DONE;
+      if (cache != null) {
+         var end = src.position();
+         src.position(start);
+         cache.put(src, value);
+         src.position(end);
+      }
+   }
+
+   /**
+    * Starts a string whose size was already read by the caller, the next call to
+    * process reads only its bytes.
+    *
+    * @return false if size is not a valid string size
+    */
+   public boolean expectSize(int size) {
+      if (state != State.WAITING || done) {
+         throw new IllegalStateException();
+      }
+      return startString(size);
+   }
+
+   /**
+    * Looks up the bytes of the next string in cache before decoding them, and
+    * adds the string to cache if it is not there. Only applies until reset.
+    */
+   public void cacheWith(LoginCache cache) {
+      this.cache = cache;
+   }
+
+   private boolean startString(int size) {
+      if (size > BUFFER_SIZE || size <= 0) {
+         return false;
+      }
+      this.size = size;
+      done = true;
+      return true;
+   }
+
    @Override
    public String get() {
       if (state != State.DONE) {
@@ -70,8 +184,16 @@ public class StringReader implements Reader<String> {
    public void reset() {
       state = State.WAITING;
       intReader.reset();
-      internalbb.clear();
+      releaseBuffer();
       value = null;
+      cache = null;
       done = false;
    }
+
+   private void releaseBuffer() {
+      if (internalbb != null) {
+         pool.release(internalbb);
+         internalbb = null;
+      }
+   }
 }
\ No newline at end of file
@@ -0,0 +1,131 @@
+package fr.upem.net.tcp.nonblocking;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Writer of a string encoded in UTF-8 preceded by its size, as an int or as a
+ * varint after useVarInts.
+ * <p>
+ * The size is computed from the chars, so the string is encoded straight into
+ * the buffers given to process, from a view of the string. The encoder is reused,
+ * so writing a string only allocates the view and a writer holds no buffer of
+ * chars. process only makes progress when bb has room for 4 bytes, the longest
+ * encoding of a char.
+ */
+public class StringWriter implements Writer<String> {
+
+   private enum State {DONE, WAITING, SIZE, CHARS, FLUSH}
+
+   ;
+
+   static private int MAX_STRING_SIZE = 1_024; // bound enforced by StringReader
+   private static final Charset UTF = Charset.forName("UTF-8");
+   private State state = State.WAITING;
+   private final CharsetEncoder encoder = UTF.newEncoder()
+         .onMalformedInput(CodingErrorAction.REPLACE)
+         .onUnmappableCharacter(CodingErrorAction.REPLACE);
+   private CharBuffer chars; // view of the string being written, null if none
+   private final ByteBuffer prefix = ByteBuffer.allocate(Integer.BYTES + 1); // read-mode once the size is encoded
+   private boolean varInts = false;
+   private int size;
+
+   /**
+    * Writes the sizes of the next strings as varints
+    */
+   public void useVarInts() {
+      varInts = true;
+   }
+
+   /**
+    * @throws IllegalArgumentException if the string is empty or longer than what StringReader accepts
+    */
+   @Override
+   public void set(String value) {
+      if (state != State.WAITING) {
+         throw new IllegalStateException();
+      }
+      var size = encodedSize(value);
+      if (size <= 0 || size > MAX_STRING_SIZE) {
+         throw new IllegalArgumentException("String of " + size + " bytes, must be between 1 and " + MAX_STRING_SIZE);
+      }
+      this.size = size;
+      prefix.clear();
+      if (varInts) {
+         VarIntReader.put(prefix, size);
+      } else {
+         prefix.putInt(size);
+      }
+      prefix.flip();
+      chars = CharBuffer.wrap(value);
+      encoder.reset();
+      state = State.SIZE;
+   }
+
+   /**
+    * Number of bytes of the string being written, with its size
+    */
+   public int size() {
+      return prefix.limit() + size;
+   }
+
+   @Override
+   public ProcessStatus process(ByteBuffer bb) {
+      if (state == State.DONE || state == State.WAITING) {
+         throw new IllegalStateException();
+      }
+      if (state == State.SIZE) {
+         while (prefix.hasRemaining() && bb.hasRemaining()) {
+            bb.put(prefix.get());
+         }
+         if (prefix.hasRemaining()) {
+            return ProcessStatus.PARTIAL;
+         }
+         state = State.CHARS;
+      }
+      if (state == State.CHARS) {
+         if (encoder.encode(chars, bb, true).isOverflow()) {
+            return ProcessStatus.PARTIAL;
+         }
+         state = State.FLUSH;
+      }
+      if (encoder.flush(bb).isOverflow()) {
+         return ProcessStatus.PARTIAL;
+      }
+      state = State.DONE;
+      return ProcessStatus.DONE;
+   }
+
+   /**
+    * Number of bytes of s in UTF-8, where an unpaired surrogate is replaced by one byte
+    */
+   static public int encodedSize(CharSequence s) {
+      var size = 0;
+      for (var i = 0; i < s.length(); i++) {
+         var c = s.charAt(i);
+         if (c < 0x80) {
+            size += 1;
+         } else if (c < 0x800) {
+            size += 2;
+         } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+            size += 4;
+            i++;
+         } else if (Character.isSurrogate(c)) {
+            size += 1;
+         } else {
+            size += 3;
+         }
+      }
+      return size;
+   }
+
+   @Override
+   public void reset() {
+      state = State.WAITING;
+      chars = null;
+      size = 0;
+   }
+}
@@ -0,0 +1,97 @@
+package fr.upem.net.tcp.nonblocking;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/**
+ * Micro-benchmark of the summation of ServerSumBetter, comparing the loop over
+ * getInt and putInt with the bulk copies through int views.
+ * <p>
+ * Each operation sums a full input buffer of BUFFER_SIZE bytes into an empty
+ * output buffer, as with a pipelining client which keeps the input buffer of the
+ * server full. The median time per pair over the iterations is reported. Takes the
+ * same bench properties as ReaderBenchmark.
+ */
+public class SumBenchmark {
+
+   static private int BUFFER_SIZE = 1_024;
+   static private int PAIRS = BUFFER_SIZE / (2 * Integer.BYTES);
+   static private long SEED = 20_240_101;
+   static private int WARMUP_ITERATIONS = Integer.getInteger("bench.warmups", 5);
+   static private int ITERATIONS = Integer.getInteger("bench.iterations", 10);
+   static private long ITERATION_NANOS = TimeUnit.MILLISECONDS.toNanos(Long.getLong("bench.iterationMillis", 500));
+
+   private final ByteBuffer in = ByteBuffer.allocate(BUFFER_SIZE);
+   private final ByteBuffer out = ByteBuffer.allocate(BUFFER_SIZE);
+   private final ByteBuffer expected = ByteBuffer.allocate(BUFFER_SIZE / 2);
+   private final int[] scratch = new int[BUFFER_SIZE / Integer.BYTES];
+
+   private SumBenchmark() {
+      var random = new Random(SEED);
+      for (var i = 0; i < PAIRS; i++) {
+         var op1 = random.nextInt();
+         var op2 = random.nextInt();
+         in.putInt(op1).putInt(op2);
+         expected.putInt(op1 + op2);
+      }
+      in.flip();
+      expected.flip();
+   }
+
+   /**
+    * Sums in into out with summer and checks the result
+    */
+   private void check(String name, BiConsumer<ByteBuffer, ByteBuffer> summer) {
+      in.rewind();
+      out.clear();
+      summer.accept(in, out);
+      if (in.hasRemaining() || !out.flip().equals(expected)) {
+         throw new IllegalStateException(name + " does not sum all the pairs");
+      }
+   }
+
+   /**
+    * @return the median of the nanoseconds per pair
+    */
+   private double run(BiConsumer<ByteBuffer, ByteBuffer> summer) {
+      var nanosPerPair = new double[ITERATIONS];
+      for (var i = -WARMUP_ITERATIONS; i < ITERATIONS; i++) {
+         long ops = 0;
+         var start = System.nanoTime();
+         var elapsed = 0L;
+         while (elapsed < ITERATION_NANOS) {
+            for (var j = 0; j < 1_000; j++) {
+               in.rewind();
+               out.clear();
+               summer.accept(in, out);
+            }
+            ops += 1_000;
+            elapsed = System.nanoTime() - start;
+         }
+         if (i >= 0) {
+            nanosPerPair[i] = (double) elapsed / (ops * PAIRS);
+         }
+      }
+      Arrays.sort(nanosPerPair);
+      return nanosPerPair[ITERATIONS / 2];
+   }
+
+   public static void main(String[] args) {
+      var benchmark = new SumBenchmark();
+      benchmark.check("sum", ServerSumBetter::sum);
+      BiConsumer<ByteBuffer, ByteBuffer> bulkSum = (in, out) -> ServerSumBetter.bulkSum(in, out, benchmark.scratch);
+      benchmark.check("bulkSum", bulkSum);
+      System.out.println("# " + System.getProperty("java.vm.name") + " " + System.getProperty("java.vm.version") + ", "
+            + Runtime.getRuntime().availableProcessors() + " cpus, " + WARMUP_ITERATIONS + " warmups, " + ITERATIONS
+            + " iterations of " + TimeUnit.NANOSECONDS.toMillis(ITERATION_NANOS) + " ms");
+      System.out.println(String.format("# %-28s %10s", "scenario", "ns/pair"));
+      var scalar = benchmark.run(ServerSumBetter::sum);
+      System.out.println(String.format("%-30s %10.2f", "sum.getInt", scalar));
+      var bulk = benchmark.run(bulkSum);
+      System.out.println(String.format("%-30s %10.2f", "sum.bulk", bulk));
+      System.out.println(String.format("# bulk/getInt %.2f", bulk / scalar));
+   }
+}
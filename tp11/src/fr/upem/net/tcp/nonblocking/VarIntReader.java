@@ -0,0 +1,96 @@
+package fr.upem.net.tcp.nonblocking;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reader of a non negative int encoded as a LEB128 varint: 7 bits per byte, least
+ * significant group first, with the high bit set on every byte but the last.
+ * Values below 128 take one byte, values up to 16383 two bytes.
+ */
+public class VarIntReader implements Reader<Integer> {
+
+   private enum State {DONE, WAITING, ERROR}
+
+   ;
+
+   static private final int LAST_SHIFT = 28; // the fifth byte holds the bits 28 to 30
+   private State state = State.WAITING;
+   private int value;
+   private int shift;
+
+   @Override
+   public ProcessStatus process(ByteBuffer bb) {
+      if (state == State.DONE || state == State.ERROR) {
+         throw new IllegalStateException();
+      }
+      bb.flip();
+      try {
+         while (bb.hasRemaining()) {
+            var b = bb.get();
+            if (shift == LAST_SHIFT && (b & 0xF8) != 0) {
+               state = State.ERROR; // more than 31 bits
+               return ProcessStatus.ERROR;
+            }
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+               state = State.DONE;
+               return ProcessStatus.DONE;
+            }
+            shift += 7;
+         }
+      } finally {
+         bb.compact();
+      }
+      return ProcessStatus.REFILL;
+   }
+
+   /**
+    * Same as get without boxing the value
+    */
+   public int getInt() {
+      if (state != State.DONE) {
+         throw new IllegalStateException();
+      }
+      return value;
+   }
+
+   @Override
+   public Integer get() {
+      return getInt();
+   }
+
+   @Override
+   public void reset() {
+      state = State.WAITING;
+      value = 0;
+      shift = 0;
+   }
+
+   /**
+    * @return the number of bytes of the varint encoding value
+    */
+   public static int size(int value) {
+      var size = 1;
+      while ((value >>>= 7) != 0) {
+         size++;
+      }
+      return size;
+   }
+
+   /**
+    * Writes value as a varint
+    *
+    * @param bb    in write-mode
+    * @param value a non negative int
+    */
+   public static void put(ByteBuffer bb, int value) {
+      if (value < 0) {
+         throw new IllegalArgumentException("Negative varint " + value);
+      }
+      while ((value & ~0x7F) != 0) {
+         bb.put((byte) (value & 0x7F | 0x80));
+         value >>>= 7;
+      }
+      bb.put((byte) value);
+   }
+}
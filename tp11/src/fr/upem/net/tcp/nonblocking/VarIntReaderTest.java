@@ -0,0 +1,153 @@
+package fr.upem.net.tcp.nonblocking;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+
+import static fr.upem.net.tcp.nonblocking.Reader.ProcessStatus.DONE;
+import static fr.upem.net.tcp.nonblocking.Reader.ProcessStatus.ERROR;
+import static fr.upem.net.tcp.nonblocking.Reader.ProcessStatus.REFILL;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class VarIntReaderTest {
+
+    private static final int[] VALUES = { 0, 1, 127, 128, 16383, 16384, 2097151, 2097152, 268435455, 268435456,
+            Integer.MAX_VALUE };
+
+    private static ByteBuffer varInt(int value) {
+        var bb = ByteBuffer.allocate(5);
+        VarIntReader.put(bb, value);
+        return bb.flip();
+    }
+
+    @Test
+    public void size() {
+        assertEquals(1, VarIntReader.size(0));
+        assertEquals(1, VarIntReader.size(127));
+        assertEquals(2, VarIntReader.size(128));
+        assertEquals(2, VarIntReader.size(16383));
+        assertEquals(3, VarIntReader.size(16384));
+        assertEquals(5, VarIntReader.size(Integer.MAX_VALUE));
+        for (var value : VALUES) {
+            assertEquals(VarIntReader.size(value), varInt(value).remaining());
+        }
+    }
+
+    @Test
+    public void encoding() {
+        assertEquals((byte) 0x7F, varInt(127).get(0));
+        var bb = varInt(300);
+        assertEquals(2, bb.remaining());
+        assertEquals((byte) 0xAC, bb.get(0));
+        assertEquals((byte) 0x02, bb.get(1));
+    }
+
+    @Test
+    public void whole() {
+        for (var value : VALUES) {
+            var reader = new VarIntReader();
+            var bb = ByteBuffer.allocate(1024).put(varInt(value));
+            assertEquals(DONE, reader.process(bb));
+            assertEquals(value, reader.getInt());
+            assertEquals(value, (int) reader.get());
+            assertEquals(0, bb.position());
+            assertEquals(bb.capacity(), bb.limit());
+        }
+    }
+
+    @Test
+    public void trickled() {
+        var reader = new VarIntReader();
+        var bb = ByteBuffer.allocate(1);
+        for (var value : VALUES) {
+            var input = varInt(value);
+            while (input.hasRemaining()) {
+                bb.put(input.get());
+                assertEquals(input.hasRemaining() ? REFILL : DONE, reader.process(bb));
+                assertEquals(0, bb.position());
+            }
+            assertEquals(value, reader.getInt());
+            reader.reset();
+        }
+    }
+
+    @Test
+    public void leavesNextBytes() {
+        var reader = new VarIntReader();
+        var bb = ByteBuffer.allocate(1024).put(varInt(16384)).put(varInt(5)).putInt(42);
+        assertEquals(DONE, reader.process(bb));
+        assertEquals(16384, reader.getInt());
+        assertEquals(1 + Integer.BYTES, bb.position());
+        reader.reset();
+        assertEquals(DONE, reader.process(bb));
+        assertEquals(5, reader.getInt());
+        assertEquals(Integer.BYTES, bb.position());
+    }
+
+    @Test
+    public void overflowFifthByte() {
+        var reader = new VarIntReader();
+        var bb = ByteBuffer.allocate(1024).put(new byte[] { (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x08 });
+        assertEquals(ERROR, reader.process(bb));
+    }
+
+    @Test
+    public void overflowSixthByte() {
+        var reader = new VarIntReader();
+        var bb = ByteBuffer.allocate(1024)
+                .put(new byte[] { (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 0x00 });
+        assertEquals(ERROR, reader.process(bb));
+    }
+
+    @Test
+    public void overflowSplit() {
+        var reader = new VarIntReader();
+        var bb = ByteBuffer.allocate(1024).put(new byte[] { (byte) 0xFF, (byte) 0xFF });
+        assertEquals(REFILL, reader.process(bb));
+        bb.put(new byte[] { (byte) 0xFF, (byte) 0xFF, 0x10 });
+        assertEquals(ERROR, reader.process(bb));
+    }
+
+    @Test
+    public void largestFifthByte() {
+        var reader = new VarIntReader();
+        var bb = ByteBuffer.allocate(1024).put(new byte[] { (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x07 });
+        assertEquals(DONE, reader.process(bb));
+        assertEquals(Integer.MAX_VALUE, reader.getInt());
+    }
+
+    @Test
+    public void putNegative() {
+        assertThrows(IllegalArgumentException.class, () -> VarIntReader.put(ByteBuffer.allocate(5), -1));
+    }
+
+    @Test
+    public void errorGet() {
+        var reader = new VarIntReader();
+        assertThrows(IllegalStateException.class, () -> reader.get());
+        var bb = ByteBuffer.allocate(1024).put((byte) 0x80);
+        assertEquals(REFILL, reader.process(bb));
+        assertThrows(IllegalStateException.class, () -> reader.getInt());
+    }
+
+    @Test
+    public void errorProcessAfterDone() {
+        var reader = new VarIntReader();
+        var bb = ByteBuffer.allocate(1024).put(varInt(1)).put(varInt(2));
+        assertEquals(DONE, reader.process(bb));
+        assertThrows(IllegalStateException.class, () -> reader.process(bb));
+    }
+
+    @Test
+    public void errorProcessAfterError() {
+        var reader = new VarIntReader();
+        var bb = ByteBuffer.allocate(1024)
+                .put(new byte[] { (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80 });
+        assertEquals(ERROR, reader.process(bb));
+        assertThrows(IllegalStateException.class, () -> reader.process(bb));
+        reader.reset();
+        bb.clear().put(varInt(7));
+        assertEquals(DONE, reader.process(bb));
+        assertEquals(7, reader.getInt());
+    }
+}
@@ -0,0 +1,167 @@
+package fr.upem.net.tcp.nonblocking;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Rewrites a stream of frames of the protocol version 1 into the version 2, where
+ * every length prefix but the first int of a frame is a varint instead of an int.
+ * <p>
+ * The bytes may be given in pieces of any size: the transcoder keeps its position
+ * in the current frame, so each sender has its own. A whole frame of version 1
+ * always fits once transcoded in the room it would take.
+ */
+public class VarIntTranscoder {
+
+   private enum State {FIRST, FIXED, PREFIX, CONTENT}
+
+   private State state = State.FIRST;
+   private int value; // int being read, in FIRST and PREFIX
+   private int valueBytes;
+   private int fixedRemaining; // bytes copied as is, after the opcode
+   private int stringsRemaining; // length prefixed fields of the frame not read yet
+   private int contentRemaining; // bytes of the current field not copied yet
+
+   /**
+    * Transcodes as many bytes of src as dst allows
+    *
+    * @param src bytes of version 1 in read-mode
+    * @param dst in write-mode
+    * @throws IllegalArgumentException if src is not a valid stream of frames
+    */
+   public void transcode(ByteBuffer src, ByteBuffer dst) {
+      while (src.hasRemaining()) {
+         switch (state) {
+            case FIRST:
+               if (!dst.hasRemaining()) {
+                  return;
+               }
+               var b = src.get();
+               dst.put(b);
+               if (readByte(b)) {
+                  var first = value;
+                  value = valueBytes = 0;
+                  startFrame(first);
+               }
+               break;
+            case FIXED:
+               var copied = copy(src, dst, fixedRemaining);
+               if (copied == 0) {
+                  return;
+               }
+               fixedRemaining -= copied;
+               if (fixedRemaining == 0) {
+                  next();
+               }
+               break;
+            case PREFIX:
+               if (valueBytes < Integer.BYTES - 1) {
+                  readByte(src.get());
+                  break;
+               }
+               var size = value << 8 | (src.get(src.position()) & 0xFF);
+               if (size < 0) {
+                  throw new IllegalArgumentException("Negative size " + size);
+               }
+               if (dst.remaining() < VarIntReader.size(size)) {
+                  return;
+               }
+               src.get();
+               value = valueBytes = 0;
+               VarIntReader.put(dst, size);
+               startField(size);
+               break;
+            case CONTENT:
+               copied = copy(src, dst, contentRemaining);
+               if (copied == 0) {
+                  return;
+               }
+               contentRemaining -= copied;
+               if (contentRemaining == 0) {
+                  endField();
+               }
+               break;
+         }
+      }
+   }
+
+   /**
+    * @return true once the 4 bytes of the int are read
+    */
+   private boolean readByte(byte b) {
+      value = value << 8 | (b & 0xFF);
+      return ++valueBytes == Integer.BYTES;
+   }
+
+   private void startFrame(int first) {
+      if (first > 0) {
+         // legacy frame, the int was the size of the login
+         stringsRemaining = 2;
+         startField(first);
+         return;
+      }
+      if (first == 0) {
+         // legacy frame of a bundle repeating the previous login
+         stringsRemaining = 1;
+         next();
+         return;
+      }
+      var type = Message.Type.fromOpcode(first);
+      if (type == null) {
+         throw new IllegalArgumentException("Unknown opcode " + first);
+      }
+      stringsRemaining = type.getStrings();
+      switch (type) {
+         case SEQUENCED:
+         case RESUME:
+            fixed(Long.BYTES); // the legacy frame following a SEQUENCED header starts with FIRST
+            break;
+         case BUNDLE:
+         case HELLO:
+            fixed(Integer.BYTES);
+            break;
+         case STREAM:
+            fixed(Integer.BYTES + Long.BYTES);
+            break;
+         case CHUNK:
+            stringsRemaining = 1; // the bytes of the chunk are length prefixed like a string
+            fixed(Integer.BYTES);
+            break;
+         default:
+            next();
+      }
+   }
+
+   private void fixed(int size) {
+      fixedRemaining = size;
+      state = State.FIXED;
+   }
+
+   private void startField(int size) {
+      contentRemaining = size;
+      state = State.CONTENT;
+      if (size == 0) {
+         endField();
+      }
+   }
+
+   private void endField() {
+      stringsRemaining--;
+      next();
+   }
+
+   private void next() {
+      state = stringsRemaining > 0 ? State.PREFIX : State.FIRST;
+   }
+
+   static private int copy(ByteBuffer src, ByteBuffer dst, int max) {
+      var length = Math.min(max, Math.min(src.remaining(), dst.remaining()));
+      if (length == 0) {
+         return 0;
+      }
+      var oldLimit = src.limit();
+      src.limit(src.position() + length);
+      dst.put(src);
+      src.limit(oldLimit);
+      return length;
+   }
+}
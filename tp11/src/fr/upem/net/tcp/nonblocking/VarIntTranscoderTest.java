@@ -0,0 +1,192 @@
+package fr.upem.net.tcp.nonblocking;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static fr.upem.net.tcp.nonblocking.Writer.ProcessStatus.DONE;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class VarIntTranscoderTest {
+
+    private static final List<Message> MESSAGES = List.of(
+            new Message("alice", "hello"),
+            new Message("alice", "x".repeat(1024)),
+            Message.sequenced(1L << 40, "bob", "sequenced"),
+            Message.join("room"),
+            Message.leave("room"),
+            Message.toRoom("room", "carol", "€a€"),
+            Message.toPrivate("bob", "alice", "x".repeat(300)),
+            Message.login("dave"),
+            Message.resume(-1),
+            Message.compress(),
+            Message.stream(3, 1L << 33, "eve"),
+            Message.hello(2));
+
+    private static ByteBuffer write(Message msg, boolean varInts) {
+        var writer = new MessageWriter();
+        if (varInts) {
+            writer.useVarInts();
+        }
+        writer.set(msg);
+        var bb = ByteBuffer.allocate(writer.size());
+        assertEquals(DONE, writer.process(bb));
+        return bb.flip();
+    }
+
+    private static void putSize(ByteBuffer bb, int size, boolean varInts) {
+        if (varInts) {
+            VarIntReader.put(bb, size);
+        } else {
+            bb.putInt(size);
+        }
+    }
+
+    private static void putString(ByteBuffer bb, String string, boolean varInts) {
+        var bytes = StandardCharsets.UTF_8.encode(string);
+        putSize(bb, bytes.remaining(), varInts);
+        bb.put(bytes);
+    }
+
+    private static ByteBuffer chunk(int streamId, byte[] bytes, boolean varInts) {
+        var bb = ByteBuffer.allocate(1024).putInt(Message.Type.CHUNK.getOpcode()).putInt(streamId);
+        putSize(bb, bytes.length, varInts);
+        return bb.put(bytes).flip();
+    }
+
+    /**
+     * Bundle of three broadcasts, the second one repeating the login of the first one
+     */
+    private static ByteBuffer bundle(boolean varInts) {
+        var bb = ByteBuffer.allocate(1024).putInt(Message.Type.BUNDLE.getOpcode()).putInt(3);
+        putString(bb.putInt(5).put(StandardCharsets.UTF_8.encode("alice")), "first", varInts);
+        putString(bb.putInt(0), "x".repeat(200), varInts);
+        putString(bb.putInt(3).put(StandardCharsets.UTF_8.encode("bob")), "last", varInts);
+        return bb.flip();
+    }
+
+    private static ByteBuffer concat(List<ByteBuffer> parts) {
+        var size = 0;
+        for (var part : parts) {
+            size += part.remaining();
+        }
+        var bb = ByteBuffer.allocate(size);
+        for (var part : parts) {
+            bb.put(part.duplicate());
+        }
+        return bb.flip();
+    }
+
+    /**
+     * Every frame of MESSAGES, then a CHUNK and a BUNDLE
+     */
+    private static ByteBuffer frames(boolean varInts) {
+        var bytes = new byte[150];
+        for (var i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) i;
+        }
+        var parts = new ArrayList<ByteBuffer>();
+        for (var msg : MESSAGES) {
+            parts.add(write(msg, varInts));
+        }
+        parts.add(chunk(3, bytes, varInts));
+        parts.add(bundle(varInts));
+        return concat(parts);
+    }
+
+    private static byte[] bytes(ByteBuffer bb) {
+        var bytes = new byte[bb.remaining()];
+        bb.duplicate().get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Transcodes src handing the transcoder at most srcStep bytes of src and dstStep bytes of room at a time,
+     * every call must make progress
+     */
+    private static ByteBuffer transcode(ByteBuffer src, int srcStep, int dstStep) {
+        var transcoder = new VarIntTranscoder();
+        src = src.duplicate();
+        var out = ByteBuffer.allocate(src.remaining());
+        var dst = ByteBuffer.allocate(dstStep);
+        var in = ByteBuffer.allocate(srcStep);
+        while (src.hasRemaining() || in.position() > 0) {
+            while (in.hasRemaining() && src.hasRemaining()) {
+                in.put(src.get());
+            }
+            in.flip();
+            transcoder.transcode(in, dst);
+            assertTrue(in.position() > 0 || dst.position() > 0);
+            in.compact();
+            out.put(dst.flip());
+            dst.clear();
+        }
+        return out.flip();
+    }
+
+    @Test
+    public void eachFrame() {
+        for (var msg : MESSAGES) {
+            assertArrayEquals(bytes(write(msg, true)), bytes(transcode(write(msg, false), 1024, 1024)));
+        }
+    }
+
+    @Test
+    public void chunk() {
+        var bytes = new byte[] { 1, 2, 3 };
+        assertArrayEquals(bytes(chunk(7, bytes, true)), bytes(transcode(chunk(7, bytes, false), 1024, 1024)));
+    }
+
+    @Test
+    public void bundle() {
+        assertArrayEquals(bytes(bundle(true)), bytes(transcode(bundle(false), 1024, 1024)));
+    }
+
+    @Test
+    public void stream() {
+        var expected = bytes(frames(true));
+        assertArrayEquals(expected, bytes(transcode(frames(false), 4096, 4096)));
+    }
+
+    @Test
+    public void streamTrickled() {
+        var expected = bytes(frames(true));
+        var src = frames(false);
+        for (var srcStep = 1; srcStep < 12; srcStep++) {
+            for (var dstStep = 5; dstStep < 12; dstStep++) { // room for the largest varint
+                assertArrayEquals(expected, bytes(transcode(src, srcStep, dstStep)));
+            }
+        }
+    }
+
+    @Test
+    public void varIntWaitsForRoom() {
+        var transcoder = new VarIntTranscoder();
+        var src = write(Message.login("x".repeat(200)), false);
+        var dst = ByteBuffer.allocate(Integer.BYTES + 1);
+        transcoder.transcode(src, dst);
+        assertEquals(Integer.BYTES, dst.position()); // the varint of 200 takes two bytes
+        assertEquals(Integer.BYTES + 3, src.position()); // the last byte of the size is read once there is room
+        dst.clear();
+        transcoder.transcode(src, dst);
+        assertFalse(dst.hasRemaining()); // the varint, then 3 bytes of the login
+        assertEquals(Integer.BYTES * 2 + 3, src.position());
+    }
+
+    @Test
+    public void unknownOpcode() {
+        var transcoder = new VarIntTranscoder();
+        var src = ByteBuffer.allocate(Integer.BYTES).putInt(-100).flip();
+        assertThrows(IllegalArgumentException.class, () -> transcoder.transcode(src, ByteBuffer.allocate(16)));
+    }
+
+    @Test
+    public void negativeSize() {
+        var transcoder = new VarIntTranscoder();
+        var src = ByteBuffer.allocate(2 * Integer.BYTES).putInt(Message.Type.LOGIN.getOpcode()).putInt(-1).flip();
+        assertThrows(IllegalArgumentException.class, () -> transcoder.transcode(src, ByteBuffer.allocate(16)));
+    }
+}
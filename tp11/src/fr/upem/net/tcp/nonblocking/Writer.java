@@ -0,0 +1,32 @@
+package fr.upem.net.tcp.nonblocking;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Counterpart of Reader: encodes a value into the buffers given to process, so a
+ * value may be written across several buffers, or several uses of the same buffer
+ * once it has been emptied.
+ * <p>
+ * The convention is that bb is in write-mode before and after the call to process.
+ */
+public interface Writer<T> {
+
+   public static enum ProcessStatus {DONE, PARTIAL}
+
+   ;
+
+   /**
+    * Starts writing value, the writer must be new or reset
+    */
+   public void set(T value);
+
+   /**
+    * Writes as much of the value as bb has room for
+    *
+    * @return DONE once the last byte of the value is written, PARTIAL if it needs more room
+    */
+   public ProcessStatus process(ByteBuffer bb);
+
+   public void reset();
+
+}